@@ -0,0 +1,57 @@
+#!/usr/bin/env bash
+# Startup / first-request latency for one runtime mode, run from backend/.
+#
+#   ./scripts/startup-benchmark.sh jvm      # mvn package
+#   ./scripts/startup-benchmark.sh aot      # mvn -Paot package
+#   ./scripts/startup-benchmark.sh cds      # mvn -Pcds package     (or -Pcds,aot)
+#   ./scripts/startup-benchmark.sh native   # mvn -Pnative native:compile
+#
+# Reports, per run:
+#   ready_ms   launch → first 200 from /actuator/health (what a load balancer sees)
+#   first_ms   latency of the first POST /api/chat once ready (cold controller,
+#              Jackson, OkHttp and TLS paths; fails fast without a real API key)
+#   second_ms  latency of the second identical request, for the warm baseline
+set -euo pipefail
+
+MODE=${1:?mode: jvm | aot | cds | native}
+RUNS=${2:-5}
+PORT=${PORT:-18080}
+JAR=$(ls target/*.jar | head -1)
+BODY='{"messages":[{"role":"user","content":"hi"}],"fhirToken":"benchmark"}'
+
+# Runs in a background subshell; exec so that $! is the server process itself
+launch() {
+  case "$MODE" in
+    jvm)    exec java -jar "$JAR" --server.port="$PORT" ;;
+    aot)    exec java -Dspring.aot.enabled=true -jar "$JAR" --server.port="$PORT" ;;
+    cds)    cd target/cds && exec java -XX:SharedArchiveFile=application.jsa @jvm.args \
+                 com.carebridge.CareBridgeApplication --server.port="$PORT" ;;
+    native) exec target/carebridge-backend --server.port="$PORT" ;;
+    *)      echo "unknown mode $MODE" >&2; exit 2 ;;
+  esac
+}
+
+now_ms() { date +%s%3N; }
+
+# The stream ends in an error event without a real key; only the timing matters here
+post_ms() {
+  { curl -s -m 30 -o /dev/null -w '%{time_total}' -X POST "http://localhost:$PORT/api/chat" \
+         -H 'Content-Type: application/json' -d "$BODY" || true; } | awk '{ printf "%d", $1 * 1000 }'
+}
+
+echo "mode=$MODE runs=$RUNS"
+printf '%-4s %9s %9s %9s\n' run ready_ms first_ms second_ms
+for run in $(seq 1 "$RUNS"); do
+  start=$(now_ms)
+  launch > "/tmp/carebridge-bench-$MODE.log" 2>&1 &
+  pid=$!
+  until curl -sf "http://localhost:$PORT/actuator/health" > /dev/null; do
+    kill -0 "$pid" 2> /dev/null || { echo "process exited, see /tmp/carebridge-bench-$MODE.log"; exit 1; }
+    sleep 0.02
+  done
+  ready=$(( $(now_ms) - start ))
+  first=$(post_ms)
+  second=$(post_ms)
+  printf '%-4s %9s %9s %9s\n' "$run" "$ready" "$first" "$second"
+  kill "$pid"; wait "$pid" 2> /dev/null || true
+done
@@ -0,0 +1,49 @@
+package com.carebridge.config;
+
+import com.carebridge.model.AuditEvent;
+import com.carebridge.model.ChatRequest;
+import com.carebridge.service.AuditReader;
+import com.carebridge.service.FlightRecorderService;
+import com.carebridge.service.UsageAccounting;
+import org.springframework.aot.hint.RuntimeHints;
+import org.springframework.aot.hint.RuntimeHintsRegistrar;
+import org.springframework.aot.hint.BindingReflectionHintsRegistrar;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.ImportRuntimeHints;
+
+/**
+ * Reachability metadata for the GraalVM native build (mvn -Pnative native:compile).
+ * Ignored on the JVM.
+ *
+ * – ChatRequest: bound by Jackson from the request body (getters/setters via reflection)
+ * – AuditEvent: written and read back as JSON lines by AuditLog / AuditReader
+ * – Report records serialised by the REST controllers: audit query results,
+ *   usage rollups and turns, JFR recording info (record components via reflection)
+ * – OkHttp: loads its public-suffix list from the classpath on first HTTPS call
+ * Jackson tree-model usage (JsonNode/ObjectNode) needs no hints.
+ */
+@Configuration
+@ImportRuntimeHints(NativeHintsConfig.CareBridgeRuntimeHints.class)
+public class NativeHintsConfig {
+
+    static class CareBridgeRuntimeHints implements RuntimeHintsRegistrar {
+
+        private final BindingReflectionHintsRegistrar bindingRegistrar = new BindingReflectionHintsRegistrar();
+
+        @Override
+        public void registerHints(RuntimeHints hints, ClassLoader classLoader) {
+            bindingRegistrar.registerReflectionHints(hints.reflection(),
+                    ChatRequest.class,
+                    AuditEvent.class,
+                    AuditReader.Result.class,
+                    UsageAccounting.Rollup.class,
+                    UsageAccounting.ToolRollup.class,
+                    UsageAccounting.TurnReport.class,
+                    UsageAccounting.IterationUsage.class,
+                    UsageAccounting.ToolUsage.class,
+                    FlightRecorderService.Info.class);
+            hints.resources().registerPattern("okhttp3/internal/publicsuffix/publicsuffixes.gz");
+            hints.resources().registerPattern("okhttp3/internal/publicsuffix/NOTICE");
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.carebridge.config;
+
+import com.carebridge.websocket.ChatWebSocketHandler;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.socket.config.annotation.EnableWebSocket;
+import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
+
+@Configuration
+@EnableWebSocket
+public class WebSocketConfig implements WebSocketConfigurer {
+
+    @Value("${carebridge.cors.allowed-origins:http://localhost:5173}")
+    private String allowedOrigins;
+
+    @Autowired private ChatWebSocketHandler chatWebSocketHandler;
+
+    /** ws(s)://host/api/ws/chat – one persistent connection per chat session. */
+    @Override
+    public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
+        registry.addHandler(chatWebSocketHandler, "/api/ws/chat")
+                .setAllowedOriginPatterns(allowedOrigins.split(","));
+    }
+}
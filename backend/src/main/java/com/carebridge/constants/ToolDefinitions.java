@@ -0,0 +1,172 @@
+package com.carebridge.constants;
+
+/**
+ * OpenAI function-calling tool definitions shared by every chat transport.
+ * Serialised as a JSON string and parsed once by each service at init time.
+ */
+public final class ToolDefinitions {
+
+    private ToolDefinitions() {}
+
+    public static final String TOOLS_JSON = """
+[
+  {
+    "type": "function",
+    "function": {
+      "name": "search_fhir_patient",
+      "description": "Search for patients in the FHIR system by name, email, phone, birthdate, or patient ID.",
+      "parameters": {
+        "type": "object",
+        "properties": {
+          "GIVEN":      { "type": "string", "description": "Patient first/given name" },
+          "FAMILY":     { "type": "string", "description": "Patient last/family name" },
+          "EMAIL":      { "type": "string", "description": "Patient email address" },
+          "PHONE":      { "type": "string", "description": "Patient phone number" },
+          "BIRTHDATE":  { "type": "string", "description": "Patient date of birth (YYYY-MM-DD)" },
+          "PATIENT_ID": { "type": "string", "description": "Patient numeric ID" }
+        }
+      }
+    }
+  },
+  {
+    "type": "function",
+    "function": {
+      "name": "search_patient_condition",
+      "description": "Search patient conditions/diagnoses from FHIR. Can search by subject (patient ID) and/or ICD-9 code.",
+      "parameters": {
+        "type": "object",
+        "properties": {
+          "SUBJECT":   { "type": "string", "description": "Patient numeric ID (no 'Patient/' prefix)" },
+          "CODE":      { "type": "string", "description": "ICD-9 diagnosis code" },
+          "ENCOUNTER": { "type": "string", "description": "Encounter numeric ID" }
+        }
+      }
+    }
+  },
+  {
+    "type": "function",
+    "function": {
+      "name": "search_patient_procedure",
+      "description": "Search patient procedures/surgeries from FHIR.",
+      "parameters": {
+        "type": "object",
+        "properties": {
+          "SUBJECT":   { "type": "string", "description": "Patient numeric ID" },
+          "CODE":      { "type": "string", "description": "CPT procedure code" },
+          "ENCOUNTER": { "type": "string", "description": "Encounter numeric ID" }
+        }
+      }
+    }
+  },
+  {
+    "type": "function",
+    "function": {
+      "name": "search_patient_medications",
+      "description": "Search patient medication requests/prescriptions from FHIR.",
+      "parameters": {
+        "type": "object",
+        "properties": {
+          "SUBJECT":        { "type": "string", "description": "Patient numeric ID" },
+          "CODE":           { "type": "string", "description": "Drug code (e.g. INSULIN, ACET325)" },
+          "PRESCRIPTIONID": { "type": "string", "description": "Prescription ID number" }
+        }
+      }
+    }
+  },
+  {
+    "type": "function",
+    "function": {
+      "name": "search_patient_encounter",
+      "description": "Search patient encounters (admissions, discharges, insurance info) from FHIR.",
+      "parameters": {
+        "type": "object",
+        "properties": {
+          "SUBJECT": { "type": "string", "description": "Patient numeric ID" },
+          "DATE":    { "type": "string", "description": "Start date filter e.g. 'gt2000-01-13'" },
+          "DATE2":   { "type": "string", "description": "End date filter e.g. 'lt2024-09-13'" }
+        }
+      }
+    }
+  },
+  {
+    "type": "function",
+    "function": {
+      "name": "search_patient_observations",
+      "description": "Search patient lab results, vitals, and clinical observations from FHIR.",
+      "parameters": {
+        "type": "object",
+        "properties": {
+          "SUBJECT":        { "type": "string", "description": "Patient numeric ID" },
+          "CODE":           { "type": "string", "description": "LOINC observation code" },
+          "value_quantity": { "type": "string", "description": "Filter by value e.g. 'gt10|mEq/L'" },
+          "page":           { "type": "number", "description": "Page number starting at 0" },
+          "all_pages":      { "type": "boolean", "description": "Fetch every page server-side and return one merged, date-ordered result (ignores page)" }
+        },
+        "required": ["CODE"]
+      }
+    }
+  },
+  {
+    "type": "function",
+    "function": {
+      "name": "analyze_observations",
+      "description": "Fetch a patient's observations and analyse them server-side against the observation normal ranges. Returns per LOINC code: latest value and date, Low/Normal/High classification, min/max/mean, trend and out-of-range counts, plus the list of abnormal observations. Prefer this over search_patient_observations for abnormal, deterioration or trend questions.",
+      "parameters": {
+        "type": "object",
+        "properties": {
+          "SUBJECT": { "type": "string", "description": "Patient numeric ID" },
+          "CODES":   { "type": "string", "description": "Comma-separated LOINC codes; leave empty for the 8 key observations" }
+        },
+        "required": ["SUBJECT"]
+      }
+    }
+  },
+  {
+    "type": "function",
+    "function": {
+      "name": "get_patient_snapshot",
+      "description": "Fetch a compact snapshot of one patient in a single call: demographics, conditions, procedures, medications and encounters (most recent first, with totals) plus the latest value, classification and trend of the 8 key observations and the list of abnormal ones. Prefer this over calling the individual search tools for patient summaries, overviews and discharge summaries.",
+      "parameters": {
+        "type": "object",
+        "properties": {
+          "SUBJECT": { "type": "string", "description": "Patient numeric ID" }
+        },
+        "required": ["SUBJECT"]
+      }
+    }
+  },
+  {
+    "type": "function",
+    "function": {
+      "name": "cohort_query",
+      "description": "Answer one question across many patients in a single call, e.g. which of these patients have high glucose, or which diabetic patients have no metformin prescription. Give the cohort as PATIENTS or as CONDITION_CODE, and the per-patient query as RESOURCE + CODE. The server runs the per-patient searches in parallel and returns counts and the matching patients only. Use this instead of calling a search tool once per patient.",
+      "parameters": {
+        "type": "object",
+        "properties": {
+          "PATIENTS":       { "type": "string", "description": "Comma-separated patient numeric IDs. Leave empty when using CONDITION_CODE." },
+          "CONDITION_CODE": { "type": "string", "description": "Condition code(s) from the knowledge base, comma-separated; the cohort is every patient with that condition. Leave empty when PATIENTS is given." },
+          "RESOURCE":       { "type": "string", "enum": ["observations", "condition", "procedure", "medications", "encounter"], "description": "What to check for each patient. Default observations." },
+          "CODE":           { "type": "string", "description": "For observations: LOINC code or observation name (required). For condition / procedure / medications: the code to look for (empty = any). Must be empty for encounter." },
+          "FILTER":         { "type": "string", "description": "Which patients to list. observations: abnormal (default), high, low, normal or all. Other resources: with (default) or without a match." }
+        },
+        "required": ["RESOURCE"]
+      }
+    }
+  },
+  {
+    "type": "function",
+    "function": {
+      "name": "end_chat",
+      "description": "End the conversation when the user explicitly indicates they are done.",
+      "parameters": {
+        "type": "object",
+        "properties": {
+          "farewell_message": { "type": "string", "description": "Short professional closing message." }
+        },
+        "required": ["farewell_message"]
+      }
+    }
+  }
+]
+""";
+}
@@ -0,0 +1,51 @@
+package com.carebridge.controller;
+
+import com.carebridge.service.AuditReader;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Map;
+
+/**
+ * PHI access audit trail (see {@link com.carebridge.service.AuditLog}).
+ *
+ *   GET /api/audit?user=&patient=&from=&to=&limit=100   →  matching events, newest first
+ *
+ * from / to are epoch millis. Every call needs the X-Audit-Token header
+ * matching carebridge.audit.token; a blank token locks the endpoint.
+ */
+@RestController
+@RequestMapping("/api/audit")
+public class AuditController {
+
+    private static final String TOKEN_HEADER = "X-Audit-Token";
+    private static final int    MAX_LIMIT    = 10_000;
+
+    @Value("${carebridge.audit.token:}")
+    private String token;
+
+    @Autowired private AuditReader reader;
+
+    @GetMapping
+    public ResponseEntity<?> query(@RequestHeader(value = TOKEN_HEADER, defaultValue = "") String auth,
+                                   @RequestParam(required = false) String user,
+                                   @RequestParam(required = false) String patient,
+                                   @RequestParam(required = false) Long from,
+                                   @RequestParam(required = false) Long to,
+                                   @RequestParam(defaultValue = "100") int limit) {
+        if (token.isBlank() || !MessageDigest.isEqual(
+                token.getBytes(StandardCharsets.UTF_8), auth.getBytes(StandardCharsets.UTF_8))) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body(Map.of("error", "Audit token required."));
+        }
+        try {
+            return ResponseEntity.ok(reader.query(user, patient, from, to, Math.max(1, Math.min(limit, MAX_LIMIT))));
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().body(Map.of("error", String.valueOf(e.getMessage())));
+        }
+    }
+}
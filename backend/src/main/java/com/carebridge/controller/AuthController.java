@@ -7,6 +7,7 @@ import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -23,8 +24,10 @@ import java.util.Map;
 @RequestMapping("/api/auth")
 public class AuthController {
 
-    private static final String FHIR_LOGIN_URL = "https://fhirassist.rsystems.com:481/auth/login";
-    private static final MediaType JSON_TYPE    = MediaType.get("application/json; charset=utf-8");
+    private static final MediaType JSON_TYPE = MediaType.get("application/json; charset=utf-8");
+
+    @Value("${carebridge.fhir.base-url:https://fhirassist.rsystems.com:481}")
+    private String fhirBase;
 
     @Autowired private OkHttpClient httpClient;
     @Autowired private ObjectMapper objectMapper;
@@ -36,7 +39,7 @@ public class AuthController {
             // Use fully qualified okhttp3.RequestBody to avoid clash with Spring @RequestBody
             okhttp3.RequestBody reqBody = okhttp3.RequestBody.create(body, JSON_TYPE);
             Request req = new Request.Builder()
-                    .url(FHIR_LOGIN_URL)
+                    .url(fhirBase + "/auth/login")
                     .post(reqBody)
                     .build();
 
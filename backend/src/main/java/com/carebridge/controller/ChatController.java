@@ -1,57 +1,117 @@
 package com.carebridge.controller;
 
 import com.carebridge.model.ChatRequest;
+import com.carebridge.service.ChatStreamRegistry;
 import com.carebridge.service.OpenAIService;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.carebridge.service.ResumableChatStream;
+import com.carebridge.service.TokenVerifier;
+import com.carebridge.service.UserIdentity;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 /**
  * POST /api/chat  →  SSE stream of text chunks.
  *
- * Event format (JSON lines):
+ * Event format (JSON lines, every event carries an "id:" sequence number):
  *   event: chunk   data: {"text":"..."}          ← text delta
  *   event: done    data: {}                       ← conversation turn finished
  *   event: error   data: {"message":"..."}        ← error
+ *
+ * The response carries an X-Turn-Id header. If the connection drops, the
+ * turn keeps running and buffering events for a grace period:
+ *   GET    /api/chat/{turnId}/stream   (Last-Event-ID: n)  →  replay after n, then live
+ *   DELETE /api/chat/{turnId}                              →  stop the turn
+ * Both need "Authorization: Bearer <fhirToken>" for the same user that started the turn,
+ * and a token the FHIR server accepts ({@link TokenVerifier}) – its claims alone can be forged.
+ * A turn nobody re-attaches to within the grace period is cancelled.
  */
 @RestController
 @RequestMapping("/api")
 public class ChatController {
 
-    @Autowired private OpenAIService openAIService;
-    @Autowired private ObjectMapper  objectMapper;
+    public static final String TURN_ID_HEADER = "X-Turn-Id";
+
+    @Autowired private OpenAIService      openAIService;
+    @Autowired private ChatStreamRegistry streams;
+    @Autowired private TokenVerifier      tokens;
 
     // Virtual threads (Java 21) – one per request, very lightweight
     private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
 
     @PostMapping(value = "/chat", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-    public SseEmitter chat(@RequestBody ChatRequest request) {
-        SseEmitter emitter = new SseEmitter(180_000L); // 3-minute timeout
+    public ResponseEntity<SseEmitter> chat(@RequestBody ChatRequest request) {
+        SseEmitter emitter = new SseEmitter(180_000L); // 3-minute timeout per connection
+
+        ResumableChatStream stream = streams.open(UserIdentity.fromToken(request.getFhirToken()));
+        streams.attach(stream, emitter, 0);
 
         executor.submit(() -> {
             try {
                 openAIService.runAgentLoop(
                         request.getMessages(),
                         request.getFhirToken(),
-                        emitter
+                        stream,
+                        stream.getTurn()
                 );
+            } catch (CancellationException e) {
+                // Ends the replay buffer so a late reconnect sees a terminal event
+                if ("stop".equals(stream.getTurn().cancelReason())) stream.done();
+                else stream.error(e);
             } catch (Exception e) {
-                try {
-                    String errJson = objectMapper.writeValueAsString(
-                            Map.of("message", e.getMessage() != null ? e.getMessage() : "Unknown error")
-                    );
-                    emitter.send(SseEmitter.event().name("error").data(errJson));
-                } catch (Exception ignored) {}
-                emitter.completeWithError(e);
+                stream.error(e);
             }
         });
 
+        return ResponseEntity.ok().header(TURN_ID_HEADER, stream.getTurnId()).body(emitter);
+    }
+
+    @GetMapping(value = "/chat/{turnId}/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> resume(@PathVariable String turnId,
+                                             @RequestHeader(value = "Last-Event-ID", defaultValue = "0") long lastEventId,
+                                             @RequestHeader(value = HttpHeaders.AUTHORIZATION, defaultValue = "") String auth) {
+        ResumableChatStream stream = streams.find(turnId);
+        if (stream == null || !stream.isOwnedBy(userOf(auth))) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(errorStream("Unknown or expired turn."));
+        }
+        SseEmitter emitter = new SseEmitter(180_000L);
+        if (!streams.attach(stream, emitter, lastEventId)) {
+            return ResponseEntity.status(HttpStatus.GONE).body(errorStream("Missed events are no longer buffered."));
+        }
+        return ResponseEntity.ok().header(TURN_ID_HEADER, turnId).body(emitter);
+    }
+
+    @DeleteMapping("/chat/{turnId}")
+    public ResponseEntity<Void> cancel(@PathVariable String turnId,
+                                       @RequestHeader(value = HttpHeaders.AUTHORIZATION, defaultValue = "") String auth) {
+        ResumableChatStream stream = streams.find(turnId);
+        if (stream == null || !stream.isOwnedBy(userOf(auth))) return ResponseEntity.notFound().build();
+        stream.getTurn().cancel("stop");
+        return ResponseEntity.noContent().build();
+    }
+
+    /** A stream holding just one error event, so failed resumes keep the SSE event contract. */
+    private static SseEmitter errorStream(String message) {
+        SseEmitter emitter = new SseEmitter();
+        try {
+            emitter.send(SseEmitter.event().name("error").data(Map.of("message", message), MediaType.APPLICATION_JSON));
+        } catch (Exception ignored) {}
+        emitter.complete();
         return emitter;
     }
+
+    /** The caller's user, or null unless the bearer token is verified against the FHIR server. */
+    private String userOf(String authorization) {
+        String fhirToken = authorization.startsWith("Bearer ") ? authorization.substring(7) : "";
+        return tokens.verify(fhirToken) ? UserIdentity.fromToken(fhirToken) : null;
+    }
 }
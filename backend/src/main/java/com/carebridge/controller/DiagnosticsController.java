@@ -0,0 +1,102 @@
+package com.carebridge.controller;
+
+import com.carebridge.service.FlightRecorderService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Map;
+
+/**
+ * On-demand JDK Flight Recorder recordings (see {@link FlightRecorderService}).
+ *
+ *   POST   /api/diagnostics/recordings?durationSeconds=60   →  start (one at a time)
+ *   GET    /api/diagnostics/recordings                      →  list
+ *   GET    /api/diagnostics/recordings/{id}                 →  download the .jfr once stopped (409 while running)
+ *   POST   /api/diagnostics/recordings/{id}/stop            →  stop early
+ *   DELETE /api/diagnostics/recordings/{id}                 →  discard
+ *
+ * Off unless carebridge.diagnostics.enabled=true; every call needs the
+ * X-Diagnostics-Token header matching carebridge.diagnostics.token.
+ */
+@RestController
+@RequestMapping("/api/diagnostics/recordings")
+@ConditionalOnProperty(name = "carebridge.diagnostics.enabled", havingValue = "true")
+public class DiagnosticsController {
+
+    private static final String TOKEN_HEADER = "X-Diagnostics-Token";
+
+    @Value("${carebridge.diagnostics.token:}")
+    private String token;
+
+    @Autowired private FlightRecorderService recorder;
+
+    @PostMapping
+    public ResponseEntity<?> start(@RequestHeader(value = TOKEN_HEADER, defaultValue = "") String auth,
+                                   @RequestParam(defaultValue = "60") long durationSeconds) {
+        if (!authorized(auth)) return forbidden();
+        try {
+            return ResponseEntity.status(HttpStatus.CREATED).body(recorder.start(durationSeconds));
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(Map.of("error", e.getMessage()));
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().body(Map.of("error", String.valueOf(e.getMessage())));
+        }
+    }
+
+    @GetMapping
+    public ResponseEntity<?> list(@RequestHeader(value = TOKEN_HEADER, defaultValue = "") String auth) {
+        if (!authorized(auth)) return forbidden();
+        return ResponseEntity.ok(recorder.list());
+    }
+
+    @GetMapping("/{id}")
+    public ResponseEntity<?> download(@RequestHeader(value = TOKEN_HEADER, defaultValue = "") String auth,
+                                      @PathVariable long id) {
+        if (!authorized(auth)) return forbidden();
+        var info = recorder.find(id);
+        if (info.isEmpty()) return ResponseEntity.notFound().build();
+        Path file = recorder.file(id).orElse(null);
+        if (file == null) return ResponseEntity.status(HttpStatus.CONFLICT).body(info.get());
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .header(HttpHeaders.CONTENT_DISPOSITION,
+                        ContentDisposition.attachment().filename(file.getFileName().toString()).build().toString())
+                .body(new FileSystemResource(file));
+    }
+
+    @PostMapping("/{id}/stop")
+    public ResponseEntity<?> stop(@RequestHeader(value = TOKEN_HEADER, defaultValue = "") String auth,
+                                  @PathVariable long id) {
+        if (!authorized(auth)) return forbidden();
+        return recorder.stop(id) ? ResponseEntity.ok(recorder.find(id).orElseThrow())
+                                 : ResponseEntity.notFound().build();
+    }
+
+    @DeleteMapping("/{id}")
+    public ResponseEntity<?> delete(@RequestHeader(value = TOKEN_HEADER, defaultValue = "") String auth,
+                                    @PathVariable long id) throws Exception {
+        if (!authorized(auth)) return forbidden();
+        return recorder.delete(id) ? ResponseEntity.noContent().build() : ResponseEntity.notFound().build();
+    }
+
+    /** Constant-time compare; a blank configured token locks the endpoint entirely. */
+    private boolean authorized(String presented) {
+        return !token.isBlank() && MessageDigest.isEqual(
+                token.getBytes(StandardCharsets.UTF_8), presented.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ResponseEntity<?> forbidden() {
+        return ResponseEntity.status(HttpStatus.FORBIDDEN).body(Map.of("error", "Diagnostics token required."));
+    }
+}
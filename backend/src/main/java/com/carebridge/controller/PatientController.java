@@ -0,0 +1,37 @@
+package com.carebridge.controller;
+
+import com.carebridge.service.PatientSnapshotService;
+import com.carebridge.service.TokenVerifier;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.Map;
+
+/**
+ * Patient snapshot for the frontend (same document as the get_patient_snapshot tool).
+ *
+ *   GET /api/patients/{id}/snapshot   (Authorization: Bearer <fhirToken>)
+ *
+ * A cached snapshot is served without a FHIR round trip, so the token is
+ * verified first ({@link TokenVerifier}) rather than left to the FHIR server.
+ */
+@RestController
+@RequestMapping("/api/patients")
+public class PatientController {
+
+    @Autowired private PatientSnapshotService snapshots;
+    @Autowired private TokenVerifier          tokens;
+
+    @GetMapping(value = "/{id}/snapshot", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> snapshot(@PathVariable String id,
+                                      @RequestHeader(value = "Authorization", defaultValue = "") String authorization) {
+        String fhirToken = authorization.startsWith("Bearer ") ? authorization.substring(7) : "";
+        if (!tokens.verify(fhirToken)) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(Map.of("error", "Valid FHIR token required."));
+        }
+        return ResponseEntity.ok(snapshots.snapshot(id, fhirToken));
+    }
+}
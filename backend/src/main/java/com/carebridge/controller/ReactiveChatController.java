@@ -0,0 +1,29 @@
+package com.carebridge.controller;
+
+import com.carebridge.model.ChatRequest;
+import com.carebridge.service.ReactiveOpenAIService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
+
+/**
+ * POST /api/v2/chat  →  reactive SSE stream with the same event contract as /api/chat.
+ *
+ * Exists side-by-side with the SseEmitter implementation so the two can be
+ * load-tested against each other. No thread is parked per request: the
+ * Flux is subscribed by Spring MVC, which requests the next event only after
+ * the previous one has been written, and cancels it when the client goes away.
+ */
+@RestController
+@RequestMapping("/api/v2")
+public class ReactiveChatController {
+
+    @Autowired private ReactiveOpenAIService reactiveOpenAIService;
+
+    @PostMapping(value = "/chat", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<String>> chat(@RequestBody ChatRequest request) {
+        return reactiveOpenAIService.streamChat(request.getMessages(), request.getFhirToken());
+    }
+}
@@ -0,0 +1,90 @@
+package com.carebridge.controller;
+
+import com.carebridge.service.TokenVerifier;
+import com.carebridge.service.UsageAccounting;
+import com.carebridge.service.UserIdentity;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Token usage and cost (see {@link UsageAccounting}).
+ *
+ *   GET /api/usage?turns=50      →  totals by model, user and tool + recent turns   (X-Usage-Token)
+ *   GET /api/usage/me?turns=20   →  the caller's totals and recent turns            (Authorization: Bearer <fhirToken>)
+ *   GET /api/usage/turns/{id}    →  one recent turn of the caller, by X-Turn-Id     (Authorization: Bearer <fhirToken>)
+ *
+ * The full report needs the X-Usage-Token header matching
+ * carebridge.usage.token; a blank token locks it. The per-user endpoints
+ * answer only for a bearer token the FHIR server accepts
+ * ({@link TokenVerifier}) – its claims alone can be forged.
+ */
+@RestController
+@RequestMapping("/api/usage")
+public class UsageController {
+
+    private static final String TOKEN_HEADER = "X-Usage-Token";
+
+    @Value("${carebridge.usage.token:}")
+    private String token;
+
+    @Autowired private UsageAccounting usage;
+    @Autowired private TokenVerifier   tokens;
+
+    @GetMapping
+    public ResponseEntity<?> report(@RequestHeader(value = TOKEN_HEADER, defaultValue = "") String auth,
+                                    @RequestParam(defaultValue = "50") int turns) {
+        if (token.isBlank() || !MessageDigest.isEqual(
+                token.getBytes(StandardCharsets.UTF_8), auth.getBytes(StandardCharsets.UTF_8))) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body(Map.of("error", "Usage token required."));
+        }
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("total", usage.total());
+        body.put("models", usage.byModel());
+        body.put("users", usage.byUser());
+        body.put("tools", usage.byTool());
+        body.put("recentTurns", usage.recentTurns(t -> true, Math.max(0, turns)));
+        return ResponseEntity.ok(body);
+    }
+
+    @GetMapping("/me")
+    public ResponseEntity<?> mine(@RequestHeader(value = "Authorization", defaultValue = "") String authorization,
+                                  @RequestParam(defaultValue = "20") int turns) {
+        String user = userOf(authorization);
+        if (user == null) return unauthorized();
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("user", user);
+        body.put("total", usage.forUser(user).orElse(null));
+        body.put("recentTurns", usage.recentTurns(t -> t.user().equals(user), Math.max(0, turns)));
+        return ResponseEntity.ok(body);
+    }
+
+    @GetMapping("/turns/{turnId}")
+    public ResponseEntity<?> turn(@RequestHeader(value = "Authorization", defaultValue = "") String authorization,
+                                  @PathVariable String turnId) {
+        String user = userOf(authorization);
+        if (user == null) return unauthorized();
+        return usage.recentTurns(t -> t.turnId().equals(turnId) && t.user().equals(user), 1).stream()
+                .findFirst()
+                .<ResponseEntity<?>>map(ResponseEntity::ok)
+                .orElse(ResponseEntity.notFound().build());
+    }
+
+    /** The caller's user, or null unless the bearer token is verified against the FHIR server. */
+    private String userOf(String authorization) {
+        if (!authorization.startsWith("Bearer ") || authorization.length() == 7) return null;
+        String fhirToken = authorization.substring(7);
+        return tokens.verify(fhirToken) ? UserIdentity.fromToken(fhirToken) : null;
+    }
+
+    private static ResponseEntity<?> unauthorized() {
+        return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(Map.of("error", "Valid FHIR token required."));
+    }
+}
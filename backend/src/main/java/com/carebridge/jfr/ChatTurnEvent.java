@@ -0,0 +1,29 @@
+package com.carebridge.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** One agent-loop turn, from the first OpenAI call to done / error / cancel. */
+@Name("com.carebridge.ChatTurn")
+@Label("Chat Turn")
+@Category({ "CareBridge", "Agent Loop" })
+@Description("One chat turn through the agent loop")
+public class ChatTurnEvent extends Event {
+
+    @Label("Transport")
+    public String transport;
+
+    @Label("Iterations")
+    @Description("OpenAI calls made in this turn")
+    public int iterations;
+
+    @Label("Tool Calls")
+    public int toolCalls;
+
+    @Label("Outcome")
+    @Description("done, farewell, cancelled or error")
+    public String outcome;
+}
@@ -0,0 +1,43 @@
+package com.carebridge.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/** One streamed chat-completions call; the event duration ends with the stream. */
+@Name("com.carebridge.OpenAIRequest")
+@Label("OpenAI Request")
+@Category({ "CareBridge", "Agent Loop" })
+@Description("One streaming OpenAI chat-completions call")
+public class OpenAIRequestEvent extends Event {
+
+    @Label("Model")
+    public String model;
+
+    @Label("Iteration")
+    public int iteration;
+
+    @Label("HTTP Status")
+    public int status;
+
+    @Label("Time To First Byte")
+    @Timespan(Timespan.NANOSECONDS)
+    public long ttfb;
+
+    @Label("Time To First Text")
+    @Description("Until the first streamed text delta; 0 for tool-call iterations")
+    @Timespan(Timespan.NANOSECONDS)
+    public long ttft;
+
+    @Label("Finish Reason")
+    public String finishReason;
+
+    @Label("Prompt Tokens")
+    public long promptTokens;
+
+    @Label("Completion Tokens")
+    public long completionTokens;
+}
@@ -0,0 +1,24 @@
+package com.carebridge.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** One SSE event written to the client; the duration is the blocking write. */
+@Name("com.carebridge.SseSend")
+@Label("SSE Send")
+@Category({ "CareBridge", "Streaming" })
+public class SseSendEvent extends Event {
+
+    @Label("Event")
+    public String event;
+
+    @Label("Sequence")
+    public long sequence;
+
+    @Label("Payload Size")
+    @DataAmount(DataAmount.BYTES)
+    public long bytes;
+}
@@ -0,0 +1,57 @@
+package com.carebridge.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * One tool call executed for the model.
+ * FHIR fetches on the calling thread report cache hits / misses into the
+ * current event through {@link #cacheHit()} / {@link #cacheMiss()}.
+ */
+@Name("com.carebridge.ToolCall")
+@Label("Tool Call")
+@Category({ "CareBridge", "Agent Loop" })
+@Description("One model tool call (FHIR search or composite tool)")
+public class ToolCallEvent extends Event {
+
+    private static final ThreadLocal<ToolCallEvent> CURRENT = new ThreadLocal<>();
+
+    @Label("Tool")
+    public String tool;
+
+    @Label("Cache Hits")
+    public int cacheHits;
+
+    @Label("Cache Misses")
+    public int cacheMisses;
+
+    @Label("Result Size")
+    @DataAmount(DataAmount.BYTES)
+    public long bytes;
+
+    /** Makes this the event FHIR fetches on this thread report to, until {@link #end()}. */
+    public void start() {
+        CURRENT.set(this);
+        begin();
+    }
+
+    public void end(long resultBytes) {
+        CURRENT.remove();
+        bytes = resultBytes;
+        commit();
+    }
+
+    public static void cacheHit() {
+        ToolCallEvent e = CURRENT.get();
+        if (e != null) e.cacheHits++;
+    }
+
+    public static void cacheMiss() {
+        ToolCallEvent e = CURRENT.get();
+        if (e != null) e.cacheMisses++;
+    }
+}
@@ -0,0 +1,19 @@
+package com.carebridge.model;
+
+/**
+ * One PHI access as stored in the audit log.
+ *
+ * @param timestamp   epoch millis of the access
+ * @param user        {@link com.carebridge.service.UserIdentity} key of the caller
+ * @param tool        tool that was executed (e.g. "search_patient_condition")
+ * @param patient     SUBJECT / PATIENT_ID of the query; empty for cross-patient searches
+ * @param query       FHIR resource path and query string (without the server base)
+ * @param resultCount bundle total, or -1 if unknown / the call failed
+ * @param cacheHit    true if the response was served from the FHIR cache
+ * @param tokenHash   {@link com.carebridge.service.UserIdentity#tokenHash} of the token that was presented
+ * @param verified    true if the FHIR server had accepted that token (see
+ *                    {@link com.carebridge.service.TokenVerifier}); false means user is only
+ *                    the token's unverified claim, e.g. a cache hit for an unknown token
+ */
+public record AuditEvent(long timestamp, String user, String tool, String patient, String query,
+                         int resultCount, boolean cacheHit, String tokenHash, boolean verified) {}
@@ -0,0 +1,39 @@
+package com.carebridge.model;
+
+/**
+ * One parsed row of KnowledgeBase.OBSERVATION_RANGES joined with its LOINC code.
+ *
+ * @param parameter  camelCase parameter name from the ranges table (e.g. "glucose")
+ * @param loincCode  LOINC code from KnowledgeBase.LOINC_CODES (e.g. "2345-7")
+ * @param name       display name from the LOINC table (e.g. "Glucose")
+ * @param unit       unit from the LOINC table, may be empty
+ * @param low        lower bound of the normal range (values below are Low)
+ * @param high       upper bound of the normal range (values above are High)
+ * @param lowNote    clinical note for Low values, may be empty
+ * @param highNote   clinical note for High values, may be empty
+ */
+public record ObservationRange(String parameter,
+                               String loincCode,
+                               String name,
+                               String unit,
+                               double low,
+                               double high,
+                               String lowNote,
+                               String highNote) {
+
+    public enum Classification { Low, Normal, High }
+
+    public Classification classify(double value) {
+        if (value < low)  return Classification.Low;
+        if (value > high) return Classification.High;
+        return Classification.Normal;
+    }
+
+    public String normalRange() {
+        return fmt(low) + "-" + fmt(high);
+    }
+
+    private static String fmt(double d) {
+        return d == Math.rint(d) ? String.valueOf((long) d) : String.valueOf(d);
+    }
+}
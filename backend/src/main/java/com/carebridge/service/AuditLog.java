@@ -0,0 +1,348 @@
+package com.carebridge.service;
+
+import com.carebridge.model.AuditEvent;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only audit trail of PHI access (every FHIR tool execution).
+ *
+ * {@link #record} only builds a small object and offers it to a lock-free
+ * {@link AuditRingBuffer}; it never blocks or touches the disk. A single
+ * writer thread drains the ring in batches and group-commits each batch with
+ * one write call. Durability follows carebridge.audit.fsync:
+ *
+ *   batch     force after every batch (an event is durable once its batch is written)
+ *   interval  force at most every fsync-interval-ms (default)
+ *   none      leave it to the OS
+ *
+ * Files are JSON lines prefixed with a CRC32C of the line,
+ *
+ *   <crc32c, 8 hex> <AuditEvent JSON>\n
+ *
+ * so {@link AuditReader} can skip a torn or tampered line. A new file
+ * (audit-<epoch millis>.log) is started at every boot and whenever the
+ * current one reaches max-file-mb; at most max-files are kept.
+ *
+ * Each event carries the user the token claims ({@link UserIdentity}, not
+ * verified), a hash of the token itself and whether the FHIR server had
+ * accepted that token ({@link TokenVerifier}); a cache hit for a token the
+ * server has not seen is recorded as unverified.
+ *
+ * If the ring is full the event is dropped and counted, and the writer
+ * records a gap marker (tool "audit_dropped", resultCount = events lost) so
+ * the trail shows where it is incomplete.
+ *
+ *   carebridge.audit.events        events written
+ *   carebridge.audit.dropped       events lost (ring full or write failure)
+ *   carebridge.audit.batch.size    events per group commit
+ *   carebridge.audit.backlog       events waiting in the ring
+ */
+@Service
+public class AuditLog {
+
+    private static final Logger log = LoggerFactory.getLogger(AuditLog.class);
+
+    static final String FILE_GLOB   = "audit-*.log";
+    static final String DROPPED     = "audit_dropped";
+    private static final int HEAD_SCAN = 512;
+
+    enum Fsync { BATCH, INTERVAL, NONE }
+
+    @Value("${carebridge.audit.enabled:true}")
+    private boolean enabled;
+
+    @Value("${carebridge.audit.dir:./data/audit}")
+    private String directory;
+
+    @Value("${carebridge.audit.ring-size:16384}")
+    private int ringSize;
+
+    @Value("${carebridge.audit.max-batch:1024}")
+    private int maxBatch;
+
+    /** Writer idle wait when the ring is empty */
+    @Value("${carebridge.audit.flush-interval-ms:5}")
+    private long flushIntervalMs;
+
+    @Value("${carebridge.audit.fsync:interval}")
+    private String fsyncPolicy;
+
+    @Value("${carebridge.audit.fsync-interval-ms:1000}")
+    private long fsyncIntervalMs;
+
+    @Value("${carebridge.audit.max-file-mb:64}")
+    private int maxFileMb;
+
+    @Value("${carebridge.audit.max-files:30}")
+    private int maxFiles;
+
+    @Autowired private ObjectMapper  mapper;
+    @Autowired private MeterRegistry registry;
+    @Autowired private TokenVerifier tokens;
+
+    private AuditRingBuffer<Pending> ring;
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean running;
+    private Thread writer;
+
+    private Counter             written;
+    private Counter             droppedCounter;
+    private DistributionSummary batchSize;
+
+    // Writer thread only
+    private Path        dir;
+    private Fsync       fsync;
+    private FileChannel channel;
+    private long        fileSize;
+    private long        lastForce;
+    private boolean     dirty;
+    private final Map<String, Caller> callers = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Caller> eldest) { return size() > 1024; }
+    };
+
+    /** What a caller hands over; the token is resolved to a user key and hash on the writer thread. */
+    private record Pending(long timestamp, String fhirToken, String tool, String patient, String query,
+                           int resultCount, boolean cacheHit, boolean verified) {}
+
+    /** The claimed user of a token, and the hash of the token itself */
+    private record Caller(String user, String tokenHash) {
+        static Caller of(String fhirToken) {
+            return new Caller(UserIdentity.fromToken(fhirToken), UserIdentity.tokenHash(fhirToken));
+        }
+    }
+
+    @jakarta.annotation.PostConstruct
+    private void start() throws IOException {
+        if (!enabled) return;
+        fsync = Fsync.valueOf(fsyncPolicy.trim().toUpperCase(Locale.ROOT));
+        dir   = Files.createDirectories(Paths.get(directory));
+        ring  = new AuditRingBuffer<>(ringSize);
+
+        written        = Counter.builder("carebridge.audit.events").register(registry);
+        droppedCounter = Counter.builder("carebridge.audit.dropped").register(registry);
+        batchSize      = DistributionSummary.builder("carebridge.audit.batch.size").register(registry);
+        Gauge.builder("carebridge.audit.backlog", ring, AuditRingBuffer::size).register(registry);
+
+        openNewFile();
+        running = true;
+        writer  = Thread.ofPlatform().daemon().name("audit-writer").start(this::run);
+    }
+
+    @jakarta.annotation.PreDestroy
+    private void stop() throws InterruptedException {
+        if (writer == null) return;
+        running = false;
+        LockSupport.unpark(writer);
+        writer.join(TimeUnit.SECONDS.toMillis(5));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    Path directory() {
+        return Paths.get(directory);
+    }
+
+    /**
+     * Records one access without blocking. body is the response handed to the
+     * model; only its first bytes are read to find the bundle total. The event
+     * is marked verified only if the FHIR server has accepted the token
+     * recently (a cache hit alone proves nothing about who sent it).
+     */
+    public void record(String fhirToken, String tool, String patient, String query, String body, boolean cacheHit) {
+        if (!enabled) return;
+        Pending p = new Pending(System.currentTimeMillis(), fhirToken, tool, patient == null ? "" : patient,
+                query, resultCount(body), cacheHit, tokens.isVerified(fhirToken));
+        if (!ring.offer(p)) {
+            dropped.incrementAndGet();
+            droppedCounter.increment();
+        }
+    }
+
+    // ── Writer ────────────────────────────────────────────────────────────────
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>(maxBatch);
+        long idleNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, flushIntervalMs));
+        while (true) {
+            boolean stopping = !running;
+            ring.drain(batch::add, maxBatch);
+            long lost = dropped.getAndSet(0);
+            if (!batch.isEmpty() || lost > 0) {
+                commit(batch, lost);
+                batch.clear();
+            } else if (stopping) {
+                break;
+            } else {
+                LockSupport.parkNanos(idleNanos);
+            }
+            if (dirty && (fsync == Fsync.INTERVAL && System.currentTimeMillis() - lastForce >= fsyncIntervalMs
+                          || stopping)) {
+                force();
+            }
+        }
+        force();
+        try { channel.close(); } catch (IOException ignored) {}
+    }
+
+    /** Group commit: one write (and for fsync=batch one force) for the whole batch. */
+    private void commit(List<Pending> batch, long lost) {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(batch.size() * 192 + 192);
+        int events = 0;
+        try {
+            if (lost > 0) {
+                encode(buf, new AuditEvent(System.currentTimeMillis(), "", DROPPED, "", "",
+                        (int) Math.min(lost, Integer.MAX_VALUE), false, "", false));
+            }
+            for (Pending p : batch) {
+                Caller caller = callers.computeIfAbsent(p.fhirToken(), Caller::of);
+                encode(buf, new AuditEvent(p.timestamp(), caller.user(), p.tool(), p.patient(), p.query(),
+                        p.resultCount(), p.cacheHit(), caller.tokenHash(), p.verified()));
+                events++;
+            }
+        } catch (IOException e) {
+            log.warn("Audit log: could not encode batch: {}", e.getMessage());
+        }
+
+        ByteBuffer bytes = ByteBuffer.wrap(buf.toByteArray());
+        for (int attempt = 0; attempt < 2; attempt++) {
+            try {
+                if (fileSize > 0 && fileSize + bytes.remaining() > (long) maxFileMb << 20) rotate();
+                while (bytes.hasRemaining()) fileSize += channel.write(bytes);
+                dirty = true;
+                if (fsync == Fsync.BATCH) force();
+                written.increment(events);
+                batchSize.record(events);
+                return;
+            } catch (IOException e) {
+                log.warn("Audit log: write failed, starting a new file: {}", e.getMessage());
+                bytes.rewind();
+                try { rotate(); } catch (IOException ignored) {}
+            }
+        }
+        // Still failing: count the batch as lost, carry the gap forward and back off
+        droppedCounter.increment(events);
+        dropped.addAndGet(events + lost);
+        LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+    }
+
+    private void encode(ByteArrayOutputStream buf, AuditEvent event) throws IOException {
+        byte[] json = mapper.writeValueAsBytes(event);
+        CRC32C crc = new CRC32C();
+        crc.update(json);
+        buf.write(String.format("%08x ", crc.getValue()).getBytes(StandardCharsets.US_ASCII));
+        buf.write(json);
+        buf.write('\n');
+    }
+
+    private void force() {
+        if (channel == null || !dirty) return;
+        try {
+            channel.force(false);
+            dirty     = false;
+            lastForce = System.currentTimeMillis();
+        } catch (IOException e) {
+            log.warn("Audit log: fsync failed: {}", e.getMessage());
+        }
+    }
+
+    private void rotate() throws IOException {
+        force();
+        if (channel != null) {
+            try { channel.close(); } catch (IOException ignored) {}
+        }
+        openNewFile();
+    }
+
+    private void openNewFile() throws IOException {
+        long stamp = System.currentTimeMillis();
+        while (true) {
+            try {
+                channel  = FileChannel.open(dir.resolve("audit-" + stamp + ".log"),
+                        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                fileSize = 0;
+                break;
+            } catch (FileAlreadyExistsException e) {
+                stamp++;
+            }
+        }
+        List<Path> files = files(dir);
+        for (int i = 0; i < files.size() - maxFiles; i++) {
+            try { Files.deleteIfExists(files.get(i)); }
+            catch (IOException e) { log.warn("Audit log: could not delete {}", files.get(i)); }
+        }
+    }
+
+    // ── Format ────────────────────────────────────────────────────────────────
+
+    /** Audit files of dir, oldest first. */
+    static List<Path> files(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) return List.of();
+        PathMatcher matcher = dir.getFileSystem().getPathMatcher("glob:" + FILE_GLOB);
+        try (Stream<Path> s = Files.list(dir)) {
+            return s.filter(p -> matcher.matches(p.getFileName()))
+                    .sorted(Comparator.comparingLong(AuditLog::startedAt))
+                    .toList();
+        }
+    }
+
+    /** Creation time encoded in the file name; every event in the file is at or after it. */
+    static long startedAt(Path file) {
+        String name = file.getFileName().toString();
+        try { return Long.parseLong(name.substring("audit-".length(), name.length() - ".log".length())); }
+        catch (NumberFormatException e) { return 0; }
+    }
+
+    /** Parses and verifies one line; null if it is torn, corrupt or not an event. */
+    static AuditEvent decode(String line, ObjectMapper mapper) {
+        if (line.length() < 10 || line.charAt(8) != ' ') return null;
+        byte[] json = line.substring(9).getBytes(StandardCharsets.UTF_8);
+        CRC32C crc = new CRC32C();
+        crc.update(json);
+        try {
+            if (Long.parseLong(line, 0, 8, 16) != crc.getValue()) return null;
+            return mapper.readValue(json, AuditEvent.class);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /** Bundle total from the head of a FHIR response without parsing it; -1 if absent or an error body. */
+    static int resultCount(String body) {
+        if (body == null || body.startsWith("{\"error\"")) return -1;
+        String head = body.length() > HEAD_SCAN ? body.substring(0, HEAD_SCAN) : body;
+        int i = head.indexOf("\"total\"");
+        if (i < 0) return -1;
+        i = head.indexOf(':', i) + 1;
+        while (i > 0 && i < head.length() && head.charAt(i) == ' ') i++;
+        int start = i, value = 0;
+        while (i > 0 && i < head.length() && Character.isDigit(head.charAt(i)) && i - start < 9) {
+            value = value * 10 + (head.charAt(i++) - '0');
+        }
+        return i > start ? value : -1;
+    }
+}
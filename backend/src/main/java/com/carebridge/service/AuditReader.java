@@ -0,0 +1,82 @@
+package com.carebridge.service;
+
+import com.carebridge.model.AuditEvent;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Queries the files written by {@link AuditLog}.
+ *
+ * Files are visited newest first; files that started after "to", or that
+ * are entirely older than "from" (the next newer file started before it),
+ * are skipped without being read. Every line's CRC32C is verified – lines
+ * that fail are skipped and counted in the result. Events still waiting in
+ * the writer's ring (a few milliseconds' worth) are not visible yet.
+ * Gap markers ("audit_dropped") in the time range are always returned.
+ */
+@Service
+public class AuditReader {
+
+    /** An event is stamped when recorded and may land in the file opened just after it */
+    private static final long SKEW_MS = 60_000;
+
+    @Autowired private AuditLog     auditLog;
+    @Autowired private ObjectMapper mapper;
+
+    /** Matching events, newest first; corruptLines counts lines that failed verification. */
+    public record Result(List<AuditEvent> events, int corruptLines) {}
+
+    /**
+     * @param user    {@link UserIdentity} key; null or empty for any user
+     * @param patient SUBJECT / PATIENT_ID; null or empty for any patient
+     * @param from    epoch millis, inclusive; null for no lower bound
+     * @param to      epoch millis, exclusive; null for no upper bound
+     * @param limit   maximum number of events returned
+     */
+    public Result query(String user, String patient, Long from, Long to, int limit) throws IOException {
+        List<Path> files = AuditLog.files(auditLog.directory());
+        List<AuditEvent> out = new ArrayList<>();
+        int corrupt = 0;
+
+        long nextStart = Long.MAX_VALUE;
+        for (int i = files.size() - 1; i >= 0 && out.size() < limit; i--) {
+            Path file = files.get(i);
+            long start = AuditLog.startedAt(file);
+            long end   = nextStart;
+            nextStart  = start;
+            if (to != null && start - SKEW_MS >= to) continue;
+            if (from != null && end != Long.MAX_VALUE && end + SKEW_MS <= from) break;
+
+            List<AuditEvent> matches = new ArrayList<>();
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty()) continue;
+                    AuditEvent e = AuditLog.decode(line, mapper);
+                    if (e == null) { corrupt++; continue; }
+                    if (matches(e, user, patient, from, to)) matches.add(e);
+                }
+            }
+            for (int j = matches.size() - 1; j >= 0 && out.size() < limit; j--) out.add(matches.get(j));
+        }
+        return new Result(out, corrupt);
+    }
+
+    /** Gap markers match any user and patient – a query must show where the trail is incomplete. */
+    private static boolean matches(AuditEvent e, String user, String patient, Long from, Long to) {
+        boolean gap = AuditLog.DROPPED.equals(e.tool());
+        if (!gap && user != null && !user.isEmpty() && !user.equals(e.user())) return false;
+        if (!gap && patient != null && !patient.isEmpty() && !patient.equals(e.patient())) return false;
+        if (from != null && e.timestamp() < from) return false;
+        return to == null || e.timestamp() < to;
+    }
+}
@@ -0,0 +1,66 @@
+package com.carebridge.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Bounded multi-producer / single-consumer ring used by {@link AuditLog}.
+ *
+ * Producers claim a sequence with a CAS on tail and publish into the slot
+ * with a release store; they never lock or wait – a full ring rejects the
+ * offer instead. The single consumer takes published slots in sequence
+ * order, clears them and then advances head, which is what frees the space.
+ * A claimed but not yet published slot reads as null and ends the drain.
+ */
+final class AuditRingBuffer<T> {
+
+    private final AtomicReferenceArray<T> slots;
+    private final int                     mask;
+    private final AtomicLong              tail = new AtomicLong();
+    /** Written by the consumer only */
+    private volatile long                 head;
+
+    /** @param capacity rounded up to a power of two */
+    AuditRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        slots = new AtomicReferenceArray<>(size);
+        mask  = size - 1;
+    }
+
+    /** @return false if the ring is full (the item is not enqueued) */
+    boolean offer(T item) {
+        long t;
+        do {
+            t = tail.get();
+            if (t - head >= slots.length()) return false;
+        } while (!tail.compareAndSet(t, t + 1));
+        slots.setRelease((int) (t & mask), item);
+        return true;
+    }
+
+    /** Consumer only: hands at most max items, oldest first, to sink. */
+    int drain(Consumer<T> sink, int max) {
+        long h = head;
+        int n = 0;
+        while (n < max) {
+            int i = (int) (h & mask);
+            T item = slots.getAcquire(i);
+            if (item == null) break;
+            slots.setRelease(i, null);
+            sink.accept(item);
+            h++;
+            n++;
+        }
+        if (n > 0) head = h;
+        return n;
+    }
+
+    int size() {
+        return (int) (tail.get() - head);
+    }
+
+    int capacity() {
+        return slots.length();
+    }
+}
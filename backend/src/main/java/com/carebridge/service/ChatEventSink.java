@@ -0,0 +1,28 @@
+package com.carebridge.service;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Transport-neutral output of one chat turn.
+ * The agent loop only talks to this interface, so the same loop can feed
+ * an SseEmitter (POST /api/chat) or a WebSocket session (/api/ws/chat).
+ */
+public interface ChatEventSink {
+
+    /** Forwards a streamed text delta to the client. */
+    void chunk(String text) throws IOException;
+
+    /**
+     * Forwards a progress update from a running tool (e.g. cohort_query's
+     * {"tool", "completed", "total", "message"}). May be called from tool
+     * threads concurrently; best effort, must never throw.
+     */
+    void status(Map<String, ?> data);
+
+    /** Signals that the turn finished normally. */
+    void done() throws IOException;
+
+    /** Reports a failure to the client; must never throw. */
+    void error(Throwable e);
+}
@@ -0,0 +1,68 @@
+package com.carebridge.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Live and recently finished SSE turns, by turn id (see {@link ResumableChatStream}).
+ *
+ * A turn whose client has been gone for longer than the grace period is
+ * cancelled; a finished turn is forgotten after the retention period, after
+ * which a reconnect has to start a new turn.
+ */
+@Component
+public class ChatStreamRegistry {
+
+    @Value("${carebridge.chat.replay.max-events:4096}")
+    private int maxEvents;
+
+    @Value("${carebridge.chat.replay.disconnect-grace-ms:30000}")
+    private long graceMs;
+
+    @Value("${carebridge.chat.replay.retention-ms:60000}")
+    private long retentionMs;
+
+    @Autowired private ObjectMapper mapper;
+
+    private final Map<String, ResumableChatStream> streams = new ConcurrentHashMap<>();
+
+    /** @param owner {@link UserIdentity} key of the user; only they may resume or cancel the turn */
+    public ResumableChatStream open(String owner) {
+        ResumableChatStream stream = new ResumableChatStream(owner, mapper, maxEvents);
+        streams.put(stream.getTurnId(), stream);
+        return stream;
+    }
+
+    public ResumableChatStream find(String turnId) {
+        return streams.get(turnId);
+    }
+
+    /**
+     * Connects an emitter to a turn, replaying events after lastSeq.
+     *
+     * @return false if the turn is unknown or the missed events are no longer buffered
+     */
+    public boolean attach(ResumableChatStream stream, SseEmitter emitter, long lastSeq) {
+        emitter.onCompletion(() -> stream.detach(emitter));
+        emitter.onError(e -> stream.detach(emitter));
+        emitter.onTimeout(() -> stream.detach(emitter));
+        return stream.attach(emitter, lastSeq);
+    }
+
+    // Every 5 seconds
+    @Scheduled(fixedDelay = 5_000)
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        streams.values().removeIf(stream -> {
+            if (stream.abandoned(now, graceMs)) stream.getTurn().cancel("disconnect");
+            return stream.expired(now, retentionMs);
+        });
+    }
+}
@@ -0,0 +1,143 @@
+package com.carebridge.service;
+
+import okhttp3.Call;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Cancellation scope of one chat turn.
+ *
+ * The transport creates it, hands it to {@link OpenAIService#runAgentLoop} and
+ * calls {@link #cancel} when the client goes away (SseEmitter completion /
+ * error / timeout, WebSocket close or an explicit stop). Cancelling aborts the
+ * in-flight OpenAI {@link Call}, interrupts forked tool tasks and the loop
+ * thread itself (so a scheduler wait ends too). {@link #close()} at the end
+ * of the loop cancels whatever is still registered, so no child task outlives
+ * the turn – the same guarantee StructuredTaskScope would give, without
+ * depending on a preview API.
+ *
+ * A forked task runs with the turn as its thread's current turn, so tools
+ * that fan out further ({@link #forkCurrent}, {@link #joinAll}) and the FHIR
+ * calls they make ({@link #trackCurrent}) belong to the same turn without
+ * passing it through every service. Outside a turn (REST endpoints, the
+ * reactive chat) these helpers fall back to plain submits and calls.
+ */
+public class ChatTurn implements AutoCloseable {
+
+    private final String         id       = UUID.randomUUID().toString();
+    private final Set<Call>      calls    = ConcurrentHashMap.newKeySet();
+    private final Set<Future<?>> children = ConcurrentHashMap.newKeySet();
+    private final AtomicReference<String> cancelReason = new AtomicReference<>();
+    /** Turn of the task running on this thread (set by fork), or unset outside a turn */
+    private static final ThreadLocal<ChatTurn> CURRENT = new ThreadLocal<>();
+    private volatile Thread  owner;
+    private volatile boolean finished;
+
+    // Where the loop was when cancelled, for the tokens-saved estimate (written by the loop thread)
+    volatile boolean inModelCall;
+    volatile long    streamedChars;
+
+    /** Binds the turn to the thread running the agent loop. */
+    void bind(Thread thread) {
+        this.owner = thread;
+        if (isCancelled()) thread.interrupt();
+    }
+
+    /**
+     * Cancels the turn; no-op once it has finished or was already cancelled.
+     *
+     * @param reason short metric tag, e.g. "disconnect", "timeout", "stop"
+     */
+    public void cancel(String reason) {
+        if (finished || !cancelReason.compareAndSet(null, reason)) return;
+        calls.forEach(Call::cancel);
+        children.forEach(f -> f.cancel(true));
+        Thread t = owner;
+        if (t != null) t.interrupt();
+    }
+
+    /** Turn id; also the X-Turn-Id of resumable SSE turns and the key of its usage report. */
+    public String  getId()        { return id; }
+
+    public boolean isCancelled()  { return cancelReason.get() != null; }
+    public String  cancelReason() { return cancelReason.get(); }
+
+    /** Registers an HTTP call; cancelled immediately if the turn already was. */
+    Call track(Call call) {
+        calls.add(call);
+        if (isCancelled() || finished) call.cancel();
+        return call;
+    }
+
+    /** Runs a child task on the executor; it is interrupted if the turn is cancelled or closes first. */
+    <T> Future<T> fork(ExecutorService executor, Callable<T> task) {
+        Future<T> future = executor.submit(() -> {
+            CURRENT.set(this);
+            try { return task.call(); }
+            finally { CURRENT.remove(); }
+        });
+        children.add(future);
+        if (isCancelled() || finished) future.cancel(true);
+        return future;
+    }
+
+    // ── Current turn (tool fan-out) ───────────────────────────────────────────
+
+    /** Forks task as a child of this thread's turn; a plain submit outside a turn. */
+    static <T> Future<T> forkCurrent(ExecutorService executor, Callable<T> task) {
+        ChatTurn turn = CURRENT.get();
+        return turn != null ? turn.fork(executor, task) : executor.submit(task);
+    }
+
+    /** Registers an HTTP call with this thread's turn, if any. */
+    static Call trackCurrent(Call call) {
+        ChatTurn turn = CURRENT.get();
+        return turn != null ? turn.track(call) : call;
+    }
+
+    /**
+     * Waits for every future in order. The wait is interruptible: if the
+     * thread is interrupted (its turn was cancelled) the remaining futures are
+     * cancelled and a CancellationException is thrown; a failed task cancels
+     * the rest and its exception is rethrown.
+     */
+    static <T> List<T> joinAll(List<? extends Future<T>> futures) {
+        List<T> results = new ArrayList<>(futures.size());
+        try {
+            for (Future<T> f : futures) results.add(f.get());
+            return results;
+        } catch (InterruptedException e) {
+            futures.forEach(f -> f.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Chat turn cancelled");
+        } catch (ExecutionException e) {
+            futures.forEach(f -> f.cancel(true));
+            throw e.getCause() instanceof RuntimeException r ? r : new IllegalStateException(e.getCause());
+        } catch (CancellationException e) {
+            futures.forEach(f -> f.cancel(true));
+            throw e;
+        }
+    }
+
+    /** Throws if the turn was cancelled, so the loop stops between steps. */
+    void checkCancelled() {
+        if (isCancelled()) throw new CancellationException("Chat turn cancelled: " + cancelReason());
+    }
+
+    /** Ends the turn: later cancel() calls are ignored and leftover children are stopped. */
+    @Override
+    public void close() {
+        owner    = null;
+        finished = true;
+        children.forEach(f -> f.cancel(true));
+        calls.forEach(Call::cancel);
+        children.clear();
+        calls.clear();
+        Thread.interrupted(); // don't leak a late interrupt into the pooled / next task
+    }
+}
@@ -0,0 +1,465 @@
+package com.carebridge.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.*;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Optional local read replica of Condition, MedicationRequest, Procedure and
+ * Encounter for the cross-patient query shapes (off unless
+ * carebridge.replica.enabled=true).
+ *
+ * Loading: NDJSON files in carebridge.replica.ndjson-dir (e.g. a $export),
+ * if set, then a paged search of every type with the service token
+ * (carebridge.replica.token), following the bundle's "next" links (or the
+ * page parameter if the server gives none). Every sync-interval-ms each type
+ * is re-queried with _lastUpdated=gt<newest lastUpdated seen>; every
+ * full-reload-hours a fresh replica is built and swapped in, which is also
+ * how deletions disappear.
+ *
+ * Answered locally (everything else, and any query while the replica is not
+ * loaded or is older than max-staleness-ms, goes to the FHIR server):
+ *
+ *   search_patient_condition / _procedure   CODE only (exact codes, comma = OR)
+ *   search_patient_medications              CODE only
+ *   search_patient_encounter                DATE / DATE2 only (eq, gt, ge, lt, le on the whole period, UTC)
+ *
+ * Encounter dates are matched against the period as the FHIR server does:
+ * gt / ge / lt / le match a period that overlaps the range above / below the
+ * date (an open period never ends), eq one that lies within the date.
+ *
+ * The replica is read with the service token, so a user's token is first
+ * checked against the FHIR server ({@link TokenVerifier}); a token the server
+ * rejects is never answered locally.
+ *
+ *   carebridge.replica.queries     {tool, outcome=local|stale|unauthorized}
+ *   carebridge.replica.sync        duration per sync {type, mode=full|incremental, outcome}
+ *   carebridge.replica.resources   live resources {type}
+ *   carebridge.replica.lag         seconds since the last successful sync
+ */
+@Component
+public class ClinicalReplica {
+
+    private static final Logger log = LoggerFactory.getLogger(ClinicalReplica.class);
+
+    private static final List<String> TYPES = List.of("Condition", "MedicationRequest", "Procedure", "Encounter");
+
+    @Value("${carebridge.replica.enabled:false}")
+    private boolean enabled;
+
+    @Value("${carebridge.fhir.base-url:https://fhirassist.rsystems.com:481}")
+    private String fhirBase;
+
+    /** Bearer token of a service account allowed to read every patient */
+    @Value("${carebridge.replica.token:}")
+    private String serviceToken;
+
+    @Value("${carebridge.replica.ndjson-dir:}")
+    private String ndjsonDir;
+
+    @Value("${carebridge.replica.page-size:500}")
+    private int pageSize;
+
+    @Value("${carebridge.replica.max-pages:10000}")
+    private int maxPages;
+
+    @Value("${carebridge.replica.max-results:200}")
+    private int maxResults;
+
+    @Value("${carebridge.replica.max-staleness-ms:600000}")
+    private long maxStalenessMs;
+
+    @Value("${carebridge.replica.full-reload-hours:24}")
+    private long fullReloadHours;
+
+    @Autowired private OkHttpClient  httpClient;
+    @Autowired private ObjectMapper  mapper;
+    @Autowired private MeterRegistry registry;
+    @Autowired private TokenVerifier tokens;
+
+    private volatile Map<String, ReplicaIndex> indexes = Map.of();
+    private volatile boolean ready;
+    private volatile long    lastSync;
+    private volatile long    lastFullLoad;
+    private volatile boolean syncing;
+
+    @jakarta.annotation.PostConstruct
+    private void init() {
+        if (!enabled) return;
+        if (serviceToken.isBlank() && ndjsonDir.isBlank()) {
+            throw new IllegalStateException("carebridge.replica.token or ndjson-dir must be set when the replica is enabled");
+        }
+        for (String type : TYPES) {
+            Gauge.builder("carebridge.replica.resources", this, r -> {
+                ReplicaIndex idx = r.indexes.get(type);
+                return idx == null ? 0 : idx.size();
+            }).tag("type", type).register(registry);
+        }
+        Gauge.builder("carebridge.replica.lag", this,
+                r -> r.lastSync == 0 ? -1 : (System.currentTimeMillis() - r.lastSync) / 1000.0).register(registry);
+        // Load in the background so startup is not held up; queries go to the server until it is ready
+        Thread.ofVirtual().name("replica-load").start(this::sync);
+    }
+
+    public boolean isReady() {
+        return enabled && ready;
+    }
+
+    // ── Queries ───────────────────────────────────────────────────────────────
+
+    /**
+     * Answers a tool call from the replica if it has one of the supported
+     * shapes and the replica is fresh; otherwise null (ask the FHIR server).
+     */
+    public String search(String toolName, JsonNode args, String fhirToken) {
+        if (!enabled || !ready) return null;
+        Query q = Query.of(toolName, args);
+        if (q == null) return null;
+        if (System.currentTimeMillis() - lastSync > maxStalenessMs) return count(toolName, "stale", null);
+        if (!tokens.verify(fhirToken)) return count(toolName, "unauthorized", null);
+
+        ReplicaIndex idx = indexes.get(q.type());
+        int[] total = new int[1];
+        List<String> resources = q.codes() != null
+                ? idx.byCodes(q.codes(), maxResults, total)
+                : idx.byDate(q.startFrom(), q.startTo(), q.endAfter(), q.endAtMost(), maxResults, total);
+        return count(toolName, "local", bundle(resources, total[0]));
+    }
+
+    /**
+     * Distinct numeric patient ids with any of codes in the given type (e.g. a
+     * cohort by condition); null if the replica cannot answer for this token.
+     */
+    public int[] patientsWithCodes(String type, Collection<String> codes, String fhirToken) {
+        if (!enabled || !ready || System.currentTimeMillis() - lastSync > maxStalenessMs) return null;
+        if (!tokens.verify(fhirToken)) return null;
+        ReplicaIndex idx = indexes.get(type);
+        return idx == null ? null : idx.patientsWithCodes(codes);
+    }
+
+    private String count(String toolName, String outcome, String result) {
+        Counter.builder("carebridge.replica.queries").tag("tool", toolName).tag("outcome", outcome)
+                .register(registry).increment();
+        return result;
+    }
+
+    private String bundle(List<String> resources, int total) {
+        StringBuilder sb = new StringBuilder(64 + resources.stream().mapToInt(String::length).sum()
+                + resources.size() * 16);
+        sb.append("{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"total\":").append(total)
+          .append(",\"source\":\"replica\",\"truncated\":").append(total > resources.size())
+          .append(",\"entry\":[");
+        for (int i = 0; i < resources.size(); i++) {
+            if (i > 0) sb.append(',');
+            sb.append("{\"resource\":").append(resources.get(i)).append('}');
+        }
+        return sb.append("]}").toString();
+    }
+
+    // ── Sync ──────────────────────────────────────────────────────────────────
+
+    /** Incremental sync; a full reload when none has succeeded yet or the last one is too old. */
+    @Scheduled(fixedDelayString = "${carebridge.replica.sync-interval-ms:60000}",
+               initialDelayString = "${carebridge.replica.sync-interval-ms:60000}")
+    public void sync() {
+        if (!enabled || syncing) return;
+        syncing = true;
+        try {
+            boolean full = !ready
+                    || System.currentTimeMillis() - lastFullLoad > Duration.ofHours(fullReloadHours).toMillis();
+            if (full) fullLoad();
+            else incremental();
+        } catch (Exception e) {
+            log.warn("Clinical replica: sync failed: {}", e.getMessage());
+        } finally {
+            syncing = false;
+        }
+    }
+
+    private void fullLoad() throws IOException {
+        long start = System.currentTimeMillis();
+        Map<String, ReplicaIndex> fresh = new HashMap<>();
+        for (String type : TYPES) fresh.put(type, new ReplicaIndex());
+        if (!ndjsonDir.isBlank()) loadNdjson(Paths.get(ndjsonDir), fresh);
+        if (!serviceToken.isBlank()) {
+            for (String type : TYPES) {
+                ReplicaIndex idx = fresh.get(type);
+                Instant since = idx.highWater(); // NDJSON seed: only fetch what changed after it
+                timed(type, "full", () -> loadPages(type, idx, since));
+            }
+        }
+        indexes      = Map.copyOf(fresh);
+        lastSync     = start;
+        lastFullLoad = start;
+        ready        = true;
+        log.info("Clinical replica: loaded {} in {} ms", sizes(), System.currentTimeMillis() - start);
+    }
+
+    private void incremental() throws IOException {
+        if (serviceToken.isBlank()) {
+            lastSync = System.currentTimeMillis(); // NDJSON-only replica: nothing to poll
+            return;
+        }
+        long start = System.currentTimeMillis();
+        for (String type : TYPES) {
+            ReplicaIndex idx = indexes.get(type);
+            timed(type, "incremental", () -> loadPages(type, idx, idx.highWater()));
+        }
+        lastSync = start;
+    }
+
+    private interface IoTask { void run() throws IOException; }
+
+    private void timed(String type, String mode, IoTask task) throws IOException {
+        Timer.Sample sample = Timer.start(registry);
+        String outcome = "error";
+        try {
+            task.run();
+            outcome = "ok";
+        } finally {
+            sample.stop(Timer.builder("carebridge.replica.sync").tag("type", type).tag("mode", mode)
+                    .tag("outcome", outcome).register(registry));
+        }
+    }
+
+    /** Paged search of one type (optionally _lastUpdated=gt since), upserting every page. */
+    private void loadPages(String type, ReplicaIndex idx, Instant since) throws IOException {
+        HttpUrl.Builder first = Objects.requireNonNull(HttpUrl.parse(fhirBase + "/baseR4/" + type)).newBuilder()
+                .addQueryParameter("_count", Integer.toString(pageSize));
+        // Overlap by a second: lastUpdated precision varies, and re-reading a version is harmless
+        if (since != null) first.addQueryParameter("_lastUpdated", "gt" + since.minusSeconds(1));
+        HttpUrl firstUrl = first.build();
+
+        String url = firstUrl.toString();
+        String previousFirstId = null;
+        for (int page = 0; url != null && page < maxPages; page++) {
+            JsonNode bundle = get(url);
+            JsonNode entries = bundle.path("entry");
+            if (!entries.isArray() || entries.isEmpty()) break;
+            String firstId = entries.path(0).path("resource").path("id").asText("");
+            if (firstId.equals(previousFirstId)) break; // the server ignored the page parameter
+            previousFirstId = firstId;
+
+            List<ReplicaIndex.Doc> docs = new ArrayList<>(entries.size());
+            for (JsonNode e : entries) {
+                ReplicaIndex.Doc doc = doc(type, e.path("resource"));
+                if (doc != null) docs.add(doc);
+            }
+            idx.upsert(docs);
+
+            url = nextLink(bundle);
+            if (url == null && entries.size() >= pageSize) {
+                url = firstUrl.newBuilder().setQueryParameter("page", Integer.toString(page + 1)).build().toString();
+            }
+        }
+    }
+
+    private void loadNdjson(Path dir, Map<String, ReplicaIndex> target) throws IOException {
+        List<Path> files;
+        try (Stream<Path> s = Files.list(dir)) {
+            files = s.filter(p -> p.getFileName().toString().endsWith(".ndjson")).sorted().toList();
+        }
+        for (Path file : files) {
+            Map<String, List<ReplicaIndex.Doc>> batch = new HashMap<>();
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isBlank()) continue;
+                    JsonNode res = mapper.readTree(line);
+                    String type = res.path("resourceType").asText("");
+                    ReplicaIndex.Doc doc = target.containsKey(type) ? doc(type, res) : null;
+                    if (doc == null) continue;
+                    List<ReplicaIndex.Doc> docs = batch.computeIfAbsent(type, k -> new ArrayList<>());
+                    docs.add(doc);
+                    if (docs.size() >= pageSize) {
+                        target.get(type).upsert(docs);
+                        batch.put(type, new ArrayList<>());
+                    }
+                }
+            }
+            batch.forEach((type, docs) -> target.get(type).upsert(docs));
+        }
+    }
+
+    private JsonNode get(String url) throws IOException {
+        Request request = new Request.Builder().url(url)
+                .header("Authorization", "Bearer " + serviceToken)
+                .header("Accept", "application/fhir+json")
+                .get().build();
+        try (Response response = httpClient.newCall(request).execute()) {
+            if (!response.isSuccessful()) throw new IOException("HTTP " + response.code() + " for " + url);
+            return mapper.readTree(response.body() != null ? response.body().string() : "{}");
+        }
+    }
+
+    private static String nextLink(JsonNode bundle) {
+        for (JsonNode link : bundle.path("link")) {
+            if ("next".equals(link.path("relation").asText())) return link.path("url").asText(null);
+        }
+        return null;
+    }
+
+    private String sizes() {
+        StringBuilder sb = new StringBuilder();
+        indexes.forEach((type, idx) -> sb.append(sb.isEmpty() ? "" : ", ").append(idx.size()).append(' ').append(type));
+        return sb.toString();
+    }
+
+    // ── Extraction ────────────────────────────────────────────────────────────
+
+    /** What each type is indexed by: codes (condition / procedure / drug) and a date, or an Encounter's period. */
+    private ReplicaIndex.Doc doc(String type, JsonNode res) {
+        String id = res.path("id").asText("");
+        if (id.isEmpty()) return null;
+        JsonNode concept = switch (type) {
+            case "MedicationRequest" -> res.path("medicationCodeableConcept");
+            case "Encounter"         -> null;
+            default                  -> res.path("code");
+        };
+        Set<String> codes = new HashSet<>();
+        if (concept != null) {
+            for (JsonNode c : concept.path("coding")) {
+                if (c.hasNonNull("code")) codes.add(c.path("code").asText());
+            }
+        }
+        String when = switch (type) {
+            case "Condition"         -> res.path("onsetDateTime").asText(res.path("recordedDate").asText(""));
+            case "MedicationRequest" -> res.path("authoredOn").asText("");
+            case "Procedure"         -> res.path("performedDateTime").asText(res.path("performedPeriod").path("start").asText(""));
+            default                  -> res.path("period").path("start").asText("");
+        };
+        long start = epochMillis(when);
+        long end   = start;
+        if (type.equals("Encounter")) {
+            // [start, end) of the period; a missing bound is open on that side
+            DateRange periodEnd = DateRange.parse(res.path("period").path("end").asText(""));
+            end = periodEnd != null ? periodEnd.to() : Long.MAX_VALUE;
+            if (start == ReplicaIndex.NO_DATE && periodEnd != null) start = Long.MIN_VALUE + 1;
+        }
+        Instant lastUpdated = null;
+        try { lastUpdated = OffsetDateTime.parse(res.path("meta").path("lastUpdated").asText()).toInstant(); }
+        catch (DateTimeParseException ignored) { /* no usable lastUpdated */ }
+
+        return new ReplicaIndex.Doc(id, res.toString(), codes, patientId(res.path("subject").path("reference").asText("")),
+                start, end, lastUpdated);
+    }
+
+    private static int patientId(String reference) {
+        String id = reference.startsWith("Patient/") ? reference.substring("Patient/".length()) : reference;
+        try { return Integer.parseInt(id); }
+        catch (NumberFormatException e) { return -1; }
+    }
+
+    private static long epochMillis(String date) {
+        DateRange r = DateRange.parse(date);
+        return r == null ? ReplicaIndex.NO_DATE : r.from();
+    }
+
+    // ── Query shapes ──────────────────────────────────────────────────────────
+
+    /**
+     * A query the replica can answer: by codes, or by period bounds
+     * (startFrom <= start < startTo and endAfter < end <= endAtMost).
+     */
+    private record Query(String type, Set<String> codes, long startFrom, long startTo, long endAfter, long endAtMost) {
+
+        static Query of(String toolName, JsonNode a) {
+            return switch (toolName) {
+                case "search_patient_condition" ->
+                        onlyCode(a, "SUBJECT", "ENCOUNTER") ? byCode("Condition", a) : null;
+                case "search_patient_procedure" ->
+                        onlyCode(a, "SUBJECT", "ENCOUNTER") ? byCode("Procedure", a) : null;
+                case "search_patient_medications" ->
+                        onlyCode(a, "SUBJECT", "PRESCRIPTIONID") ? byCode("MedicationRequest", a) : null;
+                case "search_patient_encounter" -> blank(a, "SUBJECT") ? byDate(a) : null;
+                default -> null;
+            };
+        }
+
+        private static boolean onlyCode(JsonNode a, String... absent) {
+            for (String field : absent) if (!blank(a, field)) return false;
+            return !blank(a, "CODE");
+        }
+
+        private static Query byCode(String type, JsonNode a) {
+            // Only exact tokens; ranges, modifiers and system|code go to the server
+            Set<String> codes = QuerySubsumption.exactCodes(a.path("CODE").asText());
+            return codes == null ? null : new Query(type, codes, 0, 0, 0, 0);
+        }
+
+        /**
+         * DATE / DATE2 with FHIR prefixes as period bounds, intersected; null if
+         * either is not understood. gt / ge: the period ends after the date;
+         * lt / le: it starts before it; eq: it lies within the date.
+         */
+        private static Query byDate(JsonNode a) {
+            long startFrom = Long.MIN_VALUE + 1, startTo = Long.MAX_VALUE;
+            long endAfter  = Long.MIN_VALUE,     endAtMost = Long.MAX_VALUE;
+            boolean any = false;
+            for (String field : List.of("DATE", "DATE2")) {
+                if (blank(a, field)) continue;
+                String v = a.path(field).asText().trim();
+                String prefix = v.length() > 2 && Character.isLetter(v.charAt(0)) ? v.substring(0, 2) : "eq";
+                DateRange r = DateRange.parse(prefix.equals("eq") && Character.isDigit(v.charAt(0)) ? v : v.substring(2));
+                if (r == null) return null;
+                switch (prefix) {
+                    case "eq" -> { startFrom = Math.max(startFrom, r.from()); endAtMost = Math.min(endAtMost, r.to()); }
+                    case "gt" -> endAfter = Math.max(endAfter, r.to());
+                    case "ge" -> endAfter = Math.max(endAfter, r.from());
+                    case "lt" -> startTo  = Math.min(startTo, r.from());
+                    case "le" -> startTo  = Math.min(startTo, r.to());
+                    default   -> { return null; }
+                }
+                any = true;
+            }
+            return any ? new Query("Encounter", null, startFrom, startTo, endAfter, endAtMost) : null;
+        }
+
+        private static boolean blank(JsonNode a, String field) {
+            JsonNode n = a.path(field);
+            return n.isMissingNode() || n.isNull() || n.asText().isBlank();
+        }
+    }
+
+    /** The instant range a FHIR date or dateTime covers: a whole day (UTC) for a date, one millisecond otherwise. */
+    private record DateRange(long from, long to) {
+        static DateRange parse(String v) {
+            if (v == null || v.isBlank()) return null;
+            try {
+                if (v.length() == 10) {
+                    long day = LocalDate.parse(v).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+                    return new DateRange(day, day + Duration.ofDays(1).toMillis());
+                }
+                long t = v.length() == 19 ? LocalDateTime.parse(v).toInstant(ZoneOffset.UTC).toEpochMilli()
+                                          : OffsetDateTime.parse(v).toInstant().toEpochMilli();
+                return new DateRange(t, t + 1);
+            } catch (DateTimeParseException e) {
+                return null;
+            }
+        }
+    }
+}
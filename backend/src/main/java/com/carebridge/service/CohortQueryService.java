@@ -0,0 +1,429 @@
+package com.carebridge.service;
+
+import com.carebridge.model.ObservationRange;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * One question over many patients ("which of these diabetic patients have
+ * high glucose") as a single tool call.
+ *
+ * The cohort is PATIENTS (ids) or everyone with CONDITION_CODE – resolved
+ * from {@link ClinicalReplica} when it is enabled, else with one condition
+ * search. The per-patient query (RESOURCE + CODE) then runs for every
+ * patient through {@link FhirService}, so each response is cached per tool
+ * as usual, with at most carebridge.cohort.parallelism calls in flight.
+ * Results are reduced server-side and only the aggregate goes back to the
+ * model:
+ *
+ *   observations   latest value per patient, classified Low / Normal / High
+ *                  against {@link ObservationRangeTable}; counts per class,
+ *                  min / max / mean of the latest values, and the patients
+ *                  matching FILTER (abnormal | high | low | normal | all)
+ *   other types    patients with / without a match (FILTER with | without),
+ *                  with their match count and most recent match; encounter
+ *                  takes no CODE (the Encounter search has no code parameter)
+ *
+ * Progress goes to the status callback (status events on the chat stream)
+ * as patients complete. The aggregate is cached under "cohort_query::<args>".
+ */
+@Service
+public class CohortQueryService {
+
+    static final String TOOL = "cohort_query";
+
+    /** Minimum time between two progress updates */
+    private static final long STATUS_INTERVAL_MS = 250;
+
+    /** Per-patient errors listed in the result; the rest are only counted */
+    private static final int MAX_LISTED_ERRORS = 10;
+
+    /** RESOURCE → FHIR search tool, and the date / name fields of its resources */
+    private static final Map<String, String[]> RESOURCES = Map.of(
+            "condition",   new String[] { "search_patient_condition",   "onsetDateTime",     "code" },
+            "procedure",   new String[] { "search_patient_procedure",   "performedDateTime", "code" },
+            "medications", new String[] { "search_patient_medications", "authoredOn",        "medicationCodeableConcept" },
+            "encounter",   new String[] { "search_patient_encounter",   "period",            "type" });
+
+    @Value("${carebridge.cohort.max-patients:100}")
+    private int maxPatients;
+
+    @Value("${carebridge.cohort.parallelism:8}")
+    private int parallelism;
+
+    @Autowired private FhirService                 fhirService;
+    @Autowired private FhirCacheService            cache;
+    @Autowired private AuditLog                    audit;
+    @Autowired private ClinicalReplica             replica;
+    @Autowired private ObservationAnalyticsService observationAnalytics;
+    @Autowired private ObservationRangeTable       ranges;
+    @Autowired private ObjectMapper                mapper;
+
+    /** Virtual threads for the per-patient calls (fan-out bounded by a semaphore per query) */
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    /**
+     * Tool entry point.
+     *
+     * @param status receives {tool, message, completed, total} progress updates
+     */
+    public String query(JsonNode args, String fhirToken, Consumer<Map<String, ?>> status) {
+        String resource  = args.path("RESOURCE").asText("").trim().toLowerCase(Locale.ROOT);
+        if (resource.isEmpty()) resource = "observations";
+        String code      = args.path("CODE").asText("").trim();
+        String condition = args.path("CONDITION_CODE").asText("").trim();
+        String filter    = args.path("FILTER").asText("").trim().toLowerCase(Locale.ROOT);
+        List<String> patients = ids(args.path("PATIENTS").asText(""));
+
+        if (!resource.equals("observations") && !RESOURCES.containsKey(resource)) {
+            return error("RESOURCE must be one of observations, condition, procedure, medications, encounter");
+        }
+        if (patients.isEmpty() && condition.isEmpty()) {
+            return error("PATIENTS or CONDITION_CODE is required for cohort_query");
+        }
+        if (resource.equals("observations")) {
+            if (code.isEmpty()) return error("CODE (LOINC code or observation name) is required for observations");
+            if (!code.matches("[0-9]+-[0-9]")) {
+                String resolved = ranges.codeForName(code);
+                if (resolved == null) return error("Unknown observation: " + code);
+                code = resolved;
+            }
+            if (filter.isEmpty()) filter = "abnormal";
+            if (!List.of("abnormal", "high", "low", "normal", "all").contains(filter)) {
+                return error("FILTER for observations must be abnormal, high, low, normal or all");
+            }
+        } else {
+            // Encounter searches have no code parameter, so a CODE would silently match every encounter
+            if (resource.equals("encounter") && !code.isEmpty()) {
+                return error("CODE is not supported for RESOURCE=encounter; leave it empty to check for any encounter");
+            }
+            if (filter.isEmpty()) filter = "with";
+            if (!filter.equals("with") && !filter.equals("without")) {
+                return error("FILTER for " + resource + " must be with or without");
+            }
+        }
+
+        String cacheKey = TOOL + "::" + String.join(",", patients) + "|" + condition + "|" + resource
+                + "|" + code + "|" + filter;
+        String cached = cache.get(cacheKey);
+        if (cached != null) {
+            audit.record(fhirToken, TOOL, "", cacheKey, cached, true);
+            return cached;
+        }
+
+        ObjectNode out = mapper.createObjectNode();
+        out.put("resource", resource);
+        if (!code.isEmpty()) out.put("code", code);
+        out.put("filter", filter);
+
+        // ── Cohort ──
+        if (patients.isEmpty()) {
+            status.accept(Map.of("tool", TOOL, "message", "Finding patients with condition " + condition));
+            Cohort cohort = byCondition(condition, fhirToken);
+            if (cohort.error() != null) return error("Could not resolve CONDITION_CODE: " + cohort.error());
+            patients = cohort.patients();
+            ObjectNode c = out.putObject("cohort");
+            c.put("conditionCode", condition);
+            c.put("source", cohort.source());
+            c.put("patients", patients.size());
+            if (cohort.incomplete()) c.put("incomplete", true); // more matches than one search page returned
+        }
+        if (patients.size() > maxPatients) {
+            out.put("patientsOmitted", patients.size() - maxPatients);
+            patients = patients.subList(0, maxPatients);
+        }
+        out.put("patients", patients.size());
+
+        // ── Fan-out ──
+        boolean observations = resource.equals("observations");
+        String finalCode = code;
+        String[] spec = RESOURCES.get(resource);
+        List<Result> results;
+        try {
+            results = fanOut(patients, fhirToken, status, subject -> observations
+                    ? observation(subject, finalCode, fhirToken)
+                    : match(subject, spec, finalCode, fhirToken));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return error("cohort_query was cancelled");
+        }
+
+        // ── Aggregate ──
+        if (observations) aggregateObservations(out, code, filter, results);
+        else aggregateMatches(out, filter, results);
+
+        int errors = 0;
+        ArrayNode listed = mapper.createArrayNode();
+        for (Result r : results) {
+            if (r.error() == null) continue;
+            if (errors++ < MAX_LISTED_ERRORS) listed.addObject().put("patient", r.patient()).put("error", r.error());
+        }
+        if (errors > 0) {
+            out.put("errorCount", errors);
+            out.set("errors", listed);
+        }
+        String result = out.toString();
+        // A partial aggregate is returned but not cached, so the next call retries the failed patients
+        if (errors == 0) cache.put(cacheKey, result);
+        return result;
+    }
+
+    // ── Cohort resolution ─────────────────────────────────────────────────────
+
+    private record Cohort(List<String> patients, String source, boolean incomplete, String error) {}
+
+    private Cohort byCondition(String condition, String fhirToken) {
+        List<String> codes = Arrays.stream(condition.split(",")).map(String::trim).filter(c -> !c.isEmpty()).toList();
+        int[] local = replica.patientsWithCodes("Condition", codes, fhirToken);
+        if (local != null) {
+            audit.record(fhirToken, TOOL, "", "Condition?code=" + condition, "{\"total\":" + local.length + "}", true);
+            return new Cohort(Arrays.stream(local).mapToObj(Integer::toString).toList(), "replica", false, null);
+        }
+
+        JsonNode bundle = readTree(fhirService.executeTool("search_patient_condition",
+                mapper.createObjectNode().put("CODE", condition), fhirToken));
+        String err = errorOf(bundle);
+        if (err != null) return new Cohort(List.of(), "fhir", false, err);
+        Set<String> ids = new TreeSet<>(NUMERIC_FIRST);
+        for (JsonNode e : bundle.path("entry")) {
+            String ref = e.path("resource").path("subject").path("reference").asText("");
+            if (ref.startsWith("Patient/")) ids.add(ref.substring("Patient/".length()));
+        }
+        boolean incomplete = bundle.path("total").asInt(0) > bundle.path("entry").size();
+        return new Cohort(new ArrayList<>(ids), "fhir", incomplete, null);
+    }
+
+    // ── Fan-out ───────────────────────────────────────────────────────────────
+
+    /** One patient's outcome: a value (observations) or match count, or an error. */
+    private record Result(String patient, ObjectNode item, int matches, String error) {}
+
+    private interface PatientQuery { Result run(String subject); }
+
+    /**
+     * Runs query for every patient, at most parallelism at a time, reporting
+     * progress as they complete. Interruption (cancelled turn) cancels the rest.
+     */
+    private List<Result> fanOut(List<String> patients, String fhirToken, Consumer<Map<String, ?>> status,
+                                PatientQuery query) throws InterruptedException {
+        Semaphore permits = new Semaphore(Math.max(1, parallelism));
+        // Tasks are forked from the turn, so their FHIR calls are cancelled with it
+        CompletionService<Result> done = new ExecutorCompletionService<>(
+                task -> ChatTurn.forkCurrent(executor, Executors.callable(task)));
+        List<Future<Result>> futures = new ArrayList<>(patients.size());
+        for (String subject : patients) {
+            futures.add(done.submit(() -> {
+                permits.acquire();
+                try { return query.run(subject); }
+                catch (Exception e) { return new Result(subject, null, 0, String.valueOf(e.getMessage())); }
+                finally { permits.release(); }
+            }));
+        }
+
+        Map<String, Result> bySubject = new HashMap<>();
+        long lastStatus = 0;
+        try {
+            for (int completed = 1; completed <= patients.size(); completed++) {
+                Result r = done.take().get();
+                bySubject.put(r.patient(), r);
+                long now = System.currentTimeMillis();
+                if (now - lastStatus >= STATUS_INTERVAL_MS || completed == patients.size()) {
+                    lastStatus = now;
+                    status.accept(Map.of("tool", TOOL, "completed", completed, "total", patients.size(),
+                            "message", "Checked " + completed + " of " + patients.size() + " patients"));
+                }
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause()); // not reached: tasks catch their own failures
+        } finally {
+            for (Future<Result> f : futures) f.cancel(true);
+        }
+        return patients.stream().map(bySubject::get).toList();
+    }
+
+    /** Latest value of code for one patient, classified against its normal range. */
+    private Result observation(String subject, String code, String fhirToken) {
+        ObjectNode query = mapper.createObjectNode();
+        query.put("SUBJECT", subject);
+        query.put("CODE", code);
+        query.put("all_pages", true);
+        JsonNode bundle = readTree(fhirService.executeTool("search_patient_observations", query, fhirToken));
+        String err = errorOf(bundle);
+        if (err != null) return new Result(subject, null, 0, err);
+
+        ObjectNode summary = observationAnalytics.summarise(code, bundle);
+        if (summary.path("count").asInt(0) == 0) return new Result(subject, null, 0, null);
+        JsonNode latest = summary.path("latest");
+        ObjectNode item = mapper.createObjectNode();
+        item.put("patient", subject);
+        item.set("value", latest.path("value"));
+        item.put("date", latest.path("date").asText(""));
+        if (latest.has("classification")) item.put("classification", latest.path("classification").asText());
+        if (summary.has("trend")) item.put("trend", summary.path("trend").asText());
+        item.put("count", summary.path("count").asInt());
+        return new Result(subject, item, summary.path("count").asInt(), null);
+    }
+
+    /** Resources of one patient matching code (or all of them), with the most recent one. */
+    private Result match(String subject, String[] spec, String code, String fhirToken) {
+        ObjectNode query = mapper.createObjectNode();
+        query.put("SUBJECT", subject);
+        if (!code.isEmpty()) query.put("CODE", code);
+        JsonNode bundle = readTree(fhirService.executeTool(spec[0], query, fhirToken));
+        String err = errorOf(bundle);
+        if (err != null) return new Result(subject, null, 0, err);
+
+        JsonNode entries = bundle.path("entry");
+        int count = bundle.path("total").asInt(entries.size());
+        if (count == 0 || entries.isEmpty()) return new Result(subject, null, 0, null);
+
+        JsonNode newest = null;
+        String newestDate = "";
+        for (JsonNode e : entries) {
+            String date = date(e.path("resource"), spec[1]);
+            if (newest == null || date.compareTo(newestDate) > 0) {
+                newest     = e.path("resource");
+                newestDate = date;
+            }
+        }
+        ObjectNode item = mapper.createObjectNode();
+        item.put("patient", subject);
+        item.put("count", count);
+        ObjectNode latest = item.putObject("latest");
+        latest.put("name", conceptName(newest.path(spec[2])));
+        if (!newestDate.isEmpty()) latest.put("date", newestDate);
+        return new Result(subject, item, count, null);
+    }
+
+    // ── Aggregation ───────────────────────────────────────────────────────────
+
+    private void aggregateObservations(ObjectNode out, String code, String filter, List<Result> results) {
+        ObservationRange range = ranges.byCode(code);
+        out.put("name", ranges.nameForCode(code));
+        if (range != null) {
+            out.put("unit", range.unit());
+            out.put("normalRange", range.normalRange());
+        }
+
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        for (String c : List.of("High", "Normal", "Low", "unclassified", "noData")) counts.put(c, 0);
+        double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY, sum = 0;
+        int withValue = 0;
+        List<ObjectNode> matched = new ArrayList<>();
+        for (Result r : results) {
+            if (r.error() != null) continue;
+            if (r.item() == null) { counts.merge("noData", 1, Integer::sum); continue; }
+            String cls = r.item().path("classification").asText("unclassified");
+            counts.merge(cls, 1, Integer::sum);
+            double v = r.item().path("value").asDouble();
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+            sum += v;
+            withValue++;
+            boolean keep = switch (filter) {
+                case "abnormal" -> cls.equals("High") || cls.equals("Low");
+                case "all"      -> true;
+                default         -> cls.equalsIgnoreCase(filter);
+            };
+            if (keep) matched.add(r.item());
+        }
+
+        ObjectNode c = out.putObject("counts");
+        counts.forEach(c::put);
+        if (withValue > 0) {
+            ObjectNode latest = out.putObject("latestValues");
+            latest.put("min", round(min));
+            latest.put("max", round(max));
+            latest.put("mean", round(sum / withValue));
+        }
+        // Furthest from normal first: highest values for high / abnormal / all, lowest for low
+        Comparator<ObjectNode> byValue = Comparator.comparingDouble(n -> n.path("value").asDouble());
+        matched.sort(filter.equals("low") ? byValue : byValue.reversed());
+        out.put("matchedCount", matched.size());
+        ArrayNode list = out.putArray("matched");
+        matched.forEach(list::add);
+    }
+
+    private void aggregateMatches(ObjectNode out, String filter, List<Result> results) {
+        int with = 0, without = 0;
+        ArrayNode list = mapper.createArrayNode();
+        for (Result r : results) {
+            if (r.error() != null) continue;
+            if (r.matches() > 0) {
+                with++;
+                if (filter.equals("with")) list.add(r.item());
+            } else {
+                without++;
+                if (filter.equals("without")) list.addObject().put("patient", r.patient());
+            }
+        }
+        ObjectNode c = out.putObject("counts");
+        c.put("with", with);
+        c.put("without", without);
+        out.put("matchedCount", list.size());
+        out.set("matched", list);
+    }
+
+    // ── Helpers ───────────────────────────────────────────────────────────────
+
+    /** Numeric ids in numeric order, anything else after them */
+    private static final Comparator<String> NUMERIC_FIRST = Comparator
+            .comparing((String s) -> !s.matches("\\d{1,18}"))
+            .thenComparing(s -> s.matches("\\d{1,18}") ? Long.parseLong(s) : 0L)
+            .thenComparing(Comparator.naturalOrder());
+
+    /** Distinct patient ids from a comma-separated list ("Patient/" prefixes stripped), in numeric order. */
+    private static List<String> ids(String csv) {
+        Set<String> ids = new TreeSet<>(NUMERIC_FIRST);
+        for (String id : csv.split(",")) {
+            id = id.trim();
+            if (id.startsWith("Patient/")) id = id.substring("Patient/".length());
+            if (id.matches("[A-Za-z0-9\\-.]{1,64}")) ids.add(id);
+        }
+        return new ArrayList<>(ids);
+    }
+
+    private static String date(JsonNode res, String field) {
+        JsonNode n = res.path(field);
+        return n.isObject() ? n.path("start").asText("") : n.asText("");
+    }
+
+    private static String conceptName(JsonNode concept) {
+        if (concept.isArray()) concept = concept.path(0);
+        if (concept.hasNonNull("text")) return concept.path("text").asText();
+        JsonNode coding = concept.path("coding").path(0);
+        return coding.path("display").asText(coding.path("code").asText(""));
+    }
+
+    private static String errorOf(JsonNode node) {
+        if (node == null || !node.isObject()) return "Unparsable FHIR response"; // also an empty error body
+        if (node.has("error")) return node.path("error").asText();
+        if ("OperationOutcome".equals(node.path("resourceType").asText())) {
+            JsonNode issue = node.path("issue").path(0);
+            return issue.path("diagnostics").asText(issue.path("details").path("text").asText("OperationOutcome"));
+        }
+        return null;
+    }
+
+    private String error(String message) {
+        return mapper.createObjectNode().put("error", message).toString();
+    }
+
+    private JsonNode readTree(String json) {
+        try { return mapper.readTree(json); }
+        catch (Exception e) { return null; }
+    }
+
+    private static double round(double d) {
+        return Math.round(d * 100.0) / 100.0;
+    }
+}
@@ -1,44 +1,284 @@
 package com.carebridge.service;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * In-memory FHIR response cache with a 5-minute TTL.
+ * In-memory FHIR response cache with per-tool TTL policies.
  * Reduces repeated FHIR calls for the same resource within a session.
- * A background task evicts stale entries every 60 seconds.
+ *
+ * Policies (see {@link Policy}) are resolved from the tool name in the cache
+ * key ("toolName::url"): demographics live long, observations short. Each
+ * entry is scheduled on a {@link DelayQueue} when it is stored; a background
+ * task drains only the entries that are actually due instead of scanning
+ * the whole map.
+ *
+ * Refresh-ahead: a hit on an entry that is past its policy's refresh point
+ * and has been read at least minHits times is served from cache and flagged
+ * (once) so FhirService re-fetches it in the background with the caller's
+ * token, before anyone has to wait for an expired entry.
+ *
+ * When enabled, {@link FhirDiskCache} acts as an L2 tier: every put is also
+ * appended to disk, and heap misses are served (and promoted) from disk, so
+ * the cache is warm again right after a restart. Freshness is always the
+ * policy TTL counted from the original fetch, whichever tier serves it, and
+ * disk entries expire with that policy. Disk records keep the validators,
+ * so an entry read back after a restart can still be revalidated.
+ *
+ * Entries carry their HTTP validators (ETag / Last-Modified, or the
+ * bundle's meta.versionId / meta.lastUpdated). Past the TTL an entry with
+ * validators is kept as "stale" for the revalidation window, so FhirService
+ * can send a conditional GET and, on 304, extend it without a body transfer.
+ *
+ *   carebridge.fhir.revalidations              conditional GETs   {outcome=not_modified|modified}
+ *   carebridge.fhir.revalidation.bytes.saved   bodies not re-downloaded on 304
+ *   carebridge.fhir.revalidation.hit.ratio     not_modified / all revalidations
+ *   carebridge.fhir.cache.refresh.ahead        background refreshes triggered  {tool}
  */
 @Service
 public class FhirCacheService {
 
-    private static final long TTL_MS = 5 * 60 * 1_000L; // 5 minutes
+    /** Built-in TTLs per tool; overridable with carebridge.cache.policy.<tool>.ttl-ms */
+    private static final Map<String, Long> DEFAULT_TTL_MS = Map.of(
+            "search_fhir_patient",         60 * 60 * 1_000L, // demographics barely change
+            "search_patient_condition",    15 * 60 * 1_000L,
+            "search_patient_procedure",    15 * 60 * 1_000L,
+            "search_patient_encounter",    10 * 60 * 1_000L,
+            "search_patient_medications",   5 * 60 * 1_000L,
+            "search_patient_observations",  2 * 60 * 1_000L, // new vitals / labs arrive often
+            "get_patient_snapshot",         2 * 60 * 1_000L, // as fresh as its observations
+            "cohort_query",                 2 * 60 * 1_000L
+    );
 
-    private final ConcurrentHashMap<String, CachedEntry> cache = new ConcurrentHashMap<>();
+    @Value("${carebridge.cache.default-ttl-ms:300000}")
+    private long defaultTtlMs;
+
+    /** Fraction of the TTL after which a hot entry is refreshed in the background (>= 1 disables) */
+    @Value("${carebridge.cache.refresh-ahead:0.8}")
+    private double defaultRefreshAhead;
+
+    /** Reads needed before an entry counts as hot enough to refresh ahead */
+    @Value("${carebridge.cache.refresh-ahead-min-hits:2}")
+    private int refreshAheadMinHits;
+
+    /** How long past the TTL an entry with validators is kept for a conditional GET */
+    @Value("${carebridge.cache.revalidate-window-ms:1800000}")
+    private long revalidateWindowMs;
+
+    @Autowired private FhirDiskCache diskCache;
+    @Autowired private MeterRegistry registry;
+    @Autowired private Environment   env;
+
+    private final ConcurrentHashMap<String, CachedEntry> cache    = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Policy>      policies = new ConcurrentHashMap<>();
+    private final DelayQueue<Expiry>                     expiries = new DelayQueue<>();
+
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong modified    = new AtomicLong();
+    private Counter bytesSaved;
+    private Counter revalidationsNotModified;
+    private Counter revalidationsModified;
+    /** Refresh-ahead counters by tool, registered on first use */
+    private final Map<String, Counter> refreshAheadByTool = new ConcurrentHashMap<>();
+
+    @jakarta.annotation.PostConstruct
+    private void initMetrics() {
+        bytesSaved = Counter.builder("carebridge.fhir.revalidation.bytes.saved").baseUnit("bytes").register(registry);
+        revalidationsNotModified = Counter.builder("carebridge.fhir.revalidations").tag("outcome", "not_modified").register(registry);
+        revalidationsModified    = Counter.builder("carebridge.fhir.revalidations").tag("outcome", "modified").register(registry);
+        Gauge.builder("carebridge.fhir.revalidation.hit.ratio", this, c -> {
+            long hits = c.notModified.get(), total = hits + c.modified.get();
+            return total == 0 ? 0 : (double) hits / total;
+        }).register(registry);
+    }
 
     /** Returns cached value for key if present and not expired; otherwise null. */
     public String get(String key) {
+        Lookup hit = lookup(key, false);
+        return hit != null && hit.fresh() ? hit.value() : null;
+    }
+
+    /**
+     * Like {@link #get} but also returns an expired entry that can still be
+     * revalidated (fresh == false); null if there is nothing usable.
+     * A fresh result with refreshDue set must be refreshed by the caller.
+     */
+    public Lookup lookup(String key) {
+        return lookup(key, true);
+    }
+
+    private Lookup lookup(String key, boolean refreshAhead) {
+        long now = System.currentTimeMillis();
+        Policy policy = policyFor(key);
         CachedEntry entry = cache.get(key);
-        if (entry == null) return null;
-        if (System.currentTimeMillis() - entry.timestamp() > TTL_MS) {
-            cache.remove(key);
-            return null;
+        if (entry != null && now - entry.timestamp <= policy.ttlMs()) {
+            int hits = entry.hits.incrementAndGet();
+            boolean refreshDue = refreshAhead
+                    && now - entry.timestamp > policy.refreshAtMs()
+                    && hits >= refreshAheadMinHits
+                    && entry.refreshing.compareAndSet(false, true);
+            if (refreshDue) {
+                refreshAheadByTool.computeIfAbsent(toolOf(key), tool -> Counter.builder("carebridge.fhir.cache.refresh.ahead")
+                        .tag("tool", tool).register(registry)).increment();
+            }
+            return new Lookup(entry.value, true, entry.validators, refreshDue);
+        }
+
+        // Expired but revalidatable: a conditional GET beats re-reading the same body from disk
+        if (entry != null && entry.validators.isPresent()
+                && now - entry.timestamp <= policy.ttlMs() + revalidateWindowMs) {
+            return new Lookup(entry.value, false, entry.validators, false);
+        }
+
+        FhirDiskCache.Entry disk = diskCache.get(key);
+        if (disk != null && now - disk.createdAt() <= policy.ttlMs()) {
+            // Promote with its original fetch time, so it expires when the heap copy would have
+            store(key, new CachedEntry(disk.value(), disk.createdAt(), disk.validators()), policy);
+            return new Lookup(disk.value(), true, disk.validators(), false);
+        }
+        if (disk != null && disk.validators().isPresent()
+                && now - disk.createdAt() <= policy.ttlMs() + revalidateWindowMs) {
+            return new Lookup(disk.value(), false, disk.validators(), false);
         }
-        return entry.value();
+
+        if (entry != null) cache.remove(key, entry);
+        return null;
     }
 
     /** Stores a value under key. */
     public void put(String key, String value) {
-        cache.put(key, new CachedEntry(value, System.currentTimeMillis()));
+        put(key, value, Validators.NONE);
     }
 
-    /** Runs every 60 seconds to remove expired entries. */
-    @Scheduled(fixedDelay = 60_000)
-    public void evictExpired() {
+    /** Stores a value with the validators needed to revalidate it later. */
+    public void put(String key, String value, Validators validators) {
+        long now = System.currentTimeMillis();
+        Policy policy = policyFor(key);
+        store(key, new CachedEntry(value, now, validators), policy);
+        diskCache.put(key, value, validators, now, now + lifetime(policy, validators));
+    }
+
+    /** The server answered 304: the stale entry is valid for another TTL. */
+    public void revalidated(String key, Lookup stale) {
         long now = System.currentTimeMillis();
-        cache.entrySet().removeIf(e -> now - e.getValue().timestamp() > TTL_MS);
+        Policy policy = policyFor(key);
+        store(key, new CachedEntry(stale.value(), now, stale.validators()), policy);
+        diskCache.put(key, stale.value(), stale.validators(), now, now + lifetime(policy, stale.validators()));
+        notModified.incrementAndGet();
+        revalidationsNotModified.increment();
+        bytesSaved.increment(stale.value().getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    /** The server answered 200 to a conditional GET: the entry had changed. */
+    public void revalidationMissed() {
+        modified.incrementAndGet();
+        revalidationsModified.increment();
+    }
+
+    /** A background refresh failed: let the next hit past the refresh point try again. */
+    public void refreshFailed(String key) {
+        CachedEntry entry = cache.get(key);
+        if (entry != null) entry.refreshing.set(false);
     }
 
-    private record CachedEntry(String value, long timestamp) {}
+    /** Runs every second; removes only the entries whose expiry is due. */
+    @Scheduled(fixedDelay = 1_000)
+    public void evictExpired() {
+        Expiry due;
+        while ((due = expiries.poll()) != null) {
+            // A replaced entry left its old expiry behind; remove(key, value) ignores it
+            cache.remove(due.key(), due.entry());
+        }
+    }
+
+    // ── Policies ──────────────────────────────────────────────────────────────
+
+    /**
+     * TTL and refresh-ahead point for one tool.
+     * carebridge.cache.policy.<tool>.ttl-ms / .refresh-ahead override the defaults.
+     */
+    public record Policy(long ttlMs, long refreshAtMs) {}
+
+    public Policy policyFor(String key) {
+        return policies.computeIfAbsent(toolOf(key), tool -> {
+            long ttl = env.getProperty("carebridge.cache.policy." + tool + ".ttl-ms", Long.class,
+                    DEFAULT_TTL_MS.getOrDefault(tool, defaultTtlMs));
+            double ahead = env.getProperty("carebridge.cache.policy." + tool + ".refresh-ahead", Double.class,
+                    defaultRefreshAhead);
+            return new Policy(ttl, ahead >= 1 ? Long.MAX_VALUE : (long) (ttl * ahead));
+        });
+    }
+
+    private static String toolOf(String key) {
+        int sep = key.indexOf("::");
+        return sep < 0 ? key : key.substring(0, sep);
+    }
+
+    private void store(String key, CachedEntry entry, Policy policy) {
+        cache.put(key, entry);
+        expiries.add(new Expiry(key, entry, entry.timestamp + lifetime(policy, entry.validators)));
+    }
+
+    /** How long an entry is kept: its TTL, plus the revalidation window if it can be revalidated. */
+    private long lifetime(Policy policy, Validators validators) {
+        return policy.ttlMs() + (validators.isPresent() ? revalidateWindowMs : 0);
+    }
+
+    // ── Types ─────────────────────────────────────────────────────────────────
+
+    /**
+     * Result of {@link #lookup}: fresh entries can be served as-is, stale ones
+     * need a conditional GET; refreshDue asks the caller to refresh in the background.
+     */
+    public record Lookup(String value, boolean fresh, Validators validators, boolean refreshDue) {}
+
+    /** HTTP cache validators of a stored response; either may be null. */
+    public record Validators(String etag, String lastModified) {
+        public static final Validators NONE = new Validators(null, null);
+
+        public boolean isPresent() { return etag != null || lastModified != null; }
+    }
+
+    private static final class CachedEntry {
+        final String        value;
+        final long          timestamp;
+        final Validators    validators;
+        final AtomicInteger hits       = new AtomicInteger();
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        CachedEntry(String value, long timestamp, Validators validators) {
+            this.value      = value;
+            this.timestamp  = timestamp;
+            this.validators = validators;
+        }
+    }
+
+    /** Expiry queue element; ordered by the wall-clock time the entry stops being usable. */
+    private record Expiry(String key, CachedEntry entry, long expiresAt) implements Delayed {
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(expiresAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(expiresAt, ((Expiry) other).expiresAt);
+        }
+    }
 }
@@ -0,0 +1,358 @@
+package com.carebridge.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Optional disk-backed L2 tier behind {@link FhirCacheService} that survives restarts.
+ *
+ * Storage is an append-only log split into fixed-size segment files that are
+ * memory-mapped. Each record is
+ *
+ *   int magic | int bodyLen | long createdAt | long expiresAt | byte[32] keyHash | int crc32 | body
+ *
+ * where body = 12-byte IV + AES-256-GCM ciphertext of "etag\nlastModified\njson"
+ * (the entry's HTTP validators, empty when absent, then the FHIR JSON – this is PHI),
+ * keyHash = HMAC-SHA256 of the cache key (so URLs and patient ids never hit disk
+ * in clear) and crc32 covers the body. An in-memory index maps keyHash → record
+ * location; it is rebuilt at startup by walking record headers only, so reload
+ * cost is proportional to the number of entries, not the bytes stored.
+ *
+ * Reads verify the checksum and decrypt straight from the mapped region into
+ * the output buffer, without an intermediate heap copy. A scheduled compaction
+ * rewrites sealed segments whose live (unexpired, still-indexed) fraction has
+ * dropped below half, copying records verbatim (no re-encryption), then deletes them.
+ *
+ * Records written before validators were stored carry MAGIC_V1 and a body of
+ * the JSON alone; they are still read (without validators) and compacted as-is.
+ */
+@Component
+public class FhirDiskCache {
+
+    private static final Logger log = LoggerFactory.getLogger(FhirDiskCache.class);
+
+    private static final int    MAGIC        = 0xCB1C0DE2;
+    private static final int    MAGIC_V1     = 0xCB1C0DE1;
+    private static final int    HEADER_SIZE  = 4 + 4 + 8 + 8 + 32 + 4;
+    private static final int    IV_SIZE      = 12;
+    private static final int    TAG_BITS     = 128;
+    private static final double COMPACT_LIVE_RATIO = 0.5;
+    private static final String SEGMENT_GLOB = "segment-*.log";
+
+    @Value("${carebridge.cache.l2.enabled:false}")
+    private boolean enabled;
+
+    @Value("${carebridge.cache.l2.dir:./data/fhir-cache}")
+    private String directory;
+
+    /** Base64-encoded 256-bit AES key; required when the tier is enabled */
+    @Value("${carebridge.cache.l2.key:}")
+    private String base64Key;
+
+    @Value("${carebridge.cache.l2.segment-size-mb:64}")
+    private int segmentSizeMb;
+
+    private final Map<String, Location>  index    = new ConcurrentHashMap<>();
+    private final Map<Integer, Segment>  segments = new ConcurrentHashMap<>();
+    private final SecureRandom           random   = new SecureRandom();
+
+    private SecretKeySpec aesKey;
+    private SecretKeySpec macKey;
+    private Path          dir;
+    private Segment       active;
+
+    @jakarta.annotation.PostConstruct
+    private void init() throws Exception {
+        if (!enabled) return;
+        if (base64Key.isBlank()) {
+            throw new IllegalStateException("carebridge.cache.l2.key must be set when the L2 cache is enabled");
+        }
+        byte[] key = Base64.getDecoder().decode(base64Key.trim());
+        if (key.length != 32) {
+            throw new IllegalStateException("carebridge.cache.l2.key must be a base64-encoded 256-bit key");
+        }
+        aesKey = new SecretKeySpec(key, "AES");
+        macKey = new SecretKeySpec(Arrays.copyOf(sha256(key), 32), "HmacSHA256");
+
+        dir = Paths.get(directory);
+        Files.createDirectories(dir);
+
+        long start = System.currentTimeMillis();
+        List<Path> files;
+        try (Stream<Path> s = Files.list(dir)) {
+            files = s.filter(p -> p.getFileSystem().getPathMatcher("glob:" + SEGMENT_GLOB).matches(p.getFileName()))
+                     .sorted().toList();
+        }
+        for (int i = 0; i < files.size(); i++) {
+            Segment seg = Segment.open(files.get(i), segmentBytes());
+            segments.put(seg.id, seg);
+            seg.writePos = scan(seg, i == files.size() - 1);
+        }
+        active = files.isEmpty() ? newSegment(1) : segments.get(segmentId(files.get(files.size() - 1)));
+        log.info("FHIR L2 cache: {} entries in {} segments loaded in {} ms",
+                index.size(), segments.size(), System.currentTimeMillis() - start);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Returns the entry for key if present, intact and unexpired; otherwise null. */
+    public Entry get(String key) {
+        if (!enabled) return null;
+        String hash = hash(key);
+        Location loc = index.get(hash);
+        if (loc == null) return null;
+        if (loc.expiresAt <= System.currentTimeMillis()) {
+            index.remove(hash, loc);
+            return null;
+        }
+        Segment seg = segments.get(loc.segment);
+        if (seg == null) return null; // compacted away concurrently
+
+        ByteBuffer body = seg.slice(loc.offset + HEADER_SIZE, loc.bodyLen);
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        if ((int) crc.getValue() != loc.crc) {
+            log.warn("FHIR L2 cache: checksum mismatch in segment {} at {}, dropping entry", loc.segment, loc.offset);
+            index.remove(hash, loc);
+            return null;
+        }
+        try {
+            byte[] iv = new byte[IV_SIZE];
+            body.get(iv);
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, aesKey, new GCMParameterSpec(TAG_BITS, iv));
+            cipher.updateAAD(HexFormat.of().parseHex(hash));
+            ByteBuffer plain = ByteBuffer.allocate(cipher.getOutputSize(body.remaining()));
+            cipher.doFinal(body, plain);
+            plain.flip();
+            String text = StandardCharsets.UTF_8.decode(plain).toString();
+            if (loc.magic == MAGIC_V1) {
+                return new Entry(text, FhirCacheService.Validators.NONE, loc.createdAt, loc.expiresAt);
+            }
+            int etagEnd = text.indexOf('\n');
+            int lastModifiedEnd = text.indexOf('\n', etagEnd + 1);
+            FhirCacheService.Validators validators = new FhirCacheService.Validators(
+                    emptyToNull(text.substring(0, etagEnd)), emptyToNull(text.substring(etagEnd + 1, lastModifiedEnd)));
+            return new Entry(text.substring(lastModifiedEnd + 1), validators, loc.createdAt, loc.expiresAt);
+        } catch (Exception e) {
+            log.warn("FHIR L2 cache: decrypt failed in segment {} at {}, dropping entry", loc.segment, loc.offset);
+            index.remove(hash, loc);
+            return null;
+        }
+    }
+
+    /** Appends value and its validators under key; it is served until expiresAt (epoch ms). */
+    public void put(String key, String value, FhirCacheService.Validators validators, long createdAt, long expiresAt) {
+        if (!enabled) return;
+        String hash = hash(key);
+        try {
+            byte[] iv = new byte[IV_SIZE];
+            random.nextBytes(iv);
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, aesKey, new GCMParameterSpec(TAG_BITS, iv));
+            cipher.updateAAD(HexFormat.of().parseHex(hash));
+            String plain = nullToEmpty(validators.etag()) + "\n" + nullToEmpty(validators.lastModified()) + "\n" + value;
+            byte[] cipherText = cipher.doFinal(plain.getBytes(StandardCharsets.UTF_8));
+
+            ByteBuffer body = ByteBuffer.allocate(IV_SIZE + cipherText.length);
+            body.put(iv).put(cipherText).flip();
+            append(hash, MAGIC, body, createdAt, expiresAt, null);
+        } catch (Exception e) {
+            log.warn("FHIR L2 cache: write failed: {}", e.getMessage());
+        }
+    }
+
+    /** Rewrites mostly-dead sealed segments and deletes fully-dead ones. */
+    @Scheduled(fixedDelay = 300_000)
+    public void compact() {
+        if (!enabled) return;
+        long now = System.currentTimeMillis();
+        index.entrySet().removeIf(e -> e.getValue().expiresAt <= now);
+
+        Map<Integer, Long> liveBytes = new HashMap<>();
+        for (Location loc : index.values()) {
+            liveBytes.merge(loc.segment, (long) HEADER_SIZE + loc.bodyLen, Long::sum);
+        }
+
+        for (Segment seg : List.copyOf(segments.values())) {
+            if (seg == active) continue;
+            long live = liveBytes.getOrDefault(seg.id, 0L);
+            if (seg.writePos > 0 && (double) live / seg.writePos >= COMPACT_LIVE_RATIO) continue;
+
+            int moved = 0;
+            for (Map.Entry<String, Location> e : index.entrySet()) {
+                Location loc = e.getValue();
+                if (loc.segment != seg.id) continue;
+                ByteBuffer body = seg.slice(loc.offset + HEADER_SIZE, loc.bodyLen);
+                try {
+                    append(e.getKey(), loc.magic, body, loc.createdAt, loc.expiresAt, loc);
+                    moved++;
+                } catch (IOException ex) {
+                    log.warn("FHIR L2 cache: compaction of segment {} aborted: {}", seg.id, ex.getMessage());
+                    return;
+                }
+            }
+            segments.remove(seg.id);
+            try { Files.deleteIfExists(seg.path); }
+            catch (IOException ex) { log.warn("FHIR L2 cache: could not delete {}", seg.path); }
+            log.debug("FHIR L2 cache: compacted segment {} ({} live entries moved)", seg.id, moved);
+        }
+    }
+
+    // ── Internals ─────────────────────────────────────────────────────────────
+
+    /**
+     * Writes one record to the active segment, rolling to a new one when full.
+     * With expected != null (compaction) the index is only updated if it still points there.
+     */
+    private synchronized void append(String hash, int magic, ByteBuffer body, long createdAt, long expiresAt,
+                                     Location expected) throws IOException {
+        int bodyLen = body.remaining();
+        int size = HEADER_SIZE + bodyLen;
+        if (size > segmentBytes()) return; // larger than a segment: heap tier only
+        if (active.writePos + size > segmentBytes()) {
+            active.buffer.force();
+            active = newSegment(active.id + 1);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        int offset = active.writePos;
+        ByteBuffer out = active.slice(offset, size);
+        out.putInt(magic).putInt(bodyLen).putLong(createdAt).putLong(expiresAt)
+           .put(HexFormat.of().parseHex(hash)).putInt((int) crc.getValue()).put(body.duplicate());
+        active.writePos = offset + size;
+
+        Location loc = new Location(active.id, offset, bodyLen, createdAt, expiresAt, (int) crc.getValue(), magic);
+        if (expected == null) index.put(hash, loc);
+        else index.replace(hash, expected, loc);
+    }
+
+    /**
+     * Rebuilds index entries from a segment by walking headers; returns the end of valid data.
+     * Bodies are only checksummed for the last segment, where a crash may have torn the tail.
+     */
+    private int scan(Segment seg, boolean verifyBodies) {
+        long now = System.currentTimeMillis();
+        int pos = 0;
+        int limit = seg.buffer.capacity();
+        while (pos + HEADER_SIZE <= limit) {
+            ByteBuffer h = seg.slice(pos, HEADER_SIZE);
+            int magic = h.getInt();
+            if (magic != MAGIC && magic != MAGIC_V1) break;
+            int bodyLen = h.getInt();
+            if (bodyLen <= IV_SIZE || pos + HEADER_SIZE + bodyLen > limit) break;
+            long createdAt = h.getLong();
+            long expiresAt = h.getLong();
+            byte[] keyHash = new byte[32];
+            h.get(keyHash);
+            int crc = h.getInt();
+
+            if (verifyBodies) {
+                CRC32 c = new CRC32();
+                c.update(seg.slice(pos + HEADER_SIZE, bodyLen));
+                if ((int) c.getValue() != crc) break;
+            }
+            if (expiresAt > now) {
+                index.put(HexFormat.of().formatHex(keyHash),
+                        new Location(seg.id, pos, bodyLen, createdAt, expiresAt, crc, magic));
+            }
+            pos += HEADER_SIZE + bodyLen;
+        }
+        return pos;
+    }
+
+    private Segment newSegment(int id) throws IOException {
+        Segment seg = Segment.open(dir.resolve(String.format("segment-%06d.log", id)), segmentBytes());
+        segments.put(seg.id, seg);
+        return seg;
+    }
+
+    private int segmentBytes() {
+        return segmentSizeMb * 1024 * 1024;
+    }
+
+    private String hash(String key) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(macKey);
+            return HexFormat.of().formatHex(mac.doFinal(key.getBytes(StandardCharsets.UTF_8)));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] sha256(byte[] input) throws Exception {
+        return java.security.MessageDigest.getInstance("SHA-256").digest(input);
+    }
+
+    private static String nullToEmpty(String s) {
+        return s == null ? "" : s;
+    }
+
+    private static String emptyToNull(String s) {
+        return s.isEmpty() ? null : s;
+    }
+
+    private static int segmentId(Path p) {
+        String name = p.getFileName().toString();
+        return Integer.parseInt(name.substring("segment-".length(), name.length() - ".log".length()));
+    }
+
+    // ── Inner types ───────────────────────────────────────────────────────────
+
+    /** A decrypted L2 hit */
+    public record Entry(String value, FhirCacheService.Validators validators, long createdAt, long expiresAt) {}
+
+    private record Location(int segment, int offset, int bodyLen, long createdAt, long expiresAt, int crc, int magic) {}
+
+    /** One memory-mapped segment file; writePos is only advanced under the append lock */
+    private static final class Segment {
+        final int              id;
+        final Path             path;
+        final MappedByteBuffer buffer;
+        volatile int           writePos;
+
+        private Segment(int id, Path path, MappedByteBuffer buffer) {
+            this.id = id;
+            this.path = path;
+            this.buffer = buffer;
+        }
+
+        static Segment open(Path path, int size) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw");
+                 FileChannel ch = raf.getChannel()) {
+                // The mapping stays valid after the channel is closed
+                long length = Math.max(size, raf.length());
+                return new Segment(segmentId(path), path, ch.map(FileChannel.MapMode.READ_WRITE, 0, length));
+            }
+        }
+
+        /** Independent view of [offset, offset+length); never moves the shared buffer's position */
+        ByteBuffer slice(int offset, int length) {
+            return buffer.slice(offset, length);
+        }
+    }
+}
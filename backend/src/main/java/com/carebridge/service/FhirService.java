@@ -1,23 +1,63 @@
 package com.carebridge.service;
 
+import com.carebridge.jfr.ToolCallEvent;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
 /**
  * Executes FHIR R4 API calls for the 6 supported resources.
- * Results are cached by FhirCacheService (5-minute TTL).
+ * Results are cached by FhirCacheService (5-minute TTL, then conditional revalidation).
+ * Arguments are normalised first ({@link #canonical}), so equivalent queries share
+ * one cache entry, and a narrower query can be filtered out of a cached broader
+ * result ({@link QuerySubsumption}).
  */
 @Service
 public class FhirService {
 
-    private static final String FHIR_BASE = "https://fhirassist.rsystems.com:481";
+    /** Observation fields kept by the all-pages projection */
+    private static final List<String> OBSERVATION_FIELDS = List.of(
+            "resourceType", "id", "status", "code", "valueQuantity", "valueString",
+            "interpretation", "referenceRange", "effectiveDateTime", "issued");
+
+    @Value("${carebridge.fhir.base-url:https://fhirassist.rsystems.com:481}")
+    private String fhirBase;
+
+    @Value("${carebridge.fhir.observations.max-entries:2000}")
+    private int obsMaxEntries;
+
+    @Value("${carebridge.fhir.observations.max-pages:50}")
+    private int obsMaxPages;
+
+    @Value("${carebridge.fhir.observations.page-parallelism:4}")
+    private int obsPageParallelism;
 
     @Autowired private OkHttpClient    httpClient;
     @Autowired private FhirCacheService cache;
+    @Autowired private ObjectMapper    objectMapper;
+    @Autowired private AuditLog        audit;
+    @Autowired private ClinicalReplica replica;
+    @Autowired private QuerySubsumption subsumption;
+    @Autowired private TokenVerifier   tokens;
+
+    /** Virtual threads for concurrent page fetches (fan-out bounded by a semaphore per search) and refresh-ahead */
+    private final ExecutorService pageExecutor = Executors.newVirtualThreadPerTaskExecutor();
 
     /**
      * Dispatches a tool call to the appropriate FHIR endpoint.
@@ -32,42 +72,271 @@ public class FhirService {
             return "{\"status\":\"conversation_ended\"}";
         }
 
+        args = canonical(args);
         String url = buildUrl(toolName, args);
         if (url == null) {
             return "{\"error\":\"Unknown tool: " + toolName + "\"}";
         }
 
+        boolean allPages = "search_patient_observations".equals(toolName) && args.path("all_pages").asBoolean(false);
+        // Cross-patient code / date searches are answered by the local replica when it is enabled and fresh
+        String local = allPages ? null : replica.search(toolName, args, fhirToken);
+        Fetched result = local != null ? new Fetched(local, true)
+                : allPages ? fetchAllObservationPages(args, fhirToken) : fetch(toolName, url, fhirToken, args);
+
+        // PHI access: recorded without blocking (see AuditLog)
+        String subject = str(args, "SUBJECT");
+        audit.record(fhirToken, toolName, subject.isEmpty() ? str(args, "PATIENT_ID") : subject,
+                url.substring(fhirBase.length()) + (allPages ? "&all_pages=true" : ""),
+                result.body(), result.cacheHit());
+        return result.body();
+    }
+
+    /** A tool response and whether it came from the cache. */
+    private record Fetched(String body, boolean cacheHit) {}
+
+    private Fetched fetch(String toolName, String url, String fhirToken) {
+        return fetch(toolName, url, fhirToken, null);
+    }
+
+    /**
+     * Cache lookup, then FHIR GET; successful bodies are cached under toolName::url.
+     * A hot entry close to expiry is returned from cache and re-fetched in the
+     * background (refresh-ahead). On a miss, a narrower query (args given) is
+     * filtered out of a cached broader result if there is one (see
+     * {@link QuerySubsumption}). An expired entry with validators is
+     * revalidated with a conditional GET, and a 304 extends it without
+     * transferring the body again.
+     */
+    private Fetched fetch(String toolName, String url, String fhirToken, JsonNode args) {
         // Cache lookup
         String cacheKey = toolName + "::" + url;
-        String cached = cache.get(cacheKey);
-        if (cached != null) return cached;
+        FhirCacheService.Lookup cached = cache.lookup(cacheKey);
+        if (cached != null && cached.fresh()) {
+            ToolCallEvent.cacheHit();
+            if (cached.refreshDue()) pageExecutor.submit(() -> load(cacheKey, url, fhirToken, cached));
+            return new Fetched(cached.value(), true);
+        }
+        String subsumed = args != null ? subsumed(toolName, args) : null;
+        if (subsumed != null) {
+            ToolCallEvent.cacheHit();
+            return new Fetched(subsumed, true);
+        }
+        ToolCallEvent.cacheMiss();
+        return new Fetched(load(cacheKey, url, fhirToken, cached), false);
+    }
+
+    /** The narrower query filtered out of a fresh cached broader result, or null. */
+    private String subsumed(String toolName, JsonNode args) {
+        QuerySubsumption.Narrowing narrowing = subsumption.narrowing(toolName, args);
+        if (narrowing == null) return null;
+        String broader = cache.get(toolName + "::" + buildUrl(toolName, narrowing.broader()));
+        String result  = broader != null ? subsumption.filter(narrowing, broader) : null;
+        subsumption.record(toolName, result != null);
+        return result;
+    }
 
-        // FHIR HTTP call
+    /** FHIR GET (conditional if a cached entry with validators is given); caches successful bodies. */
+    private String load(String cacheKey, String url, String fhirToken, FhirCacheService.Lookup cached) {
         try {
-            Request request = new Request.Builder()
+            Request.Builder builder = new Request.Builder()
                     .url(url)
                     .header("Authorization", "Bearer " + fhirToken)
                     .header("Content-Type", "application/json")
-                    .get()
-                    .build();
+                    .get();
+            // Conditional only when there is something to validate against
+            boolean conditional = cached != null && cached.validators().isPresent();
+            if (conditional) {
+                FhirCacheService.Validators v = cached.validators();
+                if (v.etag() != null)         builder.header("If-None-Match", v.etag());
+                if (v.lastModified() != null) builder.header("If-Modified-Since", v.lastModified());
+            }
 
-            try (Response response = httpClient.newCall(request).execute()) {
+            try (Response response = ChatTurn.trackCurrent(httpClient.newCall(builder.build())).execute()) {
+                if (response.code() == 304 && conditional) {
+                    tokens.accepted(fhirToken);
+                    cache.revalidated(cacheKey, cached);
+                    return cached.value();
+                }
                 String body = response.body() != null ? response.body().string() : "{}";
                 if (response.isSuccessful()) {
-                    cache.put(cacheKey, body);
+                    tokens.accepted(fhirToken);
+                    if (conditional) cache.revalidationMissed();
+                    cache.put(cacheKey, body, validators(response, body));
+                } else if (cached != null && cached.refreshDue()) {
+                    cache.refreshFailed(cacheKey);
                 }
                 return body;
             }
         } catch (Exception e) {
-            return "{\"error\":\"" + e.getMessage().replace("\"", "'") + "\"}";
+            if (cached != null && cached.refreshDue()) cache.refreshFailed(cacheKey);
+            return "{\"error\":\"" + String.valueOf(e.getMessage()).replace("\"", "'") + "\"}";
+        }
+    }
+
+    /**
+     * ETag / Last-Modified from the response; if the server sends neither,
+     * falls back to the resource's meta.versionId / meta.lastUpdated.
+     */
+    private FhirCacheService.Validators validators(Response response, String body) {
+        String etag         = response.header("ETag");
+        String lastModified = response.header("Last-Modified");
+        if (etag == null && lastModified == null) {
+            JsonNode meta = Optional.ofNullable(readTree(body)).map(n -> n.path("meta")).orElse(null);
+            if (meta != null) {
+                String versionId = meta.path("versionId").asText("");
+                if (!versionId.isEmpty()) etag = "W/\"" + versionId + "\"";
+                try {
+                    lastModified = DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                            OffsetDateTime.parse(meta.path("lastUpdated").asText()).atZoneSameInstant(ZoneOffset.UTC));
+                } catch (Exception ignored) { /* no usable lastUpdated */ }
+            }
+        }
+        return new FhirCacheService.Validators(etag, lastModified);
+    }
+
+    // ── All-pages observation fetch ──────────────────────────────────────────
+
+    /**
+     * Fetches every page of an observation search and merges them into one bundle.
+     * Page 0 is fetched first to learn the page size and total; with a total
+     * the remaining pages are fetched concurrently (at most pageParallelism in
+     * flight), without one the next links are followed page by page. Entries
+     * are then de-duplicated by resource id, projected to the fields the
+     * model needs and sorted oldest → newest. At most maxEntries are kept
+     * (the most recent ones) so a long history cannot exhaust memory.
+     *
+     * "truncated" is set when pages or entries were left out because of those
+     * limits, "partial" when a page failed; a partial result is not cached,
+     * since it would be read as the complete history.
+     */
+    private Fetched fetchAllObservationPages(JsonNode args, String fhirToken) {
+        String toolName = "search_patient_observations";
+        String baseUrl  = buildUrl(toolName, ((ObjectNode) args.deepCopy()).put("page", 0));
+        String mergedKey = toolName + "::" + baseUrl + "&all_pages=true";
+        String cached = cache.get(mergedKey);
+        if (cached != null) return new Fetched(cached, true);
+
+        JsonNode first = readTree(fetch(toolName, baseUrl, fhirToken).body());
+        if (first == null || !first.path("entry").isArray()) {
+            return new Fetched(first != null ? first.toString() : "{\"error\":\"Unparsable FHIR response\"}", false);
+        }
+
+        int pageSize = first.path("entry").size();
+        int total    = first.path("total").asInt(-1);
+        int maxPages = pageSize == 0 ? 1 : Math.min(obsMaxPages, (obsMaxEntries + pageSize - 1) / pageSize);
+
+        List<JsonNode> bundles = new ArrayList<>();
+        bundles.add(first);
+        List<Integer> failedPages = new ArrayList<>();
+        boolean pagesLeft;
+
+        if (pageSize > 0 && total >= 0) {
+            int available = (total + pageSize - 1) / pageSize;
+            int pages     = Math.min(maxPages, available);
+            pagesLeft     = pages < available;
+
+            Semaphore permits = new Semaphore(obsPageParallelism);
+            List<Future<JsonNode>> futures = new ArrayList<>();
+            for (int p = 1; p < pages; p++) {
+                String pageUrl = buildUrl(toolName, ((ObjectNode) args.deepCopy()).put("page", p));
+                futures.add(ChatTurn.forkCurrent(pageExecutor, () -> {
+                    permits.acquire();
+                    try { return readTree(fetch(toolName, pageUrl, fhirToken).body()); }
+                    finally { permits.release(); }
+                }));
+            }
+            // Interruptible: a cancelled turn stops the remaining pages
+            List<JsonNode> pageBundles = ChatTurn.joinAll(futures);
+            for (int i = 0; i < pageBundles.size(); i++) {
+                JsonNode page = pageBundles.get(i);
+                if (isBundle(page)) bundles.add(page);
+                else failedPages.add(i + 1);
+            }
+        } else {
+            // No total: follow next links until the last (or an empty) page
+            JsonNode page = first;
+            int p = 1;
+            while (pageSize > 0 && hasNextLink(page) && p < maxPages) {
+                page = readTree(fetch(toolName, buildUrl(toolName, ((ObjectNode) args.deepCopy()).put("page", p)),
+                        fhirToken).body());
+                if (!isBundle(page)) {
+                    failedPages.add(p);
+                    break;
+                }
+                if (page.path("entry").isEmpty()) break;
+                bundles.add(page);
+                p++;
+            }
+            pagesLeft = failedPages.isEmpty() && isBundle(page) && !page.path("entry").isEmpty() && hasNextLink(page);
+        }
+
+        // Merge + de-duplicate by resource id (entries without an id are kept)
+        Map<String, ObjectNode> byId = new LinkedHashMap<>();
+        int anonymous = 0;
+        for (JsonNode bundle : bundles) {
+            for (JsonNode e : bundle.path("entry")) {
+                JsonNode res = e.path("resource");
+                String id = res.path("id").asText("");
+                byId.putIfAbsent(id.isEmpty() ? "#" + anonymous++ : id, projectObservation(res));
+            }
         }
+        List<ObjectNode> merged = new ArrayList<>(byId.values());
+        merged.sort(Comparator.comparing(r -> r.path("effectiveDateTime").asText(r.path("issued").asText(""))));
+        boolean truncated = pagesLeft || merged.size() > obsMaxEntries;
+        if (merged.size() > obsMaxEntries) merged = merged.subList(merged.size() - obsMaxEntries, merged.size());
+
+        ObjectNode out = objectMapper.createObjectNode();
+        out.put("resourceType", "Bundle");
+        out.put("type", "searchset");
+        if (total >= 0) out.put("total", total);
+        out.put("pagesFetched", bundles.size());
+        out.put("merged", merged.size());
+        out.put("truncated", truncated);
+        if (!failedPages.isEmpty()) {
+            out.put("partial", true);
+            failedPages.forEach(out.putArray("failedPages")::add);
+        }
+        ArrayNode entries = out.putArray("entry");
+        for (ObjectNode r : merged) entries.addObject().set("resource", r);
+
+        String result = out.toString();
+        if (failedPages.isEmpty()) cache.put(mergedKey, result);
+        return new Fetched(result, false);
+    }
+
+    /** Keeps only the Observation fields needed to read a value and its date. */
+    private ObjectNode projectObservation(JsonNode res) {
+        ObjectNode p = objectMapper.createObjectNode();
+        for (String field : OBSERVATION_FIELDS) {
+            if (res.has(field)) p.set(field, res.get(field));
+        }
+        return p;
+    }
+
+    /** A searchset page; an empty page may omit "entry" altogether. */
+    private static boolean isBundle(JsonNode page) {
+        return page != null && "Bundle".equals(page.path("resourceType").asText())
+                && (page.path("entry").isArray() || page.path("entry").isMissingNode());
+    }
+
+    private boolean hasNextLink(JsonNode bundle) {
+        for (JsonNode link : bundle.path("link")) {
+            if ("next".equals(link.path("relation").asText())) return true;
+        }
+        return false;
+    }
+
+    private JsonNode readTree(String json) {
+        try { return objectMapper.readTree(json); }
+        catch (Exception e) { return null; }
     }
 
     // ── URL builders ──────────────────────────────────────────────────────────
 
     private String buildUrl(String toolName, JsonNode a) {
         return switch (toolName) {
-            case "search_fhir_patient" -> buildUrlWithParams(FHIR_BASE + "/baseR4/Patient",
+            case "search_fhir_patient" -> buildUrlWithParams(fhirBase + "/baseR4/Patient",
                     "family",        str(a, "FAMILY"),
                     "given",         str(a, "GIVEN"),
                     "email",         str(a, "EMAIL"),
@@ -75,24 +344,24 @@ public class FhirService {
                     "birthdate",     str(a, "BIRTHDATE"),
                     "_id",           str(a, "PATIENT_ID"));
 
-            case "search_patient_condition" -> buildUrlWithParams(FHIR_BASE + "/baseR4/Condition",
+            case "search_patient_condition" -> buildUrlWithParams(fhirBase + "/baseR4/Condition",
                     "subject",   str(a, "SUBJECT"),
                     "code",      str(a, "CODE"),
                     "encounter", str(a, "ENCOUNTER"));
 
-            case "search_patient_procedure" -> buildUrlWithParams(FHIR_BASE + "/baseR4/Procedure",
+            case "search_patient_procedure" -> buildUrlWithParams(fhirBase + "/baseR4/Procedure",
                     "subject",   str(a, "SUBJECT"),
                     "code",      str(a, "CODE"),
                     "encounter", str(a, "ENCOUNTER"));
 
-            case "search_patient_medications" -> buildUrlWithParams(FHIR_BASE + "/baseR4/MedicationRequest",
+            case "search_patient_medications" -> buildUrlWithParams(fhirBase + "/baseR4/MedicationRequest",
                     "subject",        str(a, "SUBJECT"),
                     "code",           str(a, "CODE"),
                     "prescriptionId", str(a, "PRESCRIPTIONID"));
 
             case "search_patient_encounter" -> {
                 // "date" can appear twice (start + end), so we build manually
-                StringBuilder sb = new StringBuilder(FHIR_BASE + "/baseR4/Encounter");
+                StringBuilder sb = new StringBuilder(fhirBase + "/baseR4/Encounter");
                 boolean first = true;
                 first = appendParam(sb, "subject", str(a, "SUBJECT"), first);
                 first = appendParam(sb, "date",    str(a, "DATE"),    first);
@@ -103,7 +372,7 @@ public class FhirService {
             case "search_patient_observations" -> {
                 // IMPORTANT: endpoint is /Observations (plural) – /Observation (singular) returns 500
                 int page = a.path("page").isMissingNode() ? 0 : a.path("page").asInt(0);
-                String url = buildUrlWithParams(FHIR_BASE + "/baseR4/Observations",
+                String url = buildUrlWithParams(fhirBase + "/baseR4/Observations",
                         "subject",        str(a, "SUBJECT"),
                         "code",           str(a, "CODE"),
                         "value_quantity", str(a, "value_quantity"));
@@ -115,6 +384,57 @@ public class FhirService {
         };
     }
 
+    // ── Canonical arguments ──────────────────────────────────────────────────
+
+    /** Argument names the tools define, by lower-case spelling */
+    private static final Map<String, String> PARAMS = new HashMap<>();
+    static {
+        for (String p : List.of("SUBJECT", "PATIENT_ID", "CODE", "ENCOUNTER", "PRESCRIPTIONID", "DATE", "DATE2",
+                "FAMILY", "GIVEN", "EMAIL", "PHONE", "BIRTHDATE", "page", "all_pages", "value_quantity")) {
+            PARAMS.put(p.toLowerCase(Locale.ROOT), p);
+        }
+    }
+
+    /**
+     * Normalises model arguments so that equivalent queries build the same URL,
+     * and so share one cache key: argument names in their defined spelling,
+     * values trimmed and empty ones dropped, "Patient/" and "Encounter/"
+     * prefixes stripped, comma-separated codes de-duplicated and sorted, the
+     * two encounter dates in a fixed order and e-mail addresses lower-cased.
+     */
+    JsonNode canonical(JsonNode args) {
+        ObjectNode out = objectMapper.createObjectNode();
+        if (args == null || !args.isObject()) return out;
+        args.fields().forEachRemaining(f -> {
+            String name = PARAMS.getOrDefault(f.getKey().toLowerCase(Locale.ROOT), f.getKey());
+            JsonNode v = f.getValue();
+            if (v.isNull() || v.isMissingNode()) return;
+            if (!v.isTextual()) { out.set(name, v); return; }
+
+            String text = v.asText().trim();
+            switch (name) {
+                case "SUBJECT", "PATIENT_ID" -> text = stripPrefix(text, "Patient/");
+                case "ENCOUNTER"             -> text = stripPrefix(text, "Encounter/");
+                case "CODE"                  -> text = String.join(",", new TreeSet<>(Arrays.stream(text.split(","))
+                                                        .map(String::trim).filter(c -> !c.isEmpty()).toList()));
+                case "EMAIL"                 -> text = text.toLowerCase(Locale.ROOT);
+                default                      -> { }
+            }
+            if (!text.isEmpty()) out.put(name, text);
+        });
+        // Both encounter dates are ANDed, so their order does not matter
+        String d1 = out.path("DATE").asText(""), d2 = out.path("DATE2").asText("");
+        if (!d1.isEmpty() && !d2.isEmpty() && d1.compareTo(d2) > 0) {
+            out.put("DATE", d2);
+            out.put("DATE2", d1);
+        }
+        return out;
+    }
+
+    private static String stripPrefix(String value, String prefix) {
+        return value.startsWith(prefix) ? value.substring(prefix.length()).trim() : value;
+    }
+
     /**
      * Builds a URL from a base and alternating key/value pairs.
      * Skips pairs where value is null or empty.
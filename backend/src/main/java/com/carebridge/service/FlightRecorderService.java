@@ -0,0 +1,126 @@
+package com.carebridge.service;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * On-demand JDK Flight Recorder recordings (driven by DiagnosticsController).
+ *
+ * Settings are the JDK "default" profile plus classpath:jfr/carebridge.jfc,
+ * which enables the com.carebridge.* agent-loop events and
+ * jdk.VirtualThreadPinned with stack traces – the chat, tool and page
+ * executors all run blocking OkHttp I/O on virtual threads, so pinned
+ * carriers show up there.
+ *
+ * Recordings are written to carebridge.diagnostics.dir; at most
+ * max-recordings are kept, the oldest finished one is dropped first.
+ */
+@Service
+public class FlightRecorderService {
+
+    @Value("${carebridge.diagnostics.dir:./data/jfr}")
+    private String dir;
+
+    @Value("${carebridge.diagnostics.max-duration-seconds:600}")
+    private long maxDurationSeconds;
+
+    @Value("${carebridge.diagnostics.max-recordings:4}")
+    private int maxRecordings;
+
+    private final Map<Long, Recording> recordings = new ConcurrentHashMap<>();
+
+    public record Info(long id, String name, String state, Instant startTime, long durationSeconds, long sizeBytes) {}
+
+    /** Starts a recording that stops by itself after the given duration. */
+    public synchronized Info start(long durationSeconds) throws IOException, java.text.ParseException {
+        long running = recordings.values().stream().filter(r -> r.getState() == RecordingState.RUNNING).count();
+        if (running > 0) throw new IllegalStateException("A recording is already running.");
+        pruneFinished();
+
+        Map<String, String> settings = new HashMap<>(Configuration.getConfiguration("default").getSettings());
+        try (Reader jfc = new InputStreamReader(
+                new ClassPathResource("jfr/carebridge.jfc").getInputStream(), StandardCharsets.UTF_8)) {
+            settings.putAll(Configuration.create(jfc).getSettings());
+        }
+
+        Path out = Files.createDirectories(Path.of(dir));
+        Recording recording = new Recording(settings);
+        long seconds = Math.max(1, Math.min(durationSeconds, maxDurationSeconds));
+        recording.setName("carebridge-" + System.currentTimeMillis());
+        recording.setDuration(Duration.ofSeconds(seconds));
+        recording.setToDisk(true);
+        recording.setDestination(out.resolve(recording.getName() + ".jfr"));
+        recording.start();
+        recordings.put(recording.getId(), recording);
+        return info(recording);
+    }
+
+    public List<Info> list() {
+        return recordings.values().stream()
+                .sorted(Comparator.comparingLong(Recording::getId))
+                .map(this::info)
+                .toList();
+    }
+
+    public Optional<Info> find(long id) {
+        return Optional.ofNullable(recordings.get(id)).map(this::info);
+    }
+
+    /** File of a finished recording; empty while it is still running or if it is unknown. */
+    public Optional<Path> file(long id) {
+        Recording r = recordings.get(id);
+        if (r == null || r.getState() == RecordingState.NEW || r.getState() == RecordingState.RUNNING
+                || r.getDestination() == null) return Optional.empty();
+        return Optional.of(r.getDestination()).filter(Files::exists);
+    }
+
+    /** Stops a running recording early (the file is kept). */
+    public boolean stop(long id) {
+        Recording r = recordings.get(id);
+        if (r == null || r.getState() != RecordingState.RUNNING) return false;
+        r.stop();
+        return true;
+    }
+
+    /** Closes the recording and deletes its file. */
+    public boolean delete(long id) throws IOException {
+        Recording r = recordings.remove(id);
+        if (r == null) return false;
+        Path file = r.getDestination();
+        r.close();
+        if (file != null) Files.deleteIfExists(file);
+        return true;
+    }
+
+    private void pruneFinished() throws IOException {
+        List<Recording> finished = recordings.values().stream()
+                .filter(r -> r.getState() != RecordingState.RUNNING)
+                .sorted(Comparator.comparingLong(Recording::getId))
+                .toList();
+        for (int i = 0; i <= finished.size() - maxRecordings; i++) delete(finished.get(i).getId());
+    }
+
+    private Info info(Recording r) {
+        long size = 0;
+        try {
+            if (r.getDestination() != null && Files.exists(r.getDestination())) size = Files.size(r.getDestination());
+        } catch (IOException ignored) {}
+        return new Info(r.getId(), r.getName(), r.getState().name(), r.getStartTime(),
+                r.getDuration() != null ? r.getDuration().toSeconds() : 0, size);
+    }
+}
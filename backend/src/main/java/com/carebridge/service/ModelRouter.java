@@ -0,0 +1,66 @@
+package com.carebridge.service;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Chooses the OpenAI model for each agent-loop iteration.
+ *
+ * Most iterations only plan tool calls and never stream user-visible text, so
+ * they go to the cheap planner model. The iteration that follows tool results
+ * (almost always the final narrative) and any iteration whose context is
+ * large go to the stronger narrative model. The returned list is the
+ * fallback order: the chosen model first, then the other tier, then the
+ * configured fallbacks. With no routing properties set, every tier is
+ * openai.model and behaviour is unchanged.
+ */
+@Component
+public class ModelRouter {
+
+    @Value("${openai.routing.planner-model:${openai.model:gpt-4o-mini}}")
+    private String plannerModel;
+
+    @Value("${openai.routing.narrative-model:${openai.model:gpt-4o-mini}}")
+    private String narrativeModel;
+
+    @Value("${openai.routing.fallback-models:}")
+    private List<String> fallbackModels;
+
+    /** Serialized message size (chars) above which the narrative model is used regardless of iteration */
+    @Value("${openai.routing.large-context-chars:60000}")
+    private int largeContextChars;
+
+    /**
+     * @param iteration zero-based agent-loop iteration within the turn
+     * @param messages  the messages about to be sent
+     * @return          models to try, in order; never empty
+     */
+    public List<String> route(int iteration, List<ObjectNode> messages) {
+        boolean afterTools = !messages.isEmpty()
+                && "tool".equals(messages.get(messages.size() - 1).path("role").asText());
+        boolean large = iteration > 0 && contextChars(messages) >= largeContextChars;
+
+        String primary   = afterTools || large ? narrativeModel : plannerModel;
+        String secondary = primary.equals(plannerModel) ? narrativeModel : plannerModel;
+
+        List<String> models = new ArrayList<>();
+        models.add(primary);
+        if (!models.contains(secondary)) models.add(secondary);
+        for (String m : fallbackModels) {
+            if (!m.isBlank() && !models.contains(m.trim())) models.add(m.trim());
+        }
+        return models;
+    }
+
+    private static int contextChars(List<ObjectNode> messages) {
+        int chars = 0;
+        for (ObjectNode m : messages) {
+            chars += m.path("content").asText("").length();
+        }
+        return chars;
+    }
+}
@@ -0,0 +1,19 @@
+package com.carebridge.service;
+
+/**
+ * HTTP error from OpenAI before any output was streamed.
+ * Safe to retry the same request on another model unless the failure is not model-specific.
+ */
+class ModelUnavailableException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final boolean retryable;
+
+    ModelUnavailableException(String message, boolean retryable) {
+        super(message);
+        this.retryable = retryable;
+    }
+
+    boolean isRetryable() { return retryable; }
+}
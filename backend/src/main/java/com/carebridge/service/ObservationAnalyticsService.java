@@ -0,0 +1,263 @@
+package com.carebridge.service;
+
+import com.carebridge.model.ObservationRange;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.time.*;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Server-side analytics over fetched Observation bundles.
+ *
+ * Instead of handing the model eight raw bundles to classify by hand, this
+ * service reduces each LOINC series to a compact digest: latest value,
+ * Low/Normal/High classification against {@link ObservationRangeTable},
+ * min/max/mean, least-squares trend and out-of-range counts.
+ * Backs the analyze_observations tool.
+ */
+@Service
+public class ObservationAnalyticsService {
+
+    /** Hemoglobin, Glucose, Sodium, Potassium, Creatinine, Systolic BP, Diastolic BP, Heart rate */
+    public static final List<String> KEY_OBSERVATION_CODES = List.of(
+            "718-7", "2345-7", "2951-2", "2823-3", "2160-0", "8480-6", "8462-4", "8867-4");
+
+    /** Relative change over the series span below which a trend is reported as stable */
+    private static final double STABLE_THRESHOLD = 0.05;
+
+    @Autowired private FhirService           fhirService;
+    @Autowired private ObjectMapper          mapper;
+    @Autowired private ObservationRangeTable ranges;
+
+    /** Thread pool for parallel per-code fetches */
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    /**
+     * Fetches the full observation history for SUBJECT (CODES, or the 8 key codes)
+     * in parallel and returns the digest JSON.
+     */
+    public String analyze(JsonNode args, String fhirToken) {
+        String subject = args.path("SUBJECT").asText("").trim();
+        if (subject.isEmpty()) {
+            return "{\"error\":\"SUBJECT is required for analyze_observations\"}";
+        }
+        List<String> codes = parseCodes(args.path("CODES").asText(""));
+
+        List<Future<ObjectNode>> futures = codes.stream()
+                .map(code -> ChatTurn.forkCurrent(executor, () -> {
+                    ObjectNode query = mapper.createObjectNode();
+                    query.put("SUBJECT", subject);
+                    query.put("CODE", code);
+                    query.put("all_pages", true);
+                    String body = fhirService.executeTool("search_patient_observations", query, fhirToken);
+                    return summarise(code, readTree(body));
+                }))
+                .toList();
+        List<ObjectNode> summaries = ChatTurn.joinAll(futures);
+
+        ObjectNode digest = mapper.createObjectNode();
+        digest.put("subject", subject);
+        ArrayNode results  = digest.putArray("observations");
+        ArrayNode abnormal = digest.putArray("abnormal");
+        for (ObjectNode summary : summaries) {
+            results.add(summary);
+            String cls = summary.path("latest").path("classification").asText("");
+            if ("Low".equals(cls) || "High".equals(cls)) abnormal.add(summary.path("name").asText());
+        }
+        return digest.toString();
+    }
+
+    /**
+     * Reduces one Observation bundle to a summary node for the given LOINC code.
+     * Non-numeric observations and entries of other codes are ignored.
+     */
+    public ObjectNode summarise(String code, JsonNode bundle) {
+        ObservationRange range = ranges.byCode(code);
+        ObjectNode out = mapper.createObjectNode();
+        out.put("code", code);
+        out.put("name", ranges.nameForCode(code));
+
+        if (bundle.has("error")) {
+            out.put("error", bundle.path("error").asText());
+            return out;
+        }
+
+        Series s = Series.from(bundle, code);
+        out.put("count", s.size);
+        // Pages were missing: the figures below describe only part of the history
+        if (bundle.path("partial").asBoolean(false)) out.put("partial", true);
+        if (s.size == 0) return out;
+
+        String unit = !s.unit.isEmpty() ? s.unit : range != null ? range.unit() : "";
+        out.put("unit", unit);
+        if (range != null) out.put("normalRange", range.normalRange());
+
+        // Single pass over the primitive arrays
+        double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY, sum = 0;
+        int low = 0, high = 0;
+        for (int i = 0; i < s.size; i++) {
+            double v = s.values[i];
+            if (v < min) min = v;
+            if (v > max) max = v;
+            sum += v;
+            if (range != null) {
+                if (v < range.low())  low++;
+                if (v > range.high()) high++;
+            }
+        }
+        double mean = sum / s.size;
+
+        int last = s.size - 1;
+        ObjectNode latest = out.putObject("latest");
+        latest.put("value", s.values[last]);
+        latest.put("date", s.dates[last]);
+        if (range != null) {
+            ObservationRange.Classification cls = range.classify(s.values[last]);
+            latest.put("classification", cls.name());
+            if (cls == ObservationRange.Classification.Low  && !range.lowNote().isEmpty())  latest.put("note", range.lowNote());
+            if (cls == ObservationRange.Classification.High && !range.highNote().isEmpty()) latest.put("note", range.highNote());
+        }
+
+        out.put("min", round(min));
+        out.put("max", round(max));
+        out.put("mean", round(mean));
+        if (range != null) {
+            out.put("lowCount", low);
+            out.put("highCount", high);
+        }
+
+        if (s.size >= 2) {
+            double slopePerDay = slopePerDay(s, mean);
+            double spanDays    = (s.epochSeconds[last] - s.epochSeconds[0]) / 86_400.0;
+            double relChange   = mean == 0 ? 0 : slopePerDay * spanDays / Math.abs(mean);
+            out.put("trendPerDay", round(slopePerDay));
+            out.put("trend", Math.abs(relChange) < STABLE_THRESHOLD ? "stable" : relChange > 0 ? "rising" : "falling");
+        }
+        return out;
+    }
+
+    // ── Helpers ───────────────────────────────────────────────────────────────
+
+    /** Least-squares slope of value against time, in units per day. */
+    private static double slopePerDay(Series s, double meanValue) {
+        double meanT = 0;
+        for (int i = 0; i < s.size; i++) meanT += s.epochSeconds[i];
+        meanT /= s.size;
+
+        double num = 0, den = 0;
+        for (int i = 0; i < s.size; i++) {
+            double dt = (s.epochSeconds[i] - meanT) / 86_400.0;
+            num += dt * (s.values[i] - meanValue);
+            den += dt * dt;
+        }
+        return den == 0 ? 0 : num / den;
+    }
+
+    private List<String> parseCodes(String csv) {
+        List<String> codes = new ArrayList<>();
+        for (String c : csv.split(",")) {
+            String code = c.trim();
+            if (code.isEmpty()) continue;
+            if (!code.matches("[0-9]+-[0-9]")) {
+                String resolved = ranges.codeForName(code);
+                if (resolved == null) continue;
+                code = resolved;
+            }
+            if (!codes.contains(code)) codes.add(code);
+        }
+        return codes.isEmpty() ? KEY_OBSERVATION_CODES : codes;
+    }
+
+    private JsonNode readTree(String json) {
+        try { return mapper.readTree(json); }
+        catch (Exception e) { return mapper.createObjectNode().put("error", "Unparsable FHIR response"); }
+    }
+
+    private static double round(double d) {
+        return Math.round(d * 100.0) / 100.0;
+    }
+
+    /** Numeric observations of one code, sorted oldest → newest, held in parallel primitive arrays. */
+    private static final class Series {
+        int      size;
+        double[] values;
+        long[]   epochSeconds;
+        String[] dates;
+        String   unit = "";
+
+        static Series from(JsonNode bundle, String code) {
+            JsonNode entries = bundle.path("entry");
+            int n = entries.size();
+            double[] v = new double[n];
+            long[]   t = new long[n];
+            String[] d = new String[n];
+            String unit = "";
+            int size = 0;
+
+            for (JsonNode e : entries) {
+                JsonNode res = e.path("resource");
+                if (!hasCode(res, code)) continue;
+                JsonNode q = res.path("valueQuantity").path("value");
+                if (!q.isNumber() && !(q.isTextual() && isNumeric(q.asText()))) continue;
+                String date = res.path("effectiveDateTime").asText(res.path("issued").asText(""));
+                v[size] = q.asDouble();
+                t[size] = epochSeconds(date);
+                d[size] = date;
+                if (unit.isEmpty()) unit = res.path("valueQuantity").path("unit").asText("");
+                size++;
+            }
+
+            // Sort by time via an index permutation, then gather
+            Integer[] idx = new Integer[size];
+            for (int i = 0; i < size; i++) idx[i] = i;
+            Arrays.sort(idx, Comparator.comparingLong(i -> t[i]));
+
+            Series s = new Series();
+            s.size = size;
+            s.values = new double[size];
+            s.epochSeconds = new long[size];
+            s.dates = new String[size];
+            for (int i = 0; i < size; i++) {
+                s.values[i]       = v[idx[i]];
+                s.epochSeconds[i] = t[idx[i]];
+                s.dates[i]        = d[idx[i]];
+            }
+            s.unit = unit;
+            return s;
+        }
+
+        private static boolean hasCode(JsonNode resource, String code) {
+            JsonNode codings = resource.path("code").path("coding");
+            if (!codings.isArray() || codings.isEmpty()) return true;
+            for (JsonNode c : codings) {
+                if (code.equals(c.path("code").asText())) return true;
+            }
+            return false;
+        }
+
+        private static boolean isNumeric(String s) {
+            try { Double.parseDouble(s); return true; }
+            catch (NumberFormatException e) { return false; }
+        }
+
+        private static long epochSeconds(String date) {
+            if (date == null || date.isEmpty()) return 0;
+            try { return OffsetDateTime.parse(date).toEpochSecond(); }
+            catch (DateTimeParseException ignored) {}
+            try { return LocalDateTime.parse(date).toEpochSecond(ZoneOffset.UTC); }
+            catch (DateTimeParseException ignored) {}
+            try { return LocalDate.parse(date.substring(0, Math.min(10, date.length()))).toEpochDay() * 86_400L; }
+            catch (DateTimeParseException ignored) {}
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.carebridge.service;
+
+import com.carebridge.constants.KnowledgeBase;
+import com.carebridge.model.ObservationRange;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Typed view of the observation knowledge base.
+ * Parses KnowledgeBase.LOINC_CODES and KnowledgeBase.OBSERVATION_RANGES once at
+ * startup and joins them by normalised parameter name, so code can classify a
+ * value without the LLM reading the ranges text.
+ *
+ * Qualitative rows (anisocytosis, occult blood) have no numeric range and are skipped.
+ */
+@Component
+public class ObservationRangeTable {
+
+    private static final Pattern LOINC_LINE = Pattern.compile("^\\d+\\.\\s+(.+?):\\s+([0-9]+-[0-9])(?:,\\s*(.+))?$");
+    private static final Pattern RANGE_LINE = Pattern.compile("^([A-Za-z0-9/]+):\\s+(.+)$");
+    private static final Pattern NORMAL     = Pattern.compile("Normal\\s+(-?[0-9.]+)-(-?[0-9.]+)");
+    private static final Pattern LOW_NOTE   = Pattern.compile("Low\\s+<[0-9.]+\\s*\\(([^)]*)\\)");
+    private static final Pattern HIGH_NOTE  = Pattern.compile("High\\s+>[0-9.]+\\s*\\(([^)]*)\\)");
+
+    private final Map<String, ObservationRange> byCode = new LinkedHashMap<>();
+    private final Map<String, String>           codeByName = new HashMap<>();
+
+    public ObservationRangeTable() {
+        Map<String, String[]> loinc = new LinkedHashMap<>(); // normalised name → [code, display, unit]
+        for (String line : KnowledgeBase.LOINC_CODES.split("\n")) {
+            Matcher m = LOINC_LINE.matcher(line.trim());
+            if (!m.matches()) continue;
+            String display = m.group(1).trim();
+            String code    = m.group(2).trim();
+            String unit    = m.group(3) == null ? "" : m.group(3).trim();
+            loinc.put(normalise(display), new String[] { code, display, unit });
+            codeByName.put(normalise(display), code);
+        }
+
+        for (String line : KnowledgeBase.OBSERVATION_RANGES.split("\n")) {
+            Matcher m = RANGE_LINE.matcher(line.trim());
+            if (!m.matches()) continue;
+            Matcher normal = NORMAL.matcher(m.group(2));
+            if (!normal.find()) continue;
+
+            for (String alias : m.group(1).split("/")) {
+                String[] entry = matchLoinc(normalise(alias), loinc);
+                if (entry == null || byCode.containsKey(entry[0])) continue;
+                byCode.put(entry[0], new ObservationRange(
+                        alias, entry[0], entry[1], entry[2],
+                        Double.parseDouble(normal.group(1)),
+                        Double.parseDouble(normal.group(2)),
+                        note(LOW_NOTE, m.group(2)),
+                        note(HIGH_NOTE, m.group(2))));
+                codeByName.putIfAbsent(normalise(alias), entry[0]);
+            }
+        }
+    }
+
+    /** Range for a LOINC code, or null if the code has no numeric range. */
+    public ObservationRange byCode(String loincCode) {
+        return byCode.get(loincCode);
+    }
+
+    /** Resolves a display or parameter name (any case/spacing) to its LOINC code, or null. */
+    public String codeForName(String name) {
+        return name == null ? null : codeByName.get(normalise(name));
+    }
+
+    /** Display name for a LOINC code from the knowledge base, or the code itself. */
+    public String nameForCode(String loincCode) {
+        ObservationRange r = byCode.get(loincCode);
+        return r != null ? r.name() : loincCode;
+    }
+
+    public Collection<ObservationRange> all() {
+        return Collections.unmodifiableCollection(byCode.values());
+    }
+
+    // ── Parsing helpers ──────────────────────────────────────────────────────
+
+    /**
+     * The two tables name parameters differently ("CEA" vs "carcinoembryonicAntigenCEA",
+     * "Estimated GFR MDRD" vs "estimatedGFR"), so try exact, then prefix, then suffix.
+     */
+    private static String[] matchLoinc(String key, Map<String, String[]> loinc) {
+        String[] exact = loinc.get(key);
+        if (exact != null) return exact;
+
+        String best = null;
+        for (String name : loinc.keySet()) {
+            if (name.startsWith(key) && (best == null || name.length() < best.length())) best = name;
+        }
+        if (best != null) return loinc.get(best);
+
+        for (String name : loinc.keySet()) {
+            if (key.endsWith(name) && (best == null || name.length() > best.length())) best = name;
+        }
+        return best != null ? loinc.get(best) : null;
+    }
+
+    private static String note(Pattern p, String text) {
+        Matcher m = p.matcher(text);
+        return m.find() ? m.group(1).trim() : "";
+    }
+
+    private static String normalise(String s) {
+        return s.toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9]", "");
+    }
+}
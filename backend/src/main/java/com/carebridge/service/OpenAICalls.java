@@ -0,0 +1,311 @@
+package com.carebridge.service;
+
+import com.carebridge.constants.ToolDefinitions;
+import com.carebridge.jfr.ChatTurnEvent;
+import com.carebridge.jfr.OpenAIRequestEvent;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Transport-independent half of the agent loop, shared by {@link OpenAIService}
+ * (OkHttp, blocking) and {@link ReactiveOpenAIService} (WebClient).
+ *
+ * Owns the request and message shapes, the tool-call delta accumulator, and
+ * the wiring every call goes through: {@link ModelRouter}, {@link OpenAIScheduler},
+ * {@link UsageAccounting}, {@link OpenAIMetrics} and the JFR turn / request events.
+ * The services only move bytes and drive the loop.
+ */
+@Component
+class OpenAICalls {
+
+    @Autowired private ObjectMapper        mapper;
+    @Autowired private SystemPromptService promptService;
+    @Autowired private ModelRouter         modelRouter;
+    @Autowired private OpenAIMetrics       metrics;
+    @Autowired private OpenAIScheduler     scheduler;
+    @Autowired private UsageAccounting     usageAccounting;
+
+    /** A turn that cannot get an OpenAI slot within this budget fails instead of hanging the stream */
+    @Value("${openai.scheduler.turn-deadline-ms:170000}")
+    private long turnDeadlineMs;
+
+    private JsonNode toolsNode;
+
+    // Parse the tools JSON once at init time
+    @jakarta.annotation.PostConstruct
+    private void init() throws Exception {
+        toolsNode = mapper.readTree(ToolDefinitions.TOOLS_JSON);
+    }
+
+    // ── Turns ─────────────────────────────────────────────────────────────────
+
+    /** Opens usage accounting and the JFR turn event; must be paired with {@link #close}. */
+    Admission open(String turnId, String fhirToken, String transport) {
+        String user = UserIdentity.fromToken(fhirToken);
+        ChatTurnEvent event = new ChatTurnEvent();
+        event.transport = transport;
+        event.outcome   = "error";
+        event.begin();
+        return new Admission(user, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(turnDeadlineMs),
+                usageAccounting.open(turnId, user), event);
+    }
+
+    /** Commits the turn event and closes usage with the event's outcome. */
+    void close(Admission admission) {
+        admission.event().commit();
+        usageAccounting.close(admission.usage(), admission.event().outcome);
+    }
+
+    /** System prompt followed by a private copy of the client's history */
+    List<ObjectNode> initialMessages(List<JsonNode> frontendMessages) {
+        List<ObjectNode> messages = new ArrayList<>();
+        ObjectNode system = mapper.createObjectNode();
+        system.put("role", "system");
+        system.put("content", promptService.getSystemPrompt());
+        messages.add(system);
+        for (JsonNode msg : frontendMessages) {
+            messages.add((ObjectNode) mapper.createObjectNode().setAll((ObjectNode) msg.deepCopy()));
+        }
+        return messages;
+    }
+
+    // ── Routing and scheduling ────────────────────────────────────────────────
+
+    /** Models to try for this iteration, in order */
+    List<String> route(int iteration, List<ObjectNode> messages) {
+        return modelRouter.route(iteration, messages);
+    }
+
+    void fallback(String from, String to) {
+        metrics.fallback(from, to);
+    }
+
+    OpenAIScheduler.Priority priority(int iteration) {
+        return iteration > 0 ? OpenAIScheduler.Priority.FOLLOW_UP : OpenAIScheduler.Priority.NEW_TURN;
+    }
+
+    /** Blocks until the scheduler admits a request of this size (fails at the turn deadline). */
+    void acquire(OpenAIScheduler.Priority priority, Admission admission, long estimatedTokens) throws Exception {
+        scheduler.acquire(priority, admission.user(), estimatedTokens, admission.deadlineNanos());
+    }
+
+    long estimateTokens(int payloadBytes) {
+        return scheduler.estimateTokens(payloadBytes);
+    }
+
+    /**
+     * Feeds a response's rate-limit headers to the scheduler. Returns true for
+     * a 429 caused by request/token rate limits, after parking the scheduler
+     * until the advertised reset: the caller retries the same request. Quota
+     * exhaustion is not retryable and is reported like any other error.
+     *
+     * @param errBody the response body for a 429 (may be empty otherwise)
+     */
+    boolean rateLimited(int status, String errBody, Function<String, String> header) {
+        if (status == 429 && !errBody.contains("insufficient_quota")) {
+            scheduler.onRateLimited(header);
+            return true;
+        }
+        scheduler.update(header);
+        return false;
+    }
+
+    /** Maps an HTTP error body; a bad key fails on every model, so 401 is not worth a fallback. */
+    ModelUnavailableException httpError(int status, String errBody) {
+        String msg = parse(errBody).path("error").path("message").asText("OpenAI API error " + status);
+        return new ModelUnavailableException(msg, status != 401);
+    }
+
+    // ── Requests and messages ─────────────────────────────────────────────────
+
+    ObjectNode requestBody(String model, List<ObjectNode> messages) {
+        ObjectNode body = mapper.createObjectNode();
+        body.put("model", model);
+        body.set("messages", mapper.valueToTree(messages));
+        body.set("tools", toolsNode);
+        body.put("tool_choice", "auto");
+        body.put("stream", true);
+        body.putObject("stream_options").put("include_usage", true);
+        return body;
+    }
+
+    /** Starts accounting for one streamed call; the JFR event runs until {@link Call#end}. */
+    Call call(String model, int iteration, Admission admission) {
+        return new Call(model, iteration, admission);
+    }
+
+    ObjectNode assistantMessage(String content, List<ToolCall> toolCalls) {
+        ObjectNode msg = mapper.createObjectNode();
+        msg.put("role", "assistant");
+        if (content != null) msg.put("content", content);
+        else msg.putNull("content");
+
+        ArrayNode tcs = mapper.createArrayNode();
+        for (ToolCall tc : toolCalls) {
+            ObjectNode tcNode = mapper.createObjectNode();
+            tcNode.put("id", tc.id());
+            tcNode.put("type", "function");
+            ObjectNode func = mapper.createObjectNode();
+            func.put("name", tc.name());
+            func.put("arguments", tc.arguments());
+            tcNode.set("function", func);
+            tcs.add(tcNode);
+        }
+        msg.set("tool_calls", tcs);
+        return msg;
+    }
+
+    /** Tool result message for the history; also counts it against the turn's usage. */
+    ObjectNode toolMessage(ToolCall tc, String toolResult, Admission admission) {
+        admission.usage().toolResult(tc.name(), toolResult.length());
+        ObjectNode toolMsg = mapper.createObjectNode();
+        toolMsg.put("role", "tool");
+        toolMsg.put("tool_call_id", tc.id());
+        toolMsg.put("content", toolResult);
+        return toolMsg;
+    }
+
+    /** The end_chat call among these, if the model asked to end the conversation */
+    Optional<ToolCall> endCall(List<ToolCall> toolCalls) {
+        return toolCalls.stream().filter(tc -> "end_chat".equals(tc.name())).findFirst();
+    }
+
+    String farewell(ToolCall endCall) {
+        return parse(endCall.arguments()).path("farewell_message")
+                .asText("Thank you for using CareBridge. Have a great day!");
+    }
+
+    /** Parses one SSE data payload; null for a malformed chunk (skipped by the callers). */
+    JsonNode parseChunk(String data) {
+        try { return mapper.readTree(data); }
+        catch (Exception e) { return null; }
+    }
+
+    private JsonNode parse(String json) {
+        try { return mapper.readTree(json); }
+        catch (Exception e) { return mapper.createObjectNode(); }
+    }
+
+    // ── Inner types ───────────────────────────────────────────────────────────
+
+    /**
+     * One streamed call to one model: merges the chunks (text, tool-call deltas,
+     * finish reason, usage) and records the per-model metrics and the JFR request
+     * event. Chunks must be fed serially.
+     */
+    final class Call {
+        private final String             model;
+        private final Admission          admission;
+        private final OpenAIRequestEvent jfr = new OpenAIRequestEvent();
+        private final StringBuilder           content = new StringBuilder();
+        private final Map<Integer, TcBuilder> tcMap   = new LinkedHashMap<>();
+        private String   finishReason;
+        private JsonNode usage;
+        private long     start = System.nanoTime();
+
+        private Call(String model, int iteration, Admission admission) {
+            this.model     = model;
+            this.admission = admission;
+            jfr.model     = model;
+            jfr.iteration = iteration;
+            jfr.begin();
+        }
+
+        /** Restarts the latency clock, e.g. once the scheduler has admitted a retried attempt. */
+        void sent() {
+            start = System.nanoTime();
+        }
+
+        /** Response headers arrived. */
+        void headers(int status) {
+            metrics.ttfb(model, start);
+            jfr.status = status;
+            jfr.ttfb   = System.nanoTime() - start;
+        }
+
+        /** Folds one parsed chunk in; returns its text delta, or null if it carried none. */
+        String accept(JsonNode parsed) {
+            // Final chunk (stream_options.include_usage) has empty choices + usage
+            if (parsed.path("usage").isObject()) {
+                usage = parsed.path("usage");
+                metrics.tokens(model, usage);
+                jfr.promptTokens     = usage.path("prompt_tokens").asLong(0);
+                jfr.completionTokens = usage.path("completion_tokens").asLong(0);
+            }
+
+            JsonNode choice = parsed.path("choices").path(0);
+            if (choice.isMissingNode()) return null;
+
+            String fr = choice.path("finish_reason").asText(null);
+            if (fr != null && !"null".equals(fr)) finishReason = fr;
+
+            JsonNode delta = choice.path("delta");
+            JsonNode toolCallsArr = delta.path("tool_calls");
+            if (toolCallsArr.isArray()) {
+                for (JsonNode tc : toolCallsArr) {
+                    int idx = tc.path("index").asInt(0);
+                    TcBuilder builder = tcMap.computeIfAbsent(idx, k -> new TcBuilder());
+                    if (tc.has("id"))                          builder.id        += tc.get("id").asText();
+                    if (tc.path("function").has("name"))       builder.name      += tc.path("function").get("name").asText();
+                    if (tc.path("function").has("arguments"))  builder.arguments += tc.path("function").get("arguments").asText();
+                }
+            }
+
+            JsonNode text = delta.path("content");
+            if (text.isMissingNode() || text.isNull() || text.asText().isEmpty()) return null;
+            if (content.isEmpty()) {
+                metrics.ttft(model, start);
+                jfr.ttft = System.nanoTime() - start;
+            }
+            content.append(text.asText());
+            return text.asText();
+        }
+
+        /** The stream ended normally: records duration, finish reason and usage. */
+        void completed() {
+            if (finishReason == null) finishReason = tcMap.isEmpty() ? "stop" : "tool_calls";
+            metrics.duration(model, finishReason, start);
+            if (usage != null) admission.usage().iteration(model, usage, System.nanoTime() - start);
+            jfr.finishReason = finishReason;
+        }
+
+        void failed() {
+            metrics.duration(model, "error", start);
+        }
+
+        /** Commits the JFR event; call exactly once, however the call ended. */
+        void end() {
+            jfr.commit();
+        }
+
+        String content() { return content.isEmpty() ? null : content.toString(); }
+
+        List<ToolCall> toolCalls() {
+            return tcMap.values().stream().map(b -> new ToolCall(b.id, b.name, b.arguments)).toList();
+        }
+    }
+
+    /** Mutable accumulator for streaming tool-call deltas */
+    private static class TcBuilder {
+        String id = "", name = "", arguments = "";
+    }
+
+    /** Immutable snapshot after all deltas for one tool call are merged */
+    record ToolCall(String id, String name, String arguments) {}
+
+    /**
+     * Scheduler identity, deadline, usage accounting and JFR event shared by
+     * every OpenAI call of one turn. Callers update the event's iterations,
+     * tool calls and outcome as the turn progresses.
+     */
+    record Admission(String user, long deadlineNanos, UsageAccounting.TurnUsage usage, ChatTurnEvent event) {}
+}
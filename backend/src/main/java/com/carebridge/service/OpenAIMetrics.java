@@ -0,0 +1,68 @@
+package com.carebridge.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * Per-model OpenAI latency and token metrics (Micrometer → /actuator/metrics).
+ *
+ *   carebridge.openai.ttfb       time to response headers          {model}
+ *   carebridge.openai.ttft       time to first streamed text delta {model}
+ *   carebridge.openai.duration   full streamed call                {model, outcome}
+ *   carebridge.openai.tokens     usage from the final stream chunk {model, type=prompt|cached|completion}
+ *   carebridge.openai.fallbacks  model switches after an error     {from, to}
+ *   carebridge.chat.cancelled    turns aborted by the client       {reason, phase}
+ *   carebridge.chat.tokens.saved estimated tokens not spent after a cancel
+ */
+@Component
+public class OpenAIMetrics {
+
+    @Autowired private MeterRegistry registry;
+
+    public void ttfb(String model, long startNanos) {
+        timer("carebridge.openai.ttfb", "model", model).record(Duration.ofNanos(System.nanoTime() - startNanos));
+    }
+
+    public void ttft(String model, long startNanos) {
+        timer("carebridge.openai.ttft", "model", model).record(Duration.ofNanos(System.nanoTime() - startNanos));
+    }
+
+    public void duration(String model, String outcome, long startNanos) {
+        Timer.builder("carebridge.openai.duration")
+                .tag("model", model).tag("outcome", outcome)
+                .register(registry)
+                .record(Duration.ofNanos(System.nanoTime() - startNanos));
+    }
+
+    /** @param usage the "usage" object of the final stream chunk */
+    public void tokens(String model, JsonNode usage) {
+        Counter.builder("carebridge.openai.tokens").tag("model", model).tag("type", "prompt")
+                .register(registry).increment(usage.path("prompt_tokens").asLong(0));
+        Counter.builder("carebridge.openai.tokens").tag("model", model).tag("type", "cached")
+                .register(registry).increment(usage.path("prompt_tokens_details").path("cached_tokens").asLong(0));
+        Counter.builder("carebridge.openai.tokens").tag("model", model).tag("type", "completion")
+                .register(registry).increment(usage.path("completion_tokens").asLong(0));
+    }
+
+    public void fallback(String from, String to) {
+        Counter.builder("carebridge.openai.fallbacks").tag("from", from).tag("to", to)
+                .register(registry).increment();
+    }
+
+    public void cancelled(String reason, String phase, long estimatedTokensSaved) {
+        Counter.builder("carebridge.chat.cancelled").tag("reason", reason).tag("phase", phase)
+                .register(registry).increment();
+        Counter.builder("carebridge.chat.tokens.saved").baseUnit("tokens")
+                .register(registry).increment(estimatedTokensSaved);
+    }
+
+    private Timer timer(String name, String tagKey, String tagValue) {
+        return Timer.builder(name).tag(tagKey, tagValue).publishPercentiles(0.5, 0.95, 0.99).register(registry);
+    }
+}
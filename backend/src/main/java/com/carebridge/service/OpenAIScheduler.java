@@ -0,0 +1,208 @@
+package com.carebridge.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Admission control in front of the OpenAI API.
+ *
+ * Keeps a local token bucket (tokens and requests per minute) that is
+ * corrected by the x-ratelimit-* response headers, and a priority queue of
+ * waiting calls:
+ *   1. FOLLOW_UP calls (iteration > 0 of a turn that already spent tokens)
+ *      go before NEW_TURN calls, so half-finished agent loops complete first;
+ *   2. within a priority, weighted fair queuing by estimated tokens keeps one
+ *      heavy user from starving the others.
+ * A 429 blocks the bucket until the advertised reset, and callers retry
+ * transparently as long as their turn deadline allows.
+ */
+@Component
+public class OpenAIScheduler {
+
+    public enum Priority { FOLLOW_UP, NEW_TURN }
+
+    private static final Pattern DURATION_PART = Pattern.compile("([0-9]+(?:\\.[0-9]+)?)(ms|s|m|h)");
+    private static final long    MAX_WAIT_NANOS = Duration.ofMillis(250).toNanos();
+
+    @Value("${openai.scheduler.tokens-per-minute:200000}")
+    private long tokensPerMinute;
+
+    @Value("${openai.scheduler.requests-per-minute:500}")
+    private long requestsPerMinute;
+
+    @Value("${openai.scheduler.completion-token-estimate:512}")
+    private long completionTokenEstimate;
+
+    @Autowired private MeterRegistry registry;
+
+    private final ReentrantLock         lock    = new ReentrantLock();
+    private final Condition             changed = lock.newCondition();
+    private final PriorityQueue<Ticket> queue   = new PriorityQueue<>(
+            Comparator.comparing(Ticket::priority)
+                      .thenComparingDouble(Ticket::virtualFinish)
+                      .thenComparingLong(Ticket::seq));
+    /** Users whose virtual finish is still ahead of virtualTime; pruned on every dispatch */
+    private final Map<String, Double>   userFinish = new HashMap<>();
+
+    // Guarded by lock (as are queue and userFinish)
+    private double tokenLimit, requestLimit;
+    private double tokens, requests;
+    private double virtualTime;
+    private long   seq;
+    private long   lastRefillNanos;
+    private long   blockedUntilNanos;
+
+    @jakarta.annotation.PostConstruct
+    private void init() {
+        tokenLimit      = tokens   = tokensPerMinute;
+        requestLimit    = requests = requestsPerMinute;
+        lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Blocks until this call may be sent.
+     *
+     * @throws TimeoutException if the deadline (System.nanoTime based) passes while queued
+     */
+    public void acquire(Priority priority, String user, long estimatedTokens, long deadlineNanos)
+            throws InterruptedException, TimeoutException {
+        long enqueued = System.nanoTime();
+        lock.lock();
+        try {
+            double start = Math.max(virtualTime, userFinish.getOrDefault(user, 0.0));
+            Ticket ticket = new Ticket(priority, start + estimatedTokens, seq++);
+            userFinish.put(user, ticket.virtualFinish());
+            queue.add(ticket);
+            try {
+                while (true) {
+                    long now = System.nanoTime();
+                    refill(now);
+                    double need = Math.min(estimatedTokens, tokenLimit);
+                    if (queue.peek() == ticket && now >= blockedUntilNanos && tokens >= need && requests >= 1) {
+                        queue.poll();
+                        tokens   -= estimatedTokens;
+                        requests -= 1;
+                        virtualTime = ticket.virtualFinish();
+                        // A finish time the clock has passed no longer affects anyone's start
+                        userFinish.values().removeIf(finish -> finish <= virtualTime);
+                        changed.signalAll();
+                        Timer.builder("carebridge.openai.scheduler.wait").tag("priority", priority.name())
+                                .register(registry).record(Duration.ofNanos(now - enqueued));
+                        return;
+                    }
+                    if (now >= deadlineNanos) {
+                        throw new TimeoutException("OpenAI rate limit: request could not be scheduled before the turn deadline");
+                    }
+                    long wait = MAX_WAIT_NANOS;
+                    if (queue.peek() == ticket) {
+                        if (now < blockedUntilNanos) wait = blockedUntilNanos - now;
+                        else if (tokens < need) wait = (long) ((need - tokens) / tokenLimit * 60e9);
+                        else wait = (long) ((1 - requests) / requestLimit * 60e9);
+                    }
+                    changed.awaitNanos(Math.max(1_000_000L, Math.min(wait, deadlineNanos - now)));
+                }
+            } catch (InterruptedException | TimeoutException | RuntimeException e) {
+                queue.remove(ticket);
+                changed.signalAll();
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Folds x-ratelimit-* headers from any OpenAI response into the bucket. */
+    public void update(Function<String, String> header) {
+        lock.lock();
+        try {
+            refill(System.nanoTime());
+            double limitTokens   = parseDouble(header.apply("x-ratelimit-limit-tokens"), tokenLimit);
+            double limitRequests = parseDouble(header.apply("x-ratelimit-limit-requests"), requestLimit);
+            if (limitTokens > 0)   tokenLimit   = limitTokens;
+            if (limitRequests > 0) requestLimit = limitRequests;
+            // The server's view lags our in-flight deductions, so keep the smaller of the two
+            tokens   = Math.min(tokens,   parseDouble(header.apply("x-ratelimit-remaining-tokens"), tokens));
+            requests = Math.min(requests, parseDouble(header.apply("x-ratelimit-remaining-requests"), requests));
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Called on HTTP 429: empties the bucket until the server says it resets. */
+    public void onRateLimited(Function<String, String> header) {
+        Counter.builder("carebridge.openai.ratelimited").register(registry).increment();
+        long resetNanos = Math.max(
+                Math.max(parseDuration(header.apply("x-ratelimit-reset-tokens")),
+                         parseDuration(header.apply("x-ratelimit-reset-requests"))),
+                retryAfter(header));
+        if (resetNanos <= 0) resetNanos = Duration.ofSeconds(1).toNanos();
+        lock.lock();
+        try {
+            tokens = 0;
+            blockedUntilNanos = Math.max(blockedUntilNanos, System.nanoTime() + resetNanos);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Rough request size: JSON bytes / 4 plus a completion allowance. */
+    public long estimateTokens(int requestBytes) {
+        return requestBytes / 4L + completionTokenEstimate;
+    }
+
+    // ── Helpers ───────────────────────────────────────────────────────────────
+
+    private void refill(long now) {
+        double minutes = (now - lastRefillNanos) / 60e9;
+        lastRefillNanos = now;
+        tokens   = Math.min(tokenLimit,   tokens   + minutes * tokenLimit);
+        requests = Math.min(requestLimit, requests + minutes * requestLimit);
+    }
+
+    private static long retryAfter(Function<String, String> header) {
+        double ms = parseDouble(header.apply("retry-after-ms"), -1);
+        if (ms >= 0) return (long) (ms * 1_000_000);
+        double s = parseDouble(header.apply("retry-after"), -1);
+        return s >= 0 ? (long) (s * 1e9) : 0;
+    }
+
+    /** Parses OpenAI reset durations such as "20ms", "1s", "6m0s". */
+    static long parseDuration(String value) {
+        if (value == null) return 0;
+        Matcher m = DURATION_PART.matcher(value);
+        double nanos = 0;
+        while (m.find()) {
+            double n = Double.parseDouble(m.group(1));
+            nanos += switch (m.group(2)) {
+                case "ms" -> n * 1e6;
+                case "s"  -> n * 1e9;
+                case "m"  -> n * 60e9;
+                default   -> n * 3600e9;
+            };
+        }
+        return (long) nanos;
+    }
+
+    private static double parseDouble(String value, double fallback) {
+        if (value == null || value.isBlank()) return fallback;
+        try { return Double.parseDouble(value.trim()); }
+        catch (NumberFormatException e) { return fallback; }
+    }
+
+    private record Ticket(Priority priority, double virtualFinish, long seq) {}
+}
@@ -1,8 +1,10 @@
 package com.carebridge.service;
 
+import com.carebridge.jfr.ChatTurnEvent;
+import com.carebridge.service.OpenAICalls.Admission;
+import com.carebridge.service.OpenAICalls.ToolCall;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
@@ -12,7 +14,6 @@ import okhttp3.Response;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
@@ -22,8 +23,8 @@ import java.util.concurrent.*;
 /**
  * Core service that:
  * 1. Builds the full OpenAI request (system prompt + conversation history + tools)
- * 2. Streams the OpenAI response (SSE) and forwards text deltas to the SseEmitter
- * 3. Executes FHIR tool calls in parallel (CompletableFuture)
+ * 2. Streams the OpenAI response (SSE) and forwards text deltas to the ChatEventSink
+ * 3. Executes FHIR tool calls in parallel (virtual threads, forked from the ChatTurn)
  * 4. Loops until OpenAI produces a final text response
  */
 @Service
@@ -35,255 +36,152 @@ public class OpenAIService {
     @Value("${openai.api.key}")
     private String openAiKey;
 
-    @Value("${openai.model:gpt-4o-mini}")
-    private String openAiModel;
-
-    @Autowired private OkHttpClient        httpClient;
-    @Autowired private ObjectMapper        mapper;
-    @Autowired private SystemPromptService promptService;
-    @Autowired private FhirService         fhirService;
+    @Autowired private OkHttpClient    httpClient;
+    @Autowired private ObjectMapper    mapper;
+    @Autowired private ToolDispatcher  toolDispatcher;
+    @Autowired private OpenAIMetrics   metrics;
+    @Autowired private OpenAICalls     calls;
 
     /** Thread pool for parallel FHIR tool calls */
     private final ExecutorService toolExecutor = Executors.newVirtualThreadPerTaskExecutor();
 
-    // ── Static tool definitions (serialised once at class load) ──────────────
-
-    private static final String TOOLS_JSON = """
-[
-  {
-    "type": "function",
-    "function": {
-      "name": "search_fhir_patient",
-      "description": "Search for patients in the FHIR system by name, email, phone, birthdate, or patient ID.",
-      "parameters": {
-        "type": "object",
-        "properties": {
-          "GIVEN":      { "type": "string", "description": "Patient first/given name" },
-          "FAMILY":     { "type": "string", "description": "Patient last/family name" },
-          "EMAIL":      { "type": "string", "description": "Patient email address" },
-          "PHONE":      { "type": "string", "description": "Patient phone number" },
-          "BIRTHDATE":  { "type": "string", "description": "Patient date of birth (YYYY-MM-DD)" },
-          "PATIENT_ID": { "type": "string", "description": "Patient numeric ID" }
-        }
-      }
-    }
-  },
-  {
-    "type": "function",
-    "function": {
-      "name": "search_patient_condition",
-      "description": "Search patient conditions/diagnoses from FHIR. Can search by subject (patient ID) and/or ICD-9 code.",
-      "parameters": {
-        "type": "object",
-        "properties": {
-          "SUBJECT":   { "type": "string", "description": "Patient numeric ID (no 'Patient/' prefix)" },
-          "CODE":      { "type": "string", "description": "ICD-9 diagnosis code" },
-          "ENCOUNTER": { "type": "string", "description": "Encounter numeric ID" }
-        }
-      }
-    }
-  },
-  {
-    "type": "function",
-    "function": {
-      "name": "search_patient_procedure",
-      "description": "Search patient procedures/surgeries from FHIR.",
-      "parameters": {
-        "type": "object",
-        "properties": {
-          "SUBJECT":   { "type": "string", "description": "Patient numeric ID" },
-          "CODE":      { "type": "string", "description": "CPT procedure code" },
-          "ENCOUNTER": { "type": "string", "description": "Encounter numeric ID" }
-        }
-      }
-    }
-  },
-  {
-    "type": "function",
-    "function": {
-      "name": "search_patient_medications",
-      "description": "Search patient medication requests/prescriptions from FHIR.",
-      "parameters": {
-        "type": "object",
-        "properties": {
-          "SUBJECT":        { "type": "string", "description": "Patient numeric ID" },
-          "CODE":           { "type": "string", "description": "Drug code (e.g. INSULIN, ACET325)" },
-          "PRESCRIPTIONID": { "type": "string", "description": "Prescription ID number" }
-        }
-      }
-    }
-  },
-  {
-    "type": "function",
-    "function": {
-      "name": "search_patient_encounter",
-      "description": "Search patient encounters (admissions, discharges, insurance info) from FHIR.",
-      "parameters": {
-        "type": "object",
-        "properties": {
-          "SUBJECT": { "type": "string", "description": "Patient numeric ID" },
-          "DATE":    { "type": "string", "description": "Start date filter e.g. 'gt2000-01-13'" },
-          "DATE2":   { "type": "string", "description": "End date filter e.g. 'lt2024-09-13'" }
-        }
-      }
-    }
-  },
-  {
-    "type": "function",
-    "function": {
-      "name": "search_patient_observations",
-      "description": "Search patient lab results, vitals, and clinical observations from FHIR.",
-      "parameters": {
-        "type": "object",
-        "properties": {
-          "SUBJECT":        { "type": "string", "description": "Patient numeric ID" },
-          "CODE":           { "type": "string", "description": "LOINC observation code" },
-          "value_quantity": { "type": "string", "description": "Filter by value e.g. 'gt10|mEq/L'" },
-          "page":           { "type": "number", "description": "Page number starting at 0" }
-        }
-      }
-    }
-  },
-  {
-    "type": "function",
-    "function": {
-      "name": "end_chat",
-      "description": "End the conversation when the user explicitly indicates they are done.",
-      "parameters": {
-        "type": "object",
-        "properties": {
-          "farewell_message": { "type": "string", "description": "Short professional closing message." }
-        },
-        "required": ["farewell_message"]
-      }
-    }
-  }
-]
-""";
-
-    private JsonNode toolsNode;
-
-    // Parse the tools JSON once at init time
-    @jakarta.annotation.PostConstruct
-    private void init() throws Exception {
-        toolsNode = mapper.readTree(TOOLS_JSON);
-    }
-
     // ── Public entry point ────────────────────────────────────────────────────
 
     /**
      * Runs the full agent loop:
      * - Calls OpenAI (streaming)
      * - If tool calls → executes FHIR in parallel → loops
-     * - If final text → text already streamed to emitter → sends "done" event
+     * - If final text → text already streamed to sink → sends "done" event
+     *
+     * The turn is bound to the calling thread; cancelling it (client gone)
+     * aborts the OpenAI stream and pending tool calls and ends the loop with
+     * a CancellationException.
+     *
+     * @return the final assistant text (or farewell), so stateful transports can extend their history
      */
-    public void runAgentLoop(List<JsonNode> frontendMessages,
-                             String fhirToken,
-                             SseEmitter emitter) throws Exception {
-
-        // Build the working message list: system + conversation history
-        List<ObjectNode> messages = new ArrayList<>();
-        messages.add(systemMessage());
-        for (JsonNode msg : frontendMessages) {
-            messages.add((ObjectNode) mapper.createObjectNode().setAll((ObjectNode) msg.deepCopy()));
+    public String runAgentLoop(List<JsonNode> frontendMessages,
+                               String fhirToken,
+                               ChatEventSink sink,
+                               ChatTurn turn) throws Exception {
+        turn.bind(Thread.currentThread());
+        Admission admission = calls.open(turn.getId(), fhirToken, sink.getClass().getSimpleName());
+        List<ObjectNode> messages = calls.initialMessages(frontendMessages);
+        try {
+            return agentLoop(fhirToken, sink, turn, messages, admission);
+        } catch (Exception e) {
+            if (!turn.isCancelled()) throw e;
+            admission.event().outcome = "cancelled";
+            metrics.cancelled(turn.cancelReason(), turn.inModelCall ? "model" : "tools", tokensSaved(turn, messages));
+            throw new CancellationException("Chat turn cancelled: " + turn.cancelReason());
+        } finally {
+            turn.close();
+            calls.close(admission);
         }
+    }
 
-        while (true) {
-            // Stream this OpenAI call; text chunks go directly to emitter
-            OpenAIResult result = callOpenAI(messages, emitter);
+    private String agentLoop(String fhirToken, ChatEventSink sink, ChatTurn turn,
+                             List<ObjectNode> messages, Admission admission) throws Exception {
+        ChatTurnEvent event = admission.event();
+        for (int iteration = 0; ; iteration++) {
+            // Stream this OpenAI call; text chunks go directly to sink
+            event.iterations = iteration + 1;
+            OpenAIResult result = callOpenAI(messages, iteration, admission, turn, sink);
 
             boolean hasToolCalls = result.toolCalls() != null && !result.toolCalls().isEmpty();
 
             if (hasToolCalls) {
                 // Add assistant message (with tool_calls) to history
-                messages.add(buildAssistantMessage(result));
+                messages.add(calls.assistantMessage(result.content(), result.toolCalls()));
 
                 // Handle end_chat
-                Optional<ToolCall> endCall = result.toolCalls().stream()
-                        .filter(tc -> "end_chat".equals(tc.name())).findFirst();
+                Optional<ToolCall> endCall = calls.endCall(result.toolCalls());
                 if (endCall.isPresent()) {
-                    JsonNode args   = mapper.readTree(endCall.get().arguments());
-                    String farewell = args.path("farewell_message")
-                            .asText("Thank you for using CareBridge. Have a great day!");
+                    String farewell = calls.farewell(endCall.get());
                     // Emit farewell as a text chunk then done
-                    emitter.send(SseEmitter.event().name("chunk")
-                            .data(mapper.writeValueAsString(Map.of("text", farewell))));
-                    emitter.send(SseEmitter.event().name("done").data("{}"));
-                    emitter.complete();
-                    return;
+                    sink.chunk(farewell);
+                    sink.done();
+                    event.outcome = "farewell";
+                    return farewell;
                 }
 
-                // Execute all tool calls in parallel
-                List<CompletableFuture<ObjectNode>> futures = result.toolCalls().stream()
-                        .map(tc -> CompletableFuture.supplyAsync(() -> {
-                            JsonNode args;
-                            try { args = mapper.readTree(tc.arguments()); }
-                            catch (Exception e) { args = mapper.createObjectNode(); }
-                            String toolResult = fhirService.executeTool(tc.name(), args, fhirToken);
-                            ObjectNode toolMsg = mapper.createObjectNode();
-                            toolMsg.put("role", "tool");
-                            toolMsg.put("tool_call_id", tc.id());
-                            toolMsg.put("content", toolResult);
-                            return toolMsg;
-                        }, toolExecutor))
+                event.toolCalls += result.toolCalls().size();
+
+                // Execute all tool calls in parallel, as children of the turn
+                List<Future<ObjectNode>> futures = result.toolCalls().stream()
+                        .map(tc -> turn.fork(toolExecutor, () -> calls.toolMessage(tc,
+                                toolDispatcher.execute(tc.name(), tc.arguments(), fhirToken, sink::status),
+                                admission)))
                         .toList();
 
-                // Wait for all FHIR calls to complete
-                CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
-                for (CompletableFuture<ObjectNode> f : futures) {
+                // Wait for all FHIR calls to complete (interrupted if the turn is cancelled)
+                for (Future<ObjectNode> f : futures) {
                     messages.add(f.get());
                 }
+                turn.checkCancelled();
                 // Continue the loop — next OpenAI call will produce the final response
 
             } else {
                 // Final text response: text was already streamed chunk-by-chunk
-                emitter.send(SseEmitter.event().name("done").data("{}"));
-                emitter.complete();
-                break;
+                sink.done();
+                event.outcome = "done";
+                return result.content();
             }
         }
     }
 
     // ── OpenAI streaming call ─────────────────────────────────────────────────
 
+    /**
+     * Makes one streaming OpenAI call on the model chosen by {@link ModelRouter}.
+     * If a model is rejected before streaming starts (HTTP error), the next
+     * model in the routing order is tried; the last error is rethrown.
+     */
+    private OpenAIResult callOpenAI(List<ObjectNode> messages, int iteration, Admission admission,
+                                    ChatTurn turn, ChatEventSink sink) throws Exception {
+        List<String> models = calls.route(iteration, messages);
+        ModelUnavailableException lastError = null;
+        for (int i = 0; i < models.size(); i++) {
+            try {
+                return callModel(models.get(i), messages, iteration, admission, turn, sink);
+            } catch (ModelUnavailableException e) {
+                lastError = e;
+                if (!e.isRetryable()) break;
+                if (i + 1 < models.size()) calls.fallback(models.get(i), models.get(i + 1));
+            }
+        }
+        throw lastError;
+    }
+
     /**
      * Makes one streaming OpenAI call.
-     * Text chunks are emitted to emitter as they arrive.
+     * Text chunks are emitted to sink as they arrive.
      * Tool-call deltas are accumulated and returned in OpenAIResult.
      *
      * Note: when finish_reason is "tool_calls", OpenAI produces NO text content,
-     * so the emitter receives nothing during tool-call iterations.
+     * so the sink receives nothing during tool-call iterations.
      */
-    private OpenAIResult callOpenAI(List<ObjectNode> messages, SseEmitter emitter) throws Exception {
-        // Build request body
-        ObjectNode body = mapper.createObjectNode();
-        body.put("model", openAiModel);
-        body.set("messages", mapper.valueToTree(messages));
-        body.set("tools", toolsNode);
-        body.put("tool_choice", "auto");
-        body.put("stream", true);
-
+    private OpenAIResult callModel(String model, List<ObjectNode> messages, int iteration,
+                                   Admission admission, ChatTurn turn, ChatEventSink sink) throws Exception {
+        byte[] payload = mapper.writeValueAsBytes(calls.requestBody(model, messages));
         Request request = new Request.Builder()
                 .url(OPENAI_URL)
                 .header("Authorization", "Bearer " + openAiKey)
                 .header("Content-Type", "application/json")
-                .post(RequestBody.create(mapper.writeValueAsBytes(body), JSON_MEDIA))
+                .post(RequestBody.create(payload, JSON_MEDIA))
                 .build();
 
-        try (Response response = httpClient.newCall(request).execute()) {
+        turn.inModelCall   = true;
+        turn.streamedChars = 0;
+        OpenAICalls.Call call = calls.call(model, iteration, admission);
+        try (Response response = send(request, calls.priority(iteration), admission, turn,
+                calls.estimateTokens(payload.length))) {
+            call.headers(response.code());
             if (!response.isSuccessful()) {
                 String errBody = response.body() != null ? response.body().string() : "{}";
-                JsonNode errJson;
-                try { errJson = mapper.readTree(errBody); }
-                catch (Exception e) { errJson = mapper.createObjectNode(); }
-                String msg = errJson.path("error").path("message").asText("OpenAI API error " + response.code());
-                throw new RuntimeException(msg);
+                call.failed();
+                throw calls.httpError(response.code(), errBody);
             }
 
-            StringBuilder          fullContent  = new StringBuilder();
-            Map<Integer, TcBuilder> tcMap        = new LinkedHashMap<>();
-            String                  finishReason = null;
-
             try (BufferedReader reader = new BufferedReader(
                     new InputStreamReader(response.body().byteStream()))) {
                 String line;
@@ -293,100 +191,63 @@ public class OpenAIService {
                     if ("[DONE]".equals(data)) { break; }
                     if (data.isEmpty()) continue;
 
-                    try {
-                        JsonNode parsed = mapper.readTree(data);
-                        JsonNode choice = parsed.path("choices").path(0);
-                        if (choice.isMissingNode()) continue;
-
-                        // Capture finish_reason
-                        String fr = choice.path("finish_reason").asText(null);
-                        if (fr != null && !"null".equals(fr)) finishReason = fr;
+                    JsonNode parsed = calls.parseChunk(data);
+                    if (parsed == null) continue; // skip malformed chunks
 
-                        JsonNode delta = choice.path("delta");
-
-                        // Accumulate text and stream to client
-                        if (!delta.path("content").isMissingNode()
-                                && !delta.path("content").isNull()) {
-                            String chunk = delta.path("content").asText();
-                            if (!chunk.isEmpty()) {
-                                fullContent.append(chunk);
-                                // Forward chunk to SSE client
-                                emitter.send(SseEmitter.event().name("chunk")
-                                        .data(mapper.writeValueAsString(Map.of("text", chunk))));
-                            }
-                        }
-
-                        // Accumulate tool call deltas
-                        JsonNode toolCallsArr = delta.path("tool_calls");
-                        if (!toolCallsArr.isMissingNode() && toolCallsArr.isArray()) {
-                            for (JsonNode tc : toolCallsArr) {
-                                int idx = tc.path("index").asInt(0);
-                                TcBuilder builder = tcMap.computeIfAbsent(idx, k -> new TcBuilder());
-                                if (tc.has("id"))                       builder.id        += tc.get("id").asText();
-                                if (tc.path("function").has("name"))    builder.name      += tc.path("function").get("name").asText();
-                                if (tc.path("function").has("arguments")) builder.arguments += tc.path("function").get("arguments").asText();
-                            }
-                        }
-                    } catch (Exception ignored) { /* skip malformed chunks */ }
+                    String chunk = call.accept(parsed);
+                    if (chunk != null) {
+                        turn.streamedChars += chunk.length();
+                        // Forward chunk to the client
+                        sink.chunk(chunk);
+                    }
                 }
             }
 
-            List<ToolCall> toolCalls = tcMap.values().stream()
-                    .map(b -> new ToolCall(b.id, b.name, b.arguments))
-                    .toList();
-
-            if (finishReason == null) {
-                finishReason = toolCalls.isEmpty() ? "stop" : "tool_calls";
-            }
+            call.completed();
+            turn.inModelCall = false;
 
-            return new OpenAIResult(
-                    fullContent.isEmpty() ? null : fullContent.toString(),
-                    toolCalls.isEmpty()   ? null : toolCalls,
-                    finishReason
-            );
+            List<ToolCall> toolCalls = call.toolCalls();
+            return new OpenAIResult(call.content(), toolCalls.isEmpty() ? null : toolCalls);
+        } finally {
+            call.end();
         }
     }
 
-    // ── Helpers ───────────────────────────────────────────────────────────────
-
-    private ObjectNode systemMessage() {
-        ObjectNode msg = mapper.createObjectNode();
-        msg.put("role", "system");
-        msg.put("content", promptService.getSystemPrompt());
-        return msg;
+    /**
+     * Waits for a scheduler slot, then sends. A 429 caused by request/token
+     * rate limits parks the scheduler until the advertised reset and the same
+     * request is retried until the turn deadline; quota exhaustion is returned
+     * to the caller like any other error.
+     */
+    private Response send(Request request, OpenAIScheduler.Priority priority,
+                          Admission admission, ChatTurn turn, long estimatedTokens) throws Exception {
+        while (true) {
+            calls.acquire(priority, admission, estimatedTokens);
+            turn.checkCancelled();
+            // Stays registered until the turn closes: cancel() must also abort the body stream
+            Response response = turn.track(httpClient.newCall(request)).execute();
+            String errBody = response.code() == 429 && response.body() != null
+                    ? response.peekBody(64 * 1024).string() : "";
+            if (!calls.rateLimited(response.code(), errBody, response::header)) return response;
+            response.close();
+        }
     }
 
-    private ObjectNode buildAssistantMessage(OpenAIResult result) {
-        ObjectNode msg = mapper.createObjectNode();
-        msg.put("role", "assistant");
-        if (result.content() != null) msg.put("content", result.content());
-        else msg.putNull("content");
-
-        ArrayNode tcs = mapper.createArrayNode();
-        for (ToolCall tc : result.toolCalls()) {
-            ObjectNode tcNode = mapper.createObjectNode();
-            tcNode.put("id", tc.id());
-            tcNode.put("type", "function");
-            ObjectNode func = mapper.createObjectNode();
-            func.put("name", tc.name());
-            func.put("arguments", tc.arguments());
-            tcNode.set("function", func);
-            tcs.add(tcNode);
+    /**
+     * Rough tokens not spent because of a cancellation: the rest of the
+     * completion budget of an interrupted stream, or the whole next request
+     * if the turn was cancelled while tools were running.
+     */
+    private long tokensSaved(ChatTurn turn, List<ObjectNode> messages) {
+        if (turn.inModelCall) {
+            return Math.max(0, calls.estimateTokens(0) - turn.streamedChars / 4);
         }
-        msg.set("tool_calls", tcs);
-        return msg;
+        try { return calls.estimateTokens(mapper.writeValueAsBytes(messages).length); }
+        catch (Exception e) { return 0; }
     }
 
     // ── Inner types ───────────────────────────────────────────────────────────
 
-    /** Mutable accumulator for streaming tool-call deltas */
-    private static class TcBuilder {
-        String id = "", name = "", arguments = "";
-    }
-
-    /** Immutable snapshot after all deltas for one tool call are merged */
-    private record ToolCall(String id, String name, String arguments) {}
-
     /** Full result of one OpenAI streaming call */
-    private record OpenAIResult(String content, List<ToolCall> toolCalls, String finishReason) {}
+    private record OpenAIResult(String content, List<ToolCall> toolCalls) {}
 }
@@ -0,0 +1,261 @@
+package com.carebridge.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * One-call patient summary: demographics, conditions, procedures,
+ * medications, encounters and the key observations of a SUBJECT.
+ *
+ * The five searches and the observation digest
+ * ({@link ObservationAnalyticsService}) run concurrently through
+ * {@link FhirService}, so every underlying response is still cached per
+ * tool. Each resource is then projected to the handful of fields a summary
+ * needs (name, code, status, date) – most recent first, at most maxItems per
+ * section – and the whole document is cached under
+ * "get_patient_snapshot::<subject>". Backs the get_patient_snapshot tool and
+ * GET /api/patients/{id}/snapshot.
+ */
+@Service
+public class PatientSnapshotService {
+
+    static final String TOOL = "get_patient_snapshot";
+
+    /** Entries kept per section; the section's count still reports the full total */
+    @Value("${carebridge.snapshot.max-items:25}")
+    private int maxItems;
+
+    @Autowired private FhirService                 fhirService;
+    @Autowired private FhirCacheService            cache;
+    @Autowired private AuditLog                    audit;
+    @Autowired private ObservationAnalyticsService observationAnalytics;
+    @Autowired private ObjectMapper                mapper;
+
+    /** Thread pool for the concurrent per-resource fetches */
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    /** Tool entry point: reads SUBJECT from the tool arguments. */
+    public String snapshot(JsonNode args, String fhirToken) {
+        return snapshot(args.path("SUBJECT").asText(""), fhirToken);
+    }
+
+    /** Returns the snapshot JSON for subject, from cache when possible. */
+    public String snapshot(String subject, String fhirToken) {
+        subject = subject.trim();
+        if (subject.startsWith("Patient/")) subject = subject.substring("Patient/".length());
+        if (subject.isEmpty()) {
+            return "{\"error\":\"SUBJECT is required for get_patient_snapshot\"}";
+        }
+        String cacheKey = TOOL + "::" + subject;
+        String cached = cache.get(cacheKey);
+        if (cached != null) {
+            // A miss is audited by the underlying FhirService fetches; a hit is PHI access too
+            audit.record(fhirToken, TOOL, subject, cacheKey, cached, true);
+            return cached;
+        }
+
+        String finalSubject = subject;
+        // Interruptible: a cancelled turn stops the searches still running
+        List<JsonNode> parts = ChatTurn.joinAll(List.of(
+                search("search_fhir_patient", "PATIENT_ID", subject, fhirToken),
+                search("search_patient_condition", "SUBJECT", subject, fhirToken),
+                search("search_patient_procedure", "SUBJECT", subject, fhirToken),
+                search("search_patient_medications", "SUBJECT", subject, fhirToken),
+                search("search_patient_encounter", "SUBJECT", subject, fhirToken),
+                ChatTurn.forkCurrent(executor, () -> readTree(observationAnalytics.analyze(
+                        mapper.createObjectNode().put("SUBJECT", finalSubject), fhirToken)))));
+
+        ObjectNode out = mapper.createObjectNode();
+        out.put("subject", subject);
+        ArrayNode errors = mapper.createArrayNode();
+
+        JsonNode patientBundle = checked("patient", parts.get(0), errors);
+        JsonNode res = patientBundle.path("entry").path(0).path("resource");
+        if (!res.isMissingNode()) out.set("patient", projectPatient(res));
+
+        section(out, "conditions", checked("conditions", parts.get(1), errors), this::projectCondition, "onset");
+        section(out, "procedures", checked("procedures", parts.get(2), errors), this::projectProcedure, "date");
+        section(out, "medications", checked("medications", parts.get(3), errors), this::projectMedication, "authoredOn");
+        section(out, "encounters", checked("encounters", parts.get(4), errors), this::projectEncounter, "start");
+        projectObservations(out, checkedSeries(checked("observations", parts.get(5), errors), errors));
+
+        if (!errors.isEmpty()) out.set("errors", errors);
+        String result = out.toString();
+        // A partial snapshot is returned but not cached, so the next call retries the failed part
+        if (errors.isEmpty()) cache.put(cacheKey, result);
+        return result;
+    }
+
+    // ── Fetch ─────────────────────────────────────────────────────────────────
+
+    private Future<JsonNode> search(String tool, String param, String subject, String fhirToken) {
+        return ChatTurn.forkCurrent(executor, () -> {
+            ObjectNode query = mapper.createObjectNode();
+            query.put(param, subject);
+            return readTree(fhirService.executeTool(tool, query, fhirToken));
+        });
+    }
+
+    /** Records an error response under its section name; returns the node, or missing on error. */
+    private JsonNode checked(String section, JsonNode node, ArrayNode errors) {
+        if (node == null) {
+            errors.addObject().put("section", section).put("error", "Unparsable FHIR response");
+            return mapper.missingNode();
+        }
+        if (node.has("error") || "OperationOutcome".equals(node.path("resourceType").asText())) {
+            String message = node.has("error") ? node.path("error").asText()
+                    : text(node.path("issue").path(0).path("details"), node.path("issue").path(0).path("diagnostics").asText(""));
+            errors.addObject().put("section", section).put("error", message);
+            return mapper.missingNode();
+        }
+        return node;
+    }
+
+    /**
+     * Records the per-code failures inside an analyze_observations digest: a
+     * series with an error, or one computed from a partial page set.
+     */
+    private JsonNode checkedSeries(JsonNode digest, ArrayNode errors) {
+        for (JsonNode series : digest.path("observations")) {
+            String error = series.has("error") ? series.path("error").asText()
+                    : series.path("partial").asBoolean(false) ? "Incomplete observation history" : null;
+            if (error != null) {
+                errors.addObject().put("section", "observations").put("code", series.path("code").asText())
+                        .put("error", error);
+            }
+        }
+        return digest;
+    }
+
+    // ── Projection ────────────────────────────────────────────────────────────
+
+    /** Projects every entry of bundle, newest first by dateField, into out.<name> = {count, items[, truncated]}. */
+    private void section(ObjectNode out, String name, JsonNode bundle,
+                         Function<JsonNode, ObjectNode> projection, String dateField) {
+        if (bundle.isMissingNode()) return;
+        List<ObjectNode> items = new ArrayList<>();
+        for (JsonNode e : bundle.path("entry")) items.add(projection.apply(e.path("resource")));
+        items.sort(Comparator.comparing((ObjectNode n) -> n.path(dateField).asText("")).reversed());
+
+        ObjectNode section = out.putObject(name);
+        section.put("count", bundle.path("total").asInt(items.size()));
+        ArrayNode array = section.putArray("items");
+        items.stream().limit(maxItems).forEach(array::add);
+        if (items.size() > maxItems) section.put("truncated", items.size() - maxItems);
+    }
+
+    private ObjectNode projectPatient(JsonNode r) {
+        ObjectNode p = mapper.createObjectNode();
+        put(p, "id", r.path("id").asText(""));
+        JsonNode name = r.path("name").path(0);
+        List<String> parts = new ArrayList<>();
+        for (JsonNode given : name.path("given")) parts.add(given.asText());
+        if (name.has("family")) parts.add(name.path("family").asText());
+        put(p, "name", parts.isEmpty() ? name.path("text").asText("") : String.join(" ", parts));
+        put(p, "gender", r.path("gender").asText(""));
+        put(p, "birthDate", r.path("birthDate").asText(""));
+        for (JsonNode t : r.path("telecom")) {
+            String system = t.path("system").asText("");
+            if (("phone".equals(system) || "email".equals(system)) && !p.has(system)) put(p, system, t.path("value").asText(""));
+        }
+        if (r.path("deceasedBoolean").asBoolean(false) || r.has("deceasedDateTime")) {
+            put(p, "deceased", r.path("deceasedDateTime").asText("true"));
+        }
+        return p;
+    }
+
+    private ObjectNode projectCondition(JsonNode r) {
+        ObjectNode c = mapper.createObjectNode();
+        put(c, "name", text(r.path("code"), ""));
+        put(c, "code", code(r.path("code")));
+        put(c, "status", text(r.path("clinicalStatus"), ""));
+        put(c, "onset", r.path("onsetDateTime").asText(r.path("recordedDate").asText("")));
+        return c;
+    }
+
+    private ObjectNode projectProcedure(JsonNode r) {
+        ObjectNode p = mapper.createObjectNode();
+        put(p, "name", text(r.path("code"), ""));
+        put(p, "code", code(r.path("code")));
+        put(p, "status", r.path("status").asText(""));
+        put(p, "date", r.path("performedDateTime").asText(r.path("performedPeriod").path("start").asText("")));
+        return p;
+    }
+
+    private ObjectNode projectMedication(JsonNode r) {
+        ObjectNode m = mapper.createObjectNode();
+        JsonNode med = r.path("medicationCodeableConcept");
+        put(m, "name", med.isMissingNode() ? r.path("medicationReference").path("display").asText("") : text(med, ""));
+        put(m, "code", code(med));
+        put(m, "status", r.path("status").asText(""));
+        put(m, "authoredOn", r.path("authoredOn").asText(""));
+        put(m, "dosage", r.path("dosageInstruction").path(0).path("text").asText(""));
+        return m;
+    }
+
+    private ObjectNode projectEncounter(JsonNode r) {
+        ObjectNode e = mapper.createObjectNode();
+        JsonNode cls = r.path("class");
+        put(e, "class", cls.path("display").asText(cls.path("code").asText("")));
+        put(e, "type", text(r.path("type").path(0), ""));
+        put(e, "status", r.path("status").asText(""));
+        put(e, "start", r.path("period").path("start").asText(""));
+        put(e, "end", r.path("period").path("end").asText(""));
+        put(e, "discharge", text(r.path("hospitalization").path("dischargeDisposition"), ""));
+        return e;
+    }
+
+    /** Keeps the latest value, classification and trend of each key observation from the digest. */
+    private void projectObservations(ObjectNode out, JsonNode digest) {
+        if (digest.isMissingNode()) return;
+        ArrayNode observations = out.putArray("observations");
+        for (JsonNode s : digest.path("observations")) {
+            if (s.path("count").asInt(0) == 0) continue;
+            JsonNode latest = s.path("latest");
+            ObjectNode o = observations.addObject();
+            o.put("name", s.path("name").asText());
+            o.set("value", latest.path("value"));
+            put(o, "unit", s.path("unit").asText(""));
+            put(o, "date", latest.path("date").asText(""));
+            put(o, "classification", latest.path("classification").asText(""));
+            put(o, "trend", s.path("trend").asText(""));
+        }
+        out.set("abnormal", digest.path("abnormal"));
+    }
+
+    // ── Helpers ───────────────────────────────────────────────────────────────
+
+    /** CodeableConcept text, else the first coding's display, else its code. */
+    private static String text(JsonNode concept, String fallback) {
+        if (concept.hasNonNull("text")) return concept.path("text").asText();
+        JsonNode coding = concept.path("coding").path(0);
+        return coding.path("display").asText(coding.path("code").asText(fallback));
+    }
+
+    private static String code(JsonNode concept) {
+        return concept.path("coding").path(0).path("code").asText("");
+    }
+
+    /** Omits empty values – every absent field is a few tokens saved. */
+    private static void put(ObjectNode node, String field, String value) {
+        if (value != null && !value.isEmpty()) node.put(field, value);
+    }
+
+    private JsonNode readTree(String json) {
+        try { return mapper.readTree(json); }
+        catch (Exception e) { return null; }
+    }
+}
@@ -0,0 +1,166 @@
+package com.carebridge.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Answers a narrower FHIR search from a cached broader one.
+ *
+ * A SUBJECT-only search returns every Condition, Procedure or
+ * MedicationRequest of the patient. While that result is cached and complete
+ * (all entries on one page), the same search with CODE and / or ENCOUNTER
+ * added is exactly the subset of its entries whose code or encounter
+ * matches, so FhirService filters it locally instead of calling the server:
+ *
+ *   search_patient_condition    SUBJECT + CODE / ENCOUNTER   ⊂  SUBJECT
+ *   search_patient_procedure    SUBJECT + CODE / ENCOUNTER   ⊂  SUBJECT
+ *   search_patient_medications  SUBJECT + CODE               ⊂  SUBJECT
+ *
+ * Only exact code tokens are filtered locally (comma = OR). Ranges such as
+ * procedure CPT ranges, system|code tokens and modifiers still go to the
+ * server, and so do medication requests that reference a Medication
+ * resource instead of carrying the code inline.
+ *
+ *   carebridge.fhir.cache.subsumption            narrower lookups   {tool, outcome=hit|miss}
+ *   carebridge.fhir.cache.subsumption.hit.ratio  hit / all narrower lookups
+ */
+@Component
+public class QuerySubsumption {
+
+    /** A code that matches only itself: no range separator, system bar or modifier */
+    private static final Pattern EXACT_CODE = Pattern.compile("[A-Za-z0-9./]+");
+
+    @Autowired private ObjectMapper  mapper;
+    @Autowired private MeterRegistry registry;
+
+    private final AtomicLong hits   = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    /** Subsumption counters by "tool|outcome", registered on first use */
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+    @jakarta.annotation.PostConstruct
+    private void initMetrics() {
+        Gauge.builder("carebridge.fhir.cache.subsumption.hit.ratio", this, s -> {
+            long h = s.hits.get(), total = h + s.misses.get();
+            return total == 0 ? 0 : (double) h / total;
+        }).register(registry);
+    }
+
+    /** A narrower query: the broader arguments whose result contains it, and the filter to apply. */
+    public record Narrowing(String tool, ObjectNode broader, Set<String> codes, String encounter) {}
+
+    /**
+     * The broader query that contains this one, or null if the query is not a
+     * supported narrowing (args must be canonical, see FhirService#canonical).
+     */
+    public Narrowing narrowing(String toolName, JsonNode args) {
+        String subject = args.path("SUBJECT").asText("");
+        if (subject.isEmpty()) return null;
+        boolean medications = "search_patient_medications".equals(toolName);
+        if (!medications && !"search_patient_condition".equals(toolName)
+                && !"search_patient_procedure".equals(toolName)) return null;
+        if (medications && !args.path("PRESCRIPTIONID").asText("").isEmpty()) return null;
+
+        String code      = args.path("CODE").asText("");
+        String encounter = medications ? "" : args.path("ENCOUNTER").asText("");
+        if (code.isEmpty() && encounter.isEmpty()) return null; // already the broad query
+
+        Set<String> codes = null;
+        if (!code.isEmpty()) {
+            codes = exactCodes(code);
+            if (codes == null) return null;
+        }
+        ObjectNode broader = mapper.createObjectNode().put("SUBJECT", subject);
+        return new Narrowing(toolName, broader, codes, encounter.isEmpty() ? null : encounter);
+    }
+
+    /**
+     * The narrower result as a searchset Bundle of the matching entries of
+     * the broader one; null if the broader result is an error or incomplete.
+     */
+    public String filter(Narrowing n, String broaderBody) {
+        JsonNode bundle;
+        try { bundle = mapper.readTree(broaderBody); }
+        catch (Exception e) { return null; }
+        if (!"Bundle".equals(bundle.path("resourceType").asText())) return null;
+        JsonNode entries = bundle.path("entry");
+        if (!complete(bundle, entries)) return null;
+
+        boolean medications = "search_patient_medications".equals(n.tool());
+        ObjectNode out = mapper.createObjectNode();
+        out.put("resourceType", "Bundle");
+        out.put("type", "searchset");
+        ArrayNode matched = mapper.createArrayNode();
+        for (JsonNode e : entries) {
+            JsonNode res = e.path("resource");
+            // The code of a referenced Medication is not in the bundle: ask the server
+            if (medications && n.codes() != null && !res.has("medicationCodeableConcept")) return null;
+            if (n.codes() != null && !hasCode(res.path(medications ? "medicationCodeableConcept" : "code"), n.codes())) {
+                continue;
+            }
+            if (n.encounter() != null && !isEncounter(res.path("encounter").path("reference").asText(""), n.encounter())) {
+                continue;
+            }
+            matched.add(e);
+        }
+        out.put("total", matched.size());
+        out.set("entry", matched);
+        return out.toString();
+    }
+
+    /** Counts one narrower lookup that was (hit) or was not answered from a broader result. */
+    public void record(String toolName, boolean hit) {
+        (hit ? hits : misses).incrementAndGet();
+        String outcome = hit ? "hit" : "miss";
+        counters.computeIfAbsent(toolName + "|" + outcome, k -> Counter.builder("carebridge.fhir.cache.subsumption")
+                .tag("tool", toolName).tag("outcome", outcome).register(registry)).increment();
+    }
+
+    /** Comma-separated codes as a set, or null if any of them is not an exact code token. */
+    static Set<String> exactCodes(String csv) {
+        Set<String> codes = new LinkedHashSet<>();
+        for (String c : csv.split(",")) {
+            c = c.trim();
+            if (c.isEmpty() || !EXACT_CODE.matcher(c).matches()) return null;
+            codes.add(c);
+        }
+        return codes.isEmpty() ? null : codes;
+    }
+
+    // ── Helpers ───────────────────────────────────────────────────────────────
+
+    /** Every match is on this page: total agrees with the entries, or there is no next page. */
+    private static boolean complete(JsonNode bundle, JsonNode entries) {
+        if (bundle.path("truncated").asBoolean(false)) return false;
+        if (bundle.has("total")) return entries.size() >= bundle.path("total").asInt();
+        for (JsonNode link : bundle.path("link")) {
+            if ("next".equals(link.path("relation").asText())) return false;
+        }
+        return true;
+    }
+
+    private static boolean hasCode(JsonNode concept, Set<String> codes) {
+        for (JsonNode c : concept.path("coding")) {
+            if (codes.contains(c.path("code").asText())) return true;
+        }
+        return false;
+    }
+
+    private static boolean isEncounter(String reference, String id) {
+        return reference.equals(id) || reference.equals("Encounter/" + id) || reference.endsWith("/Encounter/" + id);
+    }
+}
@@ -0,0 +1,238 @@
+package com.carebridge.service;
+
+import com.carebridge.jfr.ChatTurnEvent;
+import com.carebridge.service.OpenAICalls.Admission;
+import com.carebridge.service.OpenAICalls.ToolCall;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.retry.Retry;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Non-blocking variant of {@link OpenAIService} backing POST /api/v2/chat.
+ *
+ * The OpenAI stream is consumed through WebClient and re-emitted as a
+ * Flux of ServerSentEvents, so demand from the HTTP client flows all the way
+ * back to the upstream socket and cancelling the subscription (client
+ * disconnect) tears down the OpenAI request and any pending tool calls.
+ *
+ * Tool calls still go through {@link ToolDispatcher} / {@link FhirService} so URL
+ * building and caching are shared with the servlet implementation; they run
+ * on the bounded-elastic scheduler because OkHttp is blocking. Routing,
+ * scheduling, usage, metrics and JFR events come from {@link OpenAICalls}.
+ *
+ * Event contract is identical to /api/chat: chunk / status / done / error.
+ */
+@Service
+public class ReactiveOpenAIService {
+
+    private static final String OPENAI_URL = "https://api.openai.com/v1/chat/completions";
+
+    private static final ParameterizedTypeReference<ServerSentEvent<String>> SSE_TYPE =
+            new ParameterizedTypeReference<>() {};
+
+    @Value("${openai.api.key}")
+    private String openAiKey;
+
+    @Autowired private WebClient.Builder webClientBuilder;
+    @Autowired private ObjectMapper      mapper;
+    @Autowired private ToolDispatcher    toolDispatcher;
+    @Autowired private OpenAIMetrics     metrics;
+    @Autowired private OpenAICalls       calls;
+
+    private WebClient webClient;
+
+    @jakarta.annotation.PostConstruct
+    private void init() {
+        webClient = webClientBuilder.baseUrl(OPENAI_URL).build();
+    }
+
+    // ── Public entry point ────────────────────────────────────────────────────
+
+    /**
+     * Runs the agent loop reactively. The returned Flux completes after the
+     * "done" event; failures are mapped to a single "error" event.
+     */
+    public Flux<ServerSentEvent<String>> streamChat(List<JsonNode> frontendMessages, String fhirToken) {
+        return Flux.defer(() -> {
+            List<ObjectNode> messages = calls.initialMessages(frontendMessages);
+            Admission admission = calls.open(UUID.randomUUID().toString(), fhirToken, "ReactiveSse");
+            return iterate(messages, 0, fhirToken, admission)
+                    .doFinally(signal -> {
+                        // Completion already recorded done / farewell; errors keep the default
+                        if (signal == SignalType.CANCEL) admission.event().outcome = "cancelled";
+                        calls.close(admission);
+                    });
+        }).onErrorResume(e -> Flux.just(event("error", Map.of(
+                "message", e.getMessage() != null ? e.getMessage() : "Unknown error"))))
+          // Cancellation already propagates upstream; only count it (usage is unknown mid-stream)
+          .doOnCancel(() -> metrics.cancelled("disconnect", "stream", 0));
+    }
+
+    // ── Agent loop ────────────────────────────────────────────────────────────
+
+    /** One OpenAI round: stream text to the client, then either finish or run tools and recurse. */
+    private Flux<ServerSentEvent<String>> iterate(List<ObjectNode> messages, int iteration,
+                                                  String fhirToken, Admission admission) {
+        ChatTurnEvent turnEvent = admission.event();
+        turnEvent.iterations = iteration + 1;
+        OpenAICalls.Call[] last = new OpenAICalls.Call[1]; // the call that streamed (after any fallback)
+
+        Flux<ServerSentEvent<String>> text = streamCompletion(calls.route(iteration, messages), 0, messages,
+                        iteration, admission, last)
+                .map(delta -> event("chunk", Map.of("text", delta)));
+
+        return text.concatWith(Flux.defer(() -> {
+            List<ToolCall> toolCalls = last[0].toolCalls();
+            if (toolCalls.isEmpty()) {
+                turnEvent.outcome = "done";
+                return Flux.just(event("done", Map.of()));
+            }
+            messages.add(calls.assistantMessage(last[0].content(), toolCalls));
+
+            Optional<ToolCall> endCall = calls.endCall(toolCalls);
+            if (endCall.isPresent()) {
+                turnEvent.outcome = "farewell";
+                return Flux.just(event("chunk", Map.of("text", calls.farewell(endCall.get()))),
+                        event("done", Map.of()));
+            }
+            turnEvent.toolCalls += toolCalls.size();
+
+            // Fan out FHIR calls in parallel, keep tool messages in call order; progress
+            // updates of the running tools are merged in as status events until they finish
+            Sinks.Many<ServerSentEvent<String>> status = Sinks.many().unicast().onBackpressureBuffer();
+            Flux<ServerSentEvent<String>> tools = Flux.fromIterable(toolCalls)
+                    .flatMapSequential(tc -> Mono.fromCallable(() -> toolMessage(tc, fhirToken, admission, status))
+                            .subscribeOn(Schedulers.boundedElastic()))
+                    .collectList()
+                    .doFinally(signal -> status.tryEmitComplete())
+                    .flatMapMany(toolMsgs -> {
+                        messages.addAll(toolMsgs);
+                        return iterate(messages, iteration + 1, fhirToken, admission);
+                    });
+            return Flux.merge(status.asFlux(), tools);
+        }));
+    }
+
+    // ── OpenAI streaming call ─────────────────────────────────────────────────
+
+    /** Streams from models.get(index); on a pre-stream HTTP error falls back to the next routed model. */
+    private Flux<String> streamCompletion(List<String> models, int index, List<ObjectNode> messages,
+                                            int iteration, Admission admission, OpenAICalls.Call[] last) {
+        String model = models.get(index);
+        return streamModel(model, messages, iteration, admission, last)
+                .onErrorResume(ModelUnavailableException.class, e -> {
+                    if (!e.isRetryable() || index + 1 >= models.size()) return Flux.error(e);
+                    calls.fallback(model, models.get(index + 1));
+                    return streamCompletion(models, index + 1, messages, iteration, admission, last);
+                });
+    }
+
+    /**
+     * Streams the text deltas of one call; stops at the [DONE] sentinel.
+     * Every chunk is folded into a fresh {@link OpenAICalls.Call}, published
+     * in last[0] for the tool calls and content once the stream completes.
+     * Each attempt first waits for an {@link OpenAIScheduler} slot (on
+     * bounded-elastic, the wait is blocking); a rate-limit 429 is retried on
+     * the same model after the scheduler's backoff.
+     */
+    private Flux<String> streamModel(String model, List<ObjectNode> messages, int iteration,
+                                       Admission admission, OpenAICalls.Call[] last) {
+        ObjectNode body = calls.requestBody(model, messages);
+        long estimate = calls.estimateTokens(body.toString().length());
+        OpenAIScheduler.Priority priority = calls.priority(iteration);
+
+        return Flux.defer(() -> {
+            OpenAICalls.Call call = calls.call(model, iteration, admission);
+            last[0] = call;
+            boolean[] seen = new boolean[1]; // first event of the admitted attempt
+
+            Flux<ServerSentEvent<String>> attempt = Mono.fromCallable(() -> {
+                        calls.acquire(priority, admission, estimate);
+                        return true;
+                    })
+                    .subscribeOn(Schedulers.boundedElastic())
+                    .thenMany(Flux.defer(() -> {
+                        call.sent(); // latency counts from admission, not from the scheduler wait
+                        return webClient.post()
+                                .header(HttpHeaders.AUTHORIZATION, "Bearer " + openAiKey)
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .accept(MediaType.TEXT_EVENT_STREAM)
+                                .bodyValue(body)
+                                .exchangeToFlux(resp -> openStream(resp, call));
+                    }));
+
+            return attempt
+                    .retryWhen(Retry.indefinitely().filter(RateLimitedException.class::isInstance))
+                    .doOnNext(e -> { if (!seen[0]) { seen[0] = true; call.headers(200); } })
+                    .mapNotNull(ServerSentEvent::data)
+                    .map(String::trim)
+                    .takeWhile(data -> !"[DONE]".equals(data))
+                    .filter(data -> !data.isEmpty())
+                    .mapNotNull(calls::parseChunk) // skips malformed chunks
+                    .mapNotNull(call::accept)
+                    .doOnComplete(call::completed)
+                    .doOnError(e -> call.failed())
+                    .doFinally(signal -> call.end());
+        });
+    }
+
+    /** Feeds rate-limit headers to the scheduler and maps HTTP errors before exposing the SSE body. */
+    private Flux<ServerSentEvent<String>> openStream(ClientResponse resp, OpenAICalls.Call call) {
+        Function<String, String> header = name -> resp.headers().asHttpHeaders().getFirst(name);
+        int status = resp.statusCode().value();
+        if (resp.statusCode().is2xxSuccessful()) {
+            calls.rateLimited(status, "", header);
+            return resp.bodyToFlux(SSE_TYPE);
+        }
+        return resp.bodyToMono(String.class).defaultIfEmpty("{}").flatMapMany(errBody -> {
+            if (calls.rateLimited(status, errBody, header)) return Flux.error(new RateLimitedException());
+            call.headers(status);
+            return Flux.error(calls.httpError(status, errBody));
+        });
+    }
+
+    // ── Helpers ───────────────────────────────────────────────────────────────
+
+    private ObjectNode toolMessage(ToolCall tc, String fhirToken, Admission admission,
+                                   Sinks.Many<ServerSentEvent<String>> status) {
+        String toolResult = toolDispatcher.execute(tc.name(), tc.arguments(), fhirToken, data -> {
+            // Tools run concurrently; the sink needs serialized emission
+            synchronized (status) { status.tryEmitNext(event("status", data)); }
+        });
+        return calls.toolMessage(tc, toolResult, admission);
+    }
+
+    private ServerSentEvent<String> event(String name, Map<String, ?> data) {
+        String json;
+        try { json = mapper.writeValueAsString(data); }
+        catch (Exception e) { json = "{}"; }
+        return ServerSentEvent.<String>builder().event(name).data(json).build();
+    }
+
+    // ── Inner types ───────────────────────────────────────────────────────────
+
+    /** Signals a retryable 429; the scheduler already holds back until the reset */
+    private static class RateLimitedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        RateLimitedException() { super("OpenAI rate limited", null, false, false); }
+    }
+}
@@ -0,0 +1,232 @@
+package com.carebridge.service;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * In-memory store and indexes of one FHIR resource type for {@link ClinicalReplica}.
+ *
+ * Every stored version gets an int ordinal; the resource JSON, the numeric
+ * patient id and the indexed date (the start of a period) and end live in
+ * parallel arrays under that ordinal. An update appends a new ordinal and marks the old one dead, so
+ * the inverted index (code → ordinals) only ever grows at the tail; once a
+ * quarter of the ordinals are dead the arrays are compacted. The date order
+ * (ordinals sorted by date) is rebuilt lazily after writes and searched by
+ * binary search; the end of a period is then checked per match.
+ *
+ * Readers share a read lock; ingest takes the write lock per batch.
+ */
+final class ReplicaIndex {
+
+    static final long NO_DATE = Long.MIN_VALUE;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private String[] json    = new String[1024];
+    private int[]    patient = new int[1024];
+    private long[]   date    = new long[1024];
+    private long[]   end     = new long[1024];
+    private int      size;
+    private final BitSet               dead   = new BitSet();
+    private final Map<String, Integer> byId   = new HashMap<>();
+    private final Map<String, IntList> byCode = new HashMap<>();
+
+    // Written under the write lock; rebuilt by the first date query after a write
+    private int[]   dateOrder = new int[0];
+    private boolean dateOrderStale;
+
+    private volatile Instant highWater;
+
+    /** One parsed resource ready to be indexed; end is the exclusive end of a period (date itself for a point). */
+    record Doc(String id, String json, Collection<String> codes, int patient, long date, long end, Instant lastUpdated) {}
+
+    // ── Writes ────────────────────────────────────────────────────────────────
+
+    void upsert(List<Doc> docs) {
+        if (docs.isEmpty()) return;
+        lock.writeLock().lock();
+        try {
+            for (Doc d : docs) {
+                Integer previous = byId.get(d.id());
+                if (previous != null) dead.set(previous);
+                int ord = append(d.json(), d.patient(), d.date(), d.end());
+                byId.put(d.id(), ord);
+                for (String code : d.codes()) byCode.computeIfAbsent(code, k -> new IntList()).add(ord);
+                if (d.lastUpdated() != null && (highWater == null || d.lastUpdated().isAfter(highWater))) {
+                    highWater = d.lastUpdated();
+                }
+            }
+            dateOrderStale = true;
+            if (size > 1024 && dead.cardinality() > size / 4) compact();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int append(String resource, int patientId, long when, long until) {
+        if (size == json.length) {
+            int n = size * 2;
+            json    = Arrays.copyOf(json, n);
+            patient = Arrays.copyOf(patient, n);
+            date    = Arrays.copyOf(date, n);
+            end     = Arrays.copyOf(end, n);
+        }
+        json[size]    = resource;
+        patient[size] = patientId;
+        date[size]    = when;
+        end[size]     = until;
+        return size++;
+    }
+
+    /** Drops dead ordinals and renumbers the live ones (write lock held). */
+    private void compact() {
+        int[] remap = new int[size];
+        int live = 0;
+        for (int i = 0; i < size; i++) {
+            if (dead.get(i)) { remap[i] = -1; continue; }
+            remap[i]      = live;
+            json[live]    = json[i];
+            patient[live] = patient[i];
+            date[live]    = date[i];
+            end[live]     = end[i];
+            live++;
+        }
+        Arrays.fill(json, live, size, null);
+        size = live;
+        dead.clear();
+        byId.replaceAll((id, ord) -> remap[ord]);
+        byCode.values().removeIf(list -> list.remap(remap) == 0);
+        dateOrderStale = true;
+    }
+
+    // ── Reads ─────────────────────────────────────────────────────────────────
+
+    /** Live resources carrying any of codes, in ingest order; total is written to total[0]. */
+    List<String> byCodes(Collection<String> codes, int limit, int[] total) {
+        lock.readLock().lock();
+        try {
+            BitSet hits = new BitSet(size);
+            for (String code : codes) {
+                IntList list = byCode.get(code);
+                if (list != null) list.forEach(hits::set);
+            }
+            hits.andNot(dead);
+            total[0] = hits.cardinality();
+            List<String> out = new ArrayList<>(Math.min(limit, total[0]));
+            for (int i = hits.nextSetBit(0); i >= 0 && out.size() < limit; i = hits.nextSetBit(i + 1)) out.add(json[i]);
+            return out;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Live resources with fromInclusive <= date < toExclusive and
+     * endAfter < end <= endAtMost, oldest first; total is written to total[0].
+     */
+    List<String> byDate(long fromInclusive, long toExclusive, long endAfter, long endAtMost, int limit, int[] total) {
+        lock.readLock().lock();
+        if (dateOrderStale) {
+            // Rebuild under the write lock, then downgrade to the read lock
+            lock.readLock().unlock();
+            lock.writeLock().lock();
+            try {
+                if (dateOrderStale) rebuildDateOrder();
+                lock.readLock().lock();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        try {
+            int lo = lowerBound(dateOrder, fromInclusive), hi = lowerBound(dateOrder, toExclusive);
+            List<String> out = new ArrayList<>(Math.min(limit, Math.max(0, hi - lo)));
+            int count = 0;
+            for (int i = lo; i < hi; i++) {
+                int ord = dateOrder[i];
+                if (dead.get(ord) || end[ord] <= endAfter || end[ord] > endAtMost) continue;
+                count++;
+                if (out.size() < limit) out.add(json[ord]);
+            }
+            total[0] = count;
+            return out;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Distinct patient ids of live resources carrying any of codes. */
+    int[] patientsWithCodes(Collection<String> codes) {
+        lock.readLock().lock();
+        try {
+            BitSet hits = new BitSet(size);
+            for (String code : codes) {
+                IntList list = byCode.get(code);
+                if (list != null) list.forEach(hits::set);
+            }
+            hits.andNot(dead);
+            return hits.stream().map(i -> patient[i]).filter(p -> p >= 0).distinct().sorted().toArray();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try { return size - dead.cardinality(); }
+        finally { lock.readLock().unlock(); }
+    }
+
+    Instant highWater() {
+        return highWater;
+    }
+
+    /** Write lock held. */
+    private void rebuildDateOrder() {
+        dateOrder = IntStream.range(0, size)
+                .filter(i -> !dead.get(i) && date[i] != NO_DATE)
+                .boxed()
+                .sorted(Comparator.comparingLong(i -> date[i]))
+                .mapToInt(Integer::intValue)
+                .toArray();
+        dateOrderStale = false;
+    }
+
+    private int lowerBound(int[] order, long value) {
+        int lo = 0, hi = order.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (date[order[mid]] < value) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /** Growable int array (no boxing) for the inverted index. */
+    private static final class IntList {
+        private int[] values = new int[4];
+        private int   size;
+
+        void add(int v) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = v;
+        }
+
+        void forEach(IntConsumer action) {
+            for (int i = 0; i < size; i++) action.accept(values[i]);
+        }
+
+        /** Applies an ordinal remapping, dropping -1 entries; returns the new size. */
+        int remap(int[] remap) {
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                int r = remap[values[i]];
+                if (r >= 0) values[n++] = r;
+            }
+            size = n;
+            return n;
+        }
+    }
+}
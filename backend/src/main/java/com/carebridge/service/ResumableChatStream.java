@@ -0,0 +1,193 @@
+package com.carebridge.service;
+
+import com.carebridge.jfr.SseSendEvent;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link ChatEventSink} for one SSE turn that outlives its HTTP connection.
+ *
+ * Every event gets a sequence number (the SSE "id:" field) and is kept in a
+ * bounded replay buffer. If the connection drops, the agent loop keeps
+ * running and events keep buffering; a reconnect with Last-Event-ID gets the
+ * missed events replayed and is then attached to the live stream. If no
+ * client re-attaches within the grace period, {@link ChatStreamRegistry}
+ * cancels the turn.
+ *
+ * Same event format as {@link SseEmitterSink}, plus "id:" on every event.
+ */
+public class ResumableChatStream implements ChatEventSink {
+
+    private record Event(long seq, String name, String data) {}
+
+    private final ChatTurn     turn   = new ChatTurn();
+    private final String       owner;
+    private final ObjectMapper mapper;
+    private final int          maxEvents;
+
+    /**
+     * Guards the fields below. A ReentrantLock rather than synchronized: sends
+     * block on slow clients while holding it, and a virtual thread blocked
+     * inside a monitor pins its carrier.
+     */
+    private final ReentrantLock lock   = new ReentrantLock();
+    private final Deque<Event>  buffer = new ArrayDeque<>();
+    private long       nextSeq = 1;
+    private SseEmitter emitter;
+    private boolean    terminal;
+    private long       detachedAt = System.currentTimeMillis();
+    private long       finishedAt;
+
+    ResumableChatStream(String owner, ObjectMapper mapper, int maxEvents) {
+        this.owner     = owner;
+        this.mapper    = mapper;
+        this.maxEvents = maxEvents;
+    }
+
+    public String   getTurnId() { return turn.getId(); }
+    public ChatTurn getTurn()   { return turn; }
+
+    public boolean isOwnedBy(String user) { return owner.equals(user); }
+
+    // ── ChatEventSink ─────────────────────────────────────────────────────────
+
+    @Override
+    public void chunk(String text) throws IOException {
+        append("chunk", mapper.writeValueAsString(Map.of("text", text)), false);
+    }
+
+    @Override
+    public void status(Map<String, ?> data) {
+        try {
+            append("status", mapper.writeValueAsString(data), false);
+        } catch (Exception ignored) {}
+    }
+
+    @Override
+    public void done() {
+        append("done", "{}", true);
+    }
+
+    @Override
+    public void error(Throwable e) {
+        String json;
+        try {
+            json = mapper.writeValueAsString(
+                    Map.of("message", e.getMessage() != null ? e.getMessage() : "Unknown error"));
+        } catch (Exception ignored) { json = "{\"message\":\"Unknown error\"}"; }
+        append("error", json, true);
+    }
+
+    // ── Subscription ──────────────────────────────────────────────────────────
+
+    /**
+     * Replays every buffered event after lastSeq, then attaches the emitter to
+     * the live stream (or completes it if the turn already ended). A previous
+     * emitter, if any, is completed – only one connection reads a turn.
+     *
+     * @return false if events after lastSeq were already evicted from the buffer
+     */
+    boolean attach(SseEmitter next, long lastSeq) {
+        lock.lock();
+        try {
+            long oldest = buffer.isEmpty() ? nextSeq : buffer.peekFirst().seq();
+            if (lastSeq + 1 < oldest) return false;
+
+            if (emitter != null && emitter != next) emitter.complete();
+            emitter = next;
+            for (Event e : buffer) {
+                if (e.seq() > lastSeq && !send(e)) return true;
+            }
+            if (terminal && emitter != null) {
+                emitter.complete();
+                emitter = null;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Called from the emitter's completion / error / timeout callbacks. */
+    void detach(SseEmitter gone) {
+        lock.lock();
+        try {
+            if (emitter != gone) return;
+            emitter    = null;
+            detachedAt = System.currentTimeMillis();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** True once nobody has been listening for longer than graceMs on a running turn. */
+    boolean abandoned(long now, long graceMs) {
+        lock.lock();
+        try {
+            return !terminal && emitter == null && now - detachedAt > graceMs;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** True once the turn ended more than retentionMs ago (the replay buffer can go). */
+    boolean expired(long now, long retentionMs) {
+        lock.lock();
+        try {
+            return terminal && now - finishedAt > retentionMs;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ── Internals ─────────────────────────────────────────────────────────────
+
+    private void append(String name, String data, boolean last) {
+        lock.lock();
+        try {
+            if (terminal) return;
+            Event e = new Event(nextSeq++, name, data);
+            buffer.addLast(e);
+            if (buffer.size() > maxEvents) buffer.removeFirst();
+            if (last) {
+                terminal   = true;
+                finishedAt = System.currentTimeMillis();
+            }
+            if (emitter == null) return;
+            if (send(e) && last) {
+                emitter.complete();
+                emitter = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends to the attached emitter (lock held, so events go out in sequence
+     * order); a failed write detaches it instead of failing the turn.
+     */
+    private boolean send(Event e) {
+        SseSendEvent jfr = new SseSendEvent();
+        jfr.begin();
+        try {
+            emitter.send(SseEmitter.event().id(Long.toString(e.seq())).name(e.name()).data(e.data()));
+            jfr.event    = e.name();
+            jfr.sequence = e.seq();
+            jfr.bytes    = e.data().length();
+            jfr.commit();
+            return true;
+        } catch (Exception ex) {
+            emitter.completeWithError(ex);
+            emitter    = null;
+            detachedAt = System.currentTimeMillis();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.carebridge.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * {@link ChatEventSink} over a servlet SseEmitter.
+ *
+ * Event format (JSON lines):
+ *   event: chunk   data: {"text":"..."}
+ *   event: status  data: {"tool":"...","message":"...", ...}
+ *   event: done    data: {}
+ *   event: error   data: {"message":"..."}
+ */
+public class SseEmitterSink implements ChatEventSink {
+
+    private final SseEmitter   emitter;
+    private final ObjectMapper mapper;
+
+    public SseEmitterSink(SseEmitter emitter, ObjectMapper mapper) {
+        this.emitter = emitter;
+        this.mapper  = mapper;
+    }
+
+    @Override
+    public void chunk(String text) throws IOException {
+        emitter.send(SseEmitter.event().name("chunk")
+                .data(mapper.writeValueAsString(Map.of("text", text))));
+    }
+
+    @Override
+    public void status(Map<String, ?> data) {
+        try {
+            emitter.send(SseEmitter.event().name("status").data(mapper.writeValueAsString(data)));
+        } catch (Exception ignored) {}
+    }
+
+    @Override
+    public void done() throws IOException {
+        emitter.send(SseEmitter.event().name("done").data("{}"));
+        emitter.complete();
+    }
+
+    @Override
+    public void error(Throwable e) {
+        try {
+            String errJson = mapper.writeValueAsString(
+                    Map.of("message", e.getMessage() != null ? e.getMessage() : "Unknown error")
+            );
+            emitter.send(SseEmitter.event().name("error").data(errJson));
+        } catch (Exception ignored) {}
+        emitter.completeWithError(e);
+    }
+}
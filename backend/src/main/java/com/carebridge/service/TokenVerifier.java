@@ -0,0 +1,83 @@
+package com.carebridge.service;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Knows which bearer tokens the FHIR server has recently accepted.
+ *
+ * {@link UserIdentity} reads a token's claims without verifying them. That is
+ * fine for fairness and metrics, but not where the answer depends on who the
+ * caller is and the FHIR server never sees the token (replica queries,
+ * cache-served PHI, per-user usage). A token counts as verified for
+ * cache-ms after the FHIR server answered it successfully, either for an
+ * ordinary tool call ({@link #accepted}) or for a probe of probe-path
+ * ({@link #verify}). Tokens are remembered by their SHA-256 only.
+ */
+@Component
+public class TokenVerifier {
+
+    @Value("${carebridge.fhir.base-url:https://fhirassist.rsystems.com:481}")
+    private String fhirBase;
+
+    @Value("${carebridge.auth.probe-path:/baseR4/Patient?_id=0}")
+    private String probePath;
+
+    @Value("${carebridge.auth.cache-ms:300000}")
+    private long cacheMs;
+
+    @Autowired private OkHttpClient httpClient;
+
+    /** SHA-256 of a token → time its last acceptance stops counting */
+    private final Map<String, Long> verifiedUntil = new ConcurrentHashMap<>();
+
+    /** True if the FHIR server accepts the token; probes it unless it was accepted recently. */
+    public boolean verify(String fhirToken) {
+        if (isVerified(fhirToken)) return true;
+        if (fhirToken == null || fhirToken.isBlank()) return false;
+
+        Request probe = new Request.Builder().url(fhirBase + probePath)
+                .header("Authorization", "Bearer " + fhirToken).get().build();
+        try (Response response = httpClient.newCall(probe).execute()) {
+            if (!response.isSuccessful()) return false;
+        } catch (IOException e) {
+            return false;
+        }
+        accepted(fhirToken);
+        return true;
+    }
+
+    /** True if the token was accepted within cache-ms; never blocks. */
+    public boolean isVerified(String fhirToken) {
+        if (fhirToken == null || fhirToken.isBlank()) return false;
+        Long until = verifiedUntil.get(sha256(fhirToken));
+        return until != null && until > System.currentTimeMillis();
+    }
+
+    /** The FHIR server has just answered a request made with this token successfully. */
+    public void accepted(String fhirToken) {
+        if (fhirToken == null || fhirToken.isBlank()) return;
+        long now = System.currentTimeMillis();
+        verifiedUntil.put(sha256(fhirToken), now + cacheMs);
+        if (verifiedUntil.size() > 10_000) verifiedUntil.values().removeIf(t -> t <= now);
+    }
+
+    static String sha256(String s) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8)));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,456 @@
+package com.carebridge.service;
+
+import com.carebridge.constants.KnowledgeBase;
+import com.carebridge.constants.ToolDefinitions;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Checks and repairs model tool arguments before anything is sent to FHIR.
+ *
+ * The parameter schemas of {@link ToolDefinitions#TOOLS_JSON} are compiled
+ * once at startup (names, types, enums, required). Every call is then
+ * checked against its schema and repaired where the intent is clear:
+ *
+ *   json            fenced / single-quoted / trailing-comma JSON parsed anyway
+ *   name            argument name in the wrong case ("subject" → SUBJECT); unknown names dropped
+ *   type            number / boolean given as the wrong JSON type; nulls dropped
+ *   prefix          "Patient/10017" → "10017", "Encounter/5" → "5"
+ *   list            "1; 2 3" → "1,2,3" for PATIENTS
+ *   date            "15th February 1985", "2020/01/13", ">=2020-01-13" → FHIR dates and prefixes
+ *   value_quantity  "> 10 mEq/L" → "gt10|mEq/L"
+ *   code            names → codes through the knowledge base (LOINC, ICD-9, drug-code case)
+ *
+ * A call that still breaks a rule is not executed: the model gets a
+ * structured error listing each field and what is wrong with it, without a
+ * FHIR round trip. The rules are the schema plus what the FHIR server
+ * needs: searches need at least one filter, ids
+ * must look like ids, codes must exist in the knowledge base, and a cohort
+ * query over encounters takes no CODE.
+ *
+ * A repair "saves an iteration" when, without it, the call would have
+ * failed or come back empty and the model would have had to call again.
+ * Name case, prefixes and nulls are also handled by FhirService's canonical
+ * arguments and do not count.
+ *
+ *   carebridge.tool.args                    tool calls             {tool, outcome=valid|repaired|rejected}
+ *   carebridge.tool.args.repairs            repairs applied        {tool, repair}
+ *   carebridge.tool.args.iterations.saved   calls rescued by a repair {tool}
+ */
+@Component
+public class ToolArgumentValidator {
+
+    private static final Set<String> SAVES_ITERATION = Set.of("json", "date", "value_quantity", "code");
+
+    private static final Pattern ID        = Pattern.compile("[A-Za-z0-9\\-.]{1,64}");
+    private static final Pattern LOINC     = Pattern.compile("[0-9]+-[0-9]");
+    private static final Pattern ICD9      = Pattern.compile("[EVev]?[0-9]+(\\.[0-9]+)?");
+    private static final Pattern ICD9_PAIR = Pattern.compile("([EV]?[0-9]+)=([^,\\n]+)");
+    private static final Pattern QUANTITY  = Pattern.compile(
+            "(?i)^(gt|lt|ge|le|eq|ne|>=|<=|>|<|=)?\\s*(-?[0-9]+(?:\\.[0-9]+)?)\\s*\\|?\\s*(\\S.*)?$");
+    // A letter prefix only counts before a digit or a space: "ap" must not eat the "Ap" of "April 5 2020"
+    private static final Pattern DATE_PREFIX = Pattern.compile(
+            "(?i)^((?:gt|lt|ge|le|eq|ne|sa|eb|ap)(?=[\\s0-9])|>=|<=|>|<|=)?\\s*(.+)$");
+    private static final Pattern PARTIAL_DATE = Pattern.compile("[0-9]{4}(-[0-9]{2}(-[0-9]{2}(T.+)?)?)?");
+    private static final Map<String, String> OPERATORS = Map.of(
+            ">", "gt", "<", "lt", ">=", "ge", "<=", "le", "=", "eq");
+    private static final List<DateTimeFormatter> DATE_FORMATS = List.of(
+            DateTimeFormatter.ofPattern("uuuu/M/d", Locale.ENGLISH),
+            DateTimeFormatter.ofPattern("d MMMM uuuu", Locale.ENGLISH),
+            DateTimeFormatter.ofPattern("d MMM uuuu", Locale.ENGLISH),
+            DateTimeFormatter.ofPattern("MMMM d uuuu", Locale.ENGLISH),
+            DateTimeFormatter.ofPattern("MMM d uuuu", Locale.ENGLISH));
+
+    @Autowired private ObjectMapper          mapper;
+    @Autowired private ObservationRangeTable ranges;
+    @Autowired private MeterRegistry         registry;
+
+    private Map<String, Schema> schemas;
+
+    /** Normalised condition name → ICD-9 code, and drug code by upper case */
+    private final Map<String, String> icd9ByName = new LinkedHashMap<>();
+    private final Map<String, String> drugCodes  = new HashMap<>();
+
+    @jakarta.annotation.PostConstruct
+    private void init() throws Exception {
+        Map<String, Schema> compiled = new HashMap<>();
+        for (JsonNode tool : mapper.readTree(ToolDefinitions.TOOLS_JSON)) {
+            JsonNode fn = tool.path("function");
+            compiled.put(fn.path("name").asText(), Schema.compile(fn.path("parameters")));
+        }
+        schemas = Map.copyOf(compiled);
+
+        Matcher m = ICD9_PAIR.matcher(KnowledgeBase.CONDITION_CODES);
+        while (m.find()) icd9ByName.putIfAbsent(normalise(m.group(2)), m.group(1));
+        for (String code : KnowledgeBase.DRUG_CODES.substring(KnowledgeBase.DRUG_CODES.indexOf('\n') + 1).split("[,\\s]+")) {
+            if (!code.isBlank()) drugCodes.put(code.toUpperCase(Locale.ROOT), code);
+        }
+    }
+
+    /** Outcome of one check: the (repaired) arguments, or the error handed back to the model. */
+    public record Validated(ObjectNode args, List<String> repairs, String error) {}
+
+    /**
+     * Parses, checks and repairs rawArguments for toolName.
+     * Exactly one of args and error is set.
+     */
+    public Validated validate(String toolName, String rawArguments) {
+        Schema schema = schemas.get(toolName);
+        if (schema == null) {
+            return reject(toolName, List.of(problem("", "unknown tool " + toolName)), null, List.of());
+        }
+        List<String> repairs  = new ArrayList<>();
+        List<ObjectNode> problems = new ArrayList<>();
+
+        JsonNode parsed = parse(rawArguments, repairs);
+        if (parsed == null || !parsed.isObject()) {
+            return reject(toolName, List.of(problem("", "arguments are not a JSON object")), null, repairs);
+        }
+
+        // ── Schema: names, types, enums ──
+        ObjectNode args = mapper.createObjectNode();
+        parsed.fields().forEachRemaining(f -> {
+            Prop prop = schema.byName().get(f.getKey().toLowerCase(Locale.ROOT));
+            if (prop == null) {
+                repairs.add("name");
+                problems.add(problem(f.getKey(), "unknown argument (ignored)"));
+                return;
+            }
+            if (!prop.name().equals(f.getKey())) repairs.add("name");
+            JsonNode value = coerce(prop, f.getValue(), repairs, problems);
+            if (value != null) args.set(prop.name(), value);
+        });
+        // Unknown arguments only matter if nothing usable is left
+        problems.removeIf(p -> !args.isEmpty() && p.path("problem").asText().startsWith("unknown argument"));
+
+        // ── Values: ids, dates, quantities, codes ──
+        repairValues(toolName, args, repairs, problems);
+
+        // ── Rules ──
+        for (String required : schema.required()) {
+            boolean reported = problems.stream().anyMatch(p -> required.equals(p.path("field").asText()));
+            if (!args.hasNonNull(required) && !reported) problems.add(problem(required, "required"));
+        }
+        rules(toolName, args, problems);
+
+        if (!problems.isEmpty()) return reject(toolName, problems, args, repairs);
+        count(toolName, repairs.isEmpty() ? "valid" : "repaired", repairs);
+        return new Validated(args, List.copyOf(repairs), null);
+    }
+
+    // ── Parsing ───────────────────────────────────────────────────────────────
+
+    private JsonNode parse(String raw, List<String> repairs) {
+        if (raw == null || raw.isBlank()) return mapper.createObjectNode();
+        try { return mapper.readTree(raw); }
+        catch (Exception ignored) { /* try the usual slips below */ }
+
+        String fixed = raw.trim()
+                .replaceAll("^```(?:json)?\\s*", "")
+                .replaceAll("\\s*```$", "")
+                .replaceAll(",\\s*([}\\]])", "$1");
+        if (!fixed.contains("\"")) fixed = fixed.replace('\'', '"');
+        if (fixed.startsWith("{") && !fixed.endsWith("}")) fixed = fixed + "}";
+        try {
+            JsonNode node = mapper.readTree(fixed);
+            repairs.add("json");
+            return node;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private JsonNode coerce(Prop prop, JsonNode v, List<String> repairs, List<ObjectNode> problems) {
+        if (v.isNull()) {
+            repairs.add("type");
+            return null;
+        }
+        switch (prop.type()) {
+            case "number" -> {
+                if (v.isNumber()) return v;
+                if (v.isTextual() && v.asText().trim().matches("-?[0-9]+")) {
+                    long n;
+                    try { n = Long.parseLong(v.asText().trim()); }
+                    catch (NumberFormatException e) {
+                        problems.add(problem(prop.name(), "number out of range"));
+                        return null;
+                    }
+                    repairs.add("type");
+                    return mapper.getNodeFactory().numberNode(n);
+                }
+                if (v.isTextual() && v.asText().isBlank()) return null;
+            }
+            case "boolean" -> {
+                if (v.isBoolean()) return v;
+                String t = v.asText().trim().toLowerCase(Locale.ROOT);
+                if (t.equals("true") || t.equals("false")) {
+                    repairs.add("type");
+                    return mapper.getNodeFactory().booleanNode(t.equals("true"));
+                }
+                if (t.isEmpty()) return null;
+            }
+            default -> {
+                if (!v.isValueNode()) break;
+                if (!v.isTextual()) repairs.add("type");
+                String text = v.asText().trim();
+                if (text.isEmpty()) return null;
+                if (prop.enumValues() == null) return mapper.getNodeFactory().textNode(text);
+                for (String allowed : prop.enumValues()) {
+                    if (allowed.equalsIgnoreCase(text)) {
+                        if (!allowed.equals(text)) repairs.add("type");
+                        return mapper.getNodeFactory().textNode(allowed);
+                    }
+                }
+                problems.add(problem(prop.name(), "must be one of " + String.join(", ", prop.enumValues())));
+                return null;
+            }
+        }
+        problems.add(problem(prop.name(), "must be a " + prop.type()));
+        return null;
+    }
+
+    // ── Value repairs ─────────────────────────────────────────────────────────
+
+    private void repairValues(String toolName, ObjectNode args, List<String> repairs, List<ObjectNode> problems) {
+        for (Iterator<Map.Entry<String, JsonNode>> it = args.fields(); it.hasNext(); ) {
+            Map.Entry<String, JsonNode> f = it.next();
+            if (!f.getValue().isTextual()) continue;
+            String name  = f.getKey();
+            String value = f.getValue().asText();
+            String fixed = switch (name) {
+                case "SUBJECT", "PATIENT_ID" -> id(name, value, "Patient/", repairs, problems);
+                case "ENCOUNTER"             -> id(name, value, "Encounter/", repairs, problems);
+                case "PATIENTS"              -> ids(name, value, repairs, problems);
+                case "BIRTHDATE"             -> date(name, value, false, repairs, problems);
+                case "DATE", "DATE2"         -> date(name, value, true, repairs, problems);
+                case "value_quantity"        -> quantity(name, value, repairs, problems);
+                case "CODES"                 -> codes(name, value, "observations", repairs, problems);
+                case "CONDITION_CODE"        -> codes(name, value, "condition", repairs, problems);
+                case "CODE"                  -> codes(name, value, codeKind(toolName, args), repairs, problems);
+                default                      -> value;
+            };
+            if (fixed != null && !fixed.equals(value)) f.setValue(mapper.getNodeFactory().textNode(fixed));
+        }
+    }
+
+    /** Which knowledge-base table CODE of this tool is looked up in. */
+    private static String codeKind(String toolName, ObjectNode args) {
+        return switch (toolName) {
+            case "search_patient_observations" -> "observations";
+            case "search_patient_condition"    -> "condition";
+            case "search_patient_medications"  -> "medications";
+            case "cohort_query" -> args.path("RESOURCE").asText("observations");
+            default -> "";
+        };
+    }
+
+    private String id(String name, String value, String prefix, List<String> repairs, List<ObjectNode> problems) {
+        String id = value;
+        if (id.regionMatches(true, 0, prefix, 0, prefix.length())) {
+            id = id.substring(prefix.length()).trim();
+            repairs.add("prefix");
+        }
+        if (!ID.matcher(id).matches()) problems.add(problem(name, "must be an ID, got \"" + value + "\""));
+        return id;
+    }
+
+    private String ids(String name, String value, List<String> repairs, List<ObjectNode> problems) {
+        List<String> out = new ArrayList<>();
+        for (String part : value.split("[,;\\s]+")) {
+            if (!part.isEmpty()) out.add(id(name, part, "Patient/", repairs, problems));
+        }
+        String joined = String.join(",", out);
+        String commaSeparated = value.replaceAll("(?i)Patient/", "").replaceAll("\\s*,\\s*", ",").trim();
+        if (!joined.equals(commaSeparated)) repairs.add("list");
+        return joined;
+    }
+
+    /** A FHIR date (optionally with a search prefix when prefixed is set) in yyyy[-MM[-dd]] form. */
+    private String date(String name, String value, boolean prefixed, List<String> repairs, List<ObjectNode> problems) {
+        String prefix = "";
+        String body   = value;
+        if (prefixed) {
+            Matcher m = DATE_PREFIX.matcher(value);
+            if (m.matches() && m.group(1) != null) {
+                String op = m.group(1).toLowerCase(Locale.ROOT);
+                prefix = OPERATORS.getOrDefault(op, op);
+                body   = m.group(2).trim();
+            }
+        }
+        String iso = isoDate(body);
+        if (iso == null) {
+            problems.add(problem(name, "not a date (use YYYY-MM-DD" + (prefixed ? " with gt / lt / ge / le" : "") + ")"));
+            return value;
+        }
+        String fixed = prefix + iso;
+        if (!fixed.equals(value)) repairs.add("date");
+        return fixed;
+    }
+
+    private static String isoDate(String s) {
+        if (PARTIAL_DATE.matcher(s).matches()) return s;
+        String cleaned = s.replaceAll("(?i)(\\d)(st|nd|rd|th)\\b", "$1").replace(",", " ").replaceAll("\\s+", " ").trim();
+        for (DateTimeFormatter f : DATE_FORMATS) {
+            try { return LocalDate.parse(cleaned, f).toString(); }
+            catch (DateTimeParseException ignored) { /* next format */ }
+        }
+        return null;
+    }
+
+    private String quantity(String name, String value, List<String> repairs, List<ObjectNode> problems) {
+        Matcher m = QUANTITY.matcher(value.trim());
+        if (!m.matches()) {
+            problems.add(problem(name, "must look like gt10|mg/dL (gt, lt, ge, le or eq, a number, optional unit)"));
+            return value;
+        }
+        String op    = m.group(1) == null ? "eq" : m.group(1).toLowerCase(Locale.ROOT);
+        String fixed = OPERATORS.getOrDefault(op, op) + m.group(2) + (m.group(3) != null ? "|" + m.group(3).trim() : "");
+        if (!fixed.equals(value)) repairs.add("value_quantity");
+        return fixed;
+    }
+
+    /** Comma-separated codes of one kind; names are resolved through the knowledge base. */
+    private String codes(String name, String value, String kind, List<String> repairs, List<ObjectNode> problems) {
+        List<String> out = new ArrayList<>();
+        for (String part : value.split(",")) {
+            String code = part.trim();
+            if (code.isEmpty()) continue;
+            String resolved = switch (kind) {
+                case "observations" -> LOINC.matcher(code).matches() ? code : ranges.codeForName(code);
+                case "condition"    -> ICD9.matcher(code).matches() ? code.toUpperCase(Locale.ROOT) : conditionCode(code);
+                case "medications"  -> drugCodes.getOrDefault(code.toUpperCase(Locale.ROOT), code);
+                default             -> code;
+            };
+            if (resolved == null) {
+                problems.add(problem(name, unresolved(kind, code)));
+                resolved = code;
+            } else if (!resolved.equals(code)) {
+                repairs.add("code");
+            }
+            out.add(resolved);
+        }
+        return String.join(",", out);
+    }
+
+    /** ICD-9 code for a condition name: an exact name, or the only name that contains it. */
+    private String conditionCode(String name) {
+        String key = normalise(name);
+        String exact = icd9ByName.get(key);
+        if (exact != null) return exact;
+        List<String> candidates = candidates(key);
+        return key.length() >= 4 && candidates.size() == 1 ? icd9ByName.get(candidates.get(0)) : null;
+    }
+
+    private List<String> candidates(String key) {
+        return icd9ByName.keySet().stream().filter(n -> n.contains(key)).toList();
+    }
+
+    private String unresolved(String kind, String code) {
+        return switch (kind) {
+            case "observations" -> "\"" + code + "\" is not a LOINC code or known observation name";
+            case "condition" -> {
+                List<String> matches = candidates(normalise(code));
+                if (matches.isEmpty() || normalise(code).length() < 4) {
+                    yield "\"" + code + "\" is not an ICD-9 code or known condition name";
+                }
+                StringBuilder sb = new StringBuilder("\"" + code + "\" is ambiguous, use one of: ");
+                matches.stream().limit(6).forEach(n -> sb.append(icd9ByName.get(n)).append(' '));
+                yield sb.toString().trim();
+            }
+            default -> "unknown code \"" + code + "\"";
+        };
+    }
+
+    // ── Rules ─────────────────────────────────────────────────────────────────
+
+    private void rules(String toolName, ObjectNode args, List<ObjectNode> problems) {
+        switch (toolName) {
+            case "search_fhir_patient", "search_patient_condition", "search_patient_procedure",
+                 "search_patient_medications", "search_patient_encounter" -> {
+                if (args.isEmpty()) problems.add(problem("", "at least one search parameter is required"));
+            }
+            case "cohort_query" -> {
+                if (!args.hasNonNull("PATIENTS") && !args.hasNonNull("CONDITION_CODE")) {
+                    problems.add(problem("PATIENTS", "PATIENTS or CONDITION_CODE is required"));
+                }
+                if ("encounter".equals(args.path("RESOURCE").asText()) && args.hasNonNull("CODE")) {
+                    problems.add(problem("CODE", "not supported for RESOURCE=encounter (leave it empty)"));
+                }
+            }
+            default -> { }
+        }
+    }
+
+    // ── Outcome ───────────────────────────────────────────────────────────────
+
+    private Validated reject(String toolName, List<ObjectNode> problems, ObjectNode args, List<String> repairs) {
+        ObjectNode error = mapper.createObjectNode();
+        error.put("error", "Invalid arguments for " + toolName);
+        ArrayNode list = error.putArray("problems");
+        problems.forEach(list::add);
+        if (args != null) error.set("received", args);
+        error.put("hint", "Fix the listed arguments and call the tool again.");
+        count(toolName, "rejected", repairs);
+        return new Validated(null, List.copyOf(repairs), error.toString());
+    }
+
+    private void count(String toolName, String outcome, List<String> repairs) {
+        String tool = schemas.containsKey(toolName) ? toolName : "unknown";
+        Counter.builder("carebridge.tool.args").tag("tool", tool).tag("outcome", outcome)
+                .register(registry).increment();
+        for (String repair : new LinkedHashSet<>(repairs)) {
+            Counter.builder("carebridge.tool.args.repairs").tag("tool", tool).tag("repair", repair)
+                    .register(registry).increment();
+        }
+        if (outcome.equals("repaired") && repairs.stream().anyMatch(SAVES_ITERATION::contains)) {
+            Counter.builder("carebridge.tool.args.iterations.saved").tag("tool", tool).register(registry).increment();
+        }
+    }
+
+    private ObjectNode problem(String field, String message) {
+        ObjectNode p = mapper.createObjectNode();
+        if (!field.isEmpty()) p.put("field", field);
+        p.put("problem", message);
+        return p;
+    }
+
+    private static String normalise(String s) {
+        return s.toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9]", "");
+    }
+
+    // ── Compiled schema ───────────────────────────────────────────────────────
+
+    private record Prop(String name, String type, List<String> enumValues) {}
+
+    /** One tool's parameters, looked up by lower-case name. */
+    private record Schema(Map<String, Prop> byName, List<String> required) {
+        static Schema compile(JsonNode parameters) {
+            Map<String, Prop> byName = new HashMap<>();
+            parameters.path("properties").fields().forEachRemaining(p -> {
+                List<String> values = null;
+                if (p.getValue().has("enum")) {
+                    values = new ArrayList<>();
+                    for (JsonNode v : p.getValue().path("enum")) values.add(v.asText());
+                }
+                byName.put(p.getKey().toLowerCase(Locale.ROOT),
+                        new Prop(p.getKey(), p.getValue().path("type").asText("string"), values));
+            });
+            List<String> required = new ArrayList<>();
+            for (JsonNode r : parameters.path("required")) required.add(r.asText());
+            return new Schema(Map.copyOf(byName), List.copyOf(required));
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.carebridge.service;
+
+import com.carebridge.jfr.ToolCallEvent;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Routes a model tool call to its implementation.
+ * Plain FHIR searches go to {@link FhirService}; composite tools that run
+ * server-side logic on top of FHIR data are handled by their own services.
+ */
+@Service
+public class ToolDispatcher {
+
+    @Autowired private FhirService                 fhirService;
+    @Autowired private ObservationAnalyticsService observationAnalytics;
+    @Autowired private PatientSnapshotService      patientSnapshot;
+    @Autowired private CohortQueryService          cohortQuery;
+    @Autowired private ToolArgumentValidator       validator;
+
+    /**
+     * Executes a tool call as the model sent it: the raw arguments are checked
+     * and repaired against the tool's schema first, and a call that cannot be
+     * repaired gets the validation error back without reaching FHIR.
+     */
+    public String execute(String toolName, String rawArguments, String fhirToken, Consumer<Map<String, ?>> status) {
+        ToolArgumentValidator.Validated checked = validator.validate(toolName, rawArguments);
+        return checked.error() != null ? checked.error() : execute(toolName, checked.args(), fhirToken, status);
+    }
+
+    public String execute(String toolName, JsonNode args, String fhirToken) {
+        return execute(toolName, args, fhirToken, status -> {});
+    }
+
+    /**
+     * @param toolName  OpenAI tool name
+     * @param args      Parsed tool arguments
+     * @param fhirToken Bearer token obtained at login
+     * @param status    Receives progress updates of long-running tools (status events)
+     * @return          JSON string handed back to the model as the tool result
+     */
+    public String execute(String toolName, JsonNode args, String fhirToken, Consumer<Map<String, ?>> status) {
+        ToolCallEvent event = new ToolCallEvent();
+        event.tool = toolName;
+        event.start();
+        String result = null;
+        try {
+            result = switch (toolName) {
+                case "analyze_observations" -> observationAnalytics.analyze(args, fhirToken);
+                case "get_patient_snapshot" -> patientSnapshot.snapshot(args, fhirToken);
+                case "cohort_query"         -> cohortQuery.query(args, fhirToken, status);
+                default -> fhirService.executeTool(toolName, args, fhirToken);
+            };
+            return result;
+        } finally {
+            event.end(result != null ? result.length() : 0);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.carebridge.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Token usage and cost accounting from the usage chunk that
+ * stream_options.include_usage adds at the end of every streamed call.
+ *
+ * Each agent loop opens a {@link TurnUsage}. Every model call records its
+ * prompt, cached-prompt and completion tokens and latency as one iteration.
+ * Every tool result records its size; its estimated tokens (chars / 4) are
+ * charged to the tool once per later model call in the turn, because the
+ * result is re-sent in every following prompt ("carried" tokens).
+ *
+ * Rollups by model, user and tool are LongAdder counters in concurrent
+ * maps, so recording into them never takes a lock (only a turn's own lists
+ * are synchronized, and those are never contended across turns); the last
+ * recent-turns turns are kept in full for GET /api/usage. Users are not
+ * metric tags (unbounded cardinality) – per-user figures are only
+ * available from the endpoint.
+ *
+ * Cost is computed when prices are configured, in USD per 1M tokens:
+ * carebridge.usage.price.<model>.prompt / .cached / .completion
+ * (cached defaults to the prompt price).
+ *
+ *   carebridge.openai.cost          USD spent                          {model}
+ *   carebridge.chat.turn.tokens     prompt + completion tokens per turn {outcome}
+ *   carebridge.tool.result.tokens   estimated tokens per tool result   {tool}
+ */
+@Component
+public class UsageAccounting {
+
+    private static final int CHARS_PER_TOKEN = 4;
+
+    @Value("${carebridge.usage.recent-turns:200}")
+    private int recentTurns;
+
+    @Autowired private MeterRegistry registry;
+    @Autowired private Environment   env;
+
+    private final Totals                            all     = new Totals();
+    private final Map<String, Totals>               byModel = new ConcurrentHashMap<>();
+    private final Map<String, Totals>               byUser  = new ConcurrentHashMap<>();
+    private final Map<String, ToolTotals>           byTool  = new ConcurrentHashMap<>();
+    private final Map<String, Price>                prices  = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedDeque<TurnReport> recent  = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger                     recentCount = new AtomicInteger();
+
+    // Meters by tag value, registered on first use
+    private final Map<String, Counter>             costByModel        = new ConcurrentHashMap<>();
+    private final Map<String, DistributionSummary> turnTokensByOutcome = new ConcurrentHashMap<>();
+    private final Map<String, DistributionSummary> resultTokensByTool  = new ConcurrentHashMap<>();
+
+    /** Starts accounting for one agent loop; close it with {@link #close}. */
+    TurnUsage open(String turnId, String user) {
+        return new TurnUsage(turnId, user);
+    }
+
+    /** Rolls up the turn's carried tool tokens and keeps its report. */
+    void close(TurnUsage turn, String outcome) {
+        TurnReport report = turn.finish(outcome);
+        for (ToolUsage t : report.tools()) {
+            byTool.computeIfAbsent(t.tool(), k -> new ToolTotals()).carriedTokens.add(t.carriedTokens());
+        }
+        all.turns.increment();
+        byUser.computeIfAbsent(report.user(), k -> new Totals()).turns.increment();
+        turnTokensByOutcome.computeIfAbsent(outcome, o -> DistributionSummary.builder("carebridge.chat.turn.tokens")
+                .baseUnit("tokens").tag("outcome", o).register(registry))
+                .record(report.promptTokens() + report.completionTokens());
+
+        recent.addFirst(report);
+        if (recentCount.incrementAndGet() > recentTurns && recent.pollLast() != null) recentCount.decrementAndGet();
+    }
+
+    // ── Queries ───────────────────────────────────────────────────────────────
+
+    public Rollup total() {
+        return all.snapshot();
+    }
+
+    public Map<String, Rollup> byModel() {
+        return snapshot(byModel);
+    }
+
+    public Map<String, Rollup> byUser() {
+        return snapshot(byUser);
+    }
+
+    public Optional<Rollup> forUser(String user) {
+        return Optional.ofNullable(byUser.get(user)).map(Totals::snapshot);
+    }
+
+    public Map<String, ToolRollup> byTool() {
+        Map<String, ToolRollup> out = new TreeMap<>();
+        byTool.forEach((tool, t) -> out.put(tool, t.snapshot()));
+        return out;
+    }
+
+    /** Most recent turns first. */
+    public List<TurnReport> recentTurns(Predicate<TurnReport> filter, int limit) {
+        return recent.stream().filter(filter).limit(limit).toList();
+    }
+
+    private static Map<String, Rollup> snapshot(Map<String, Totals> map) {
+        Map<String, Rollup> out = new TreeMap<>();
+        map.forEach((key, t) -> out.put(key, t.snapshot()));
+        return out;
+    }
+
+    // ── Recording ─────────────────────────────────────────────────────────────
+
+    private void recordIteration(String user, IterationUsage it) {
+        for (Totals t : List.of(all, byModel.computeIfAbsent(it.model(), k -> new Totals()),
+                                byUser.computeIfAbsent(user, k -> new Totals()))) {
+            t.calls.increment();
+            t.prompt.add(it.promptTokens());
+            t.cached.add(it.cachedTokens());
+            t.completion.add(it.completionTokens());
+            t.latencyMs.add(it.latencyMs());
+            t.microUsd.add(Math.round(it.costUsd() * 1_000_000));
+        }
+        if (it.costUsd() > 0) {
+            costByModel.computeIfAbsent(it.model(), m -> Counter.builder("carebridge.openai.cost")
+                    .baseUnit("usd").tag("model", m).register(registry)).increment(it.costUsd());
+        }
+    }
+
+    private void recordToolResult(String tool, int chars) {
+        ToolTotals t = byTool.computeIfAbsent(tool, k -> new ToolTotals());
+        t.calls.increment();
+        t.chars.add(chars);
+        resultTokensByTool.computeIfAbsent(tool, k -> DistributionSummary.builder("carebridge.tool.result.tokens")
+                .baseUnit("tokens").tag("tool", k).register(registry)).record((double) chars / CHARS_PER_TOKEN);
+    }
+
+    private double cost(String model, long prompt, long cached, long completion) {
+        Price p = prices.computeIfAbsent(model, m -> {
+            String base = "carebridge.usage.price." + m + ".";
+            double in = env.getProperty(base + "prompt", Double.class, 0.0);
+            return new Price(in, env.getProperty(base + "cached", Double.class, in),
+                    env.getProperty(base + "completion", Double.class, 0.0));
+        });
+        return ((prompt - cached) * p.prompt() + cached * p.cached() + completion * p.completion()) / 1_000_000;
+    }
+
+    // ── Per-turn accounting ───────────────────────────────────────────────────
+
+    /**
+     * Usage of one agent loop. Iterations are recorded by the loop, tool
+     * results by the concurrent tool tasks; a tool result belongs to the
+     * iteration whose tool calls produced it.
+     */
+    public final class TurnUsage {
+        private final String turnId;
+        private final String user;
+        private final long   startedAt = System.currentTimeMillis();
+        private final List<IterationUsage> iterations = new ArrayList<>();
+        private final List<ToolUsage>      tools      = new ArrayList<>();
+
+        private TurnUsage(String turnId, String user) {
+            this.turnId = turnId;
+            this.user   = user;
+        }
+
+        /** Records the final usage chunk of one model call. */
+        void iteration(String model, JsonNode usage, long latencyNanos) {
+            long prompt     = usage.path("prompt_tokens").asLong(0);
+            long cached     = usage.path("prompt_tokens_details").path("cached_tokens").asLong(0);
+            long completion = usage.path("completion_tokens").asLong(0);
+            IterationUsage it;
+            synchronized (this) {
+                it = new IterationUsage(iterations.size(), model, prompt, cached, completion,
+                        latencyNanos / 1_000_000, cost(model, prompt, cached, completion));
+                iterations.add(it);
+            }
+            recordIteration(user, it);
+        }
+
+        /** Records the size of one tool result handed back to the model. */
+        void toolResult(String tool, int chars) {
+            synchronized (this) {
+                tools.add(new ToolUsage(tool, Math.max(0, iterations.size() - 1), chars, chars / CHARS_PER_TOKEN, 0));
+            }
+            recordToolResult(tool, chars);
+        }
+
+        private synchronized TurnReport finish(String outcome) {
+            long prompt = 0, cached = 0, completion = 0;
+            double cost = 0;
+            for (IterationUsage it : iterations) {
+                prompt     += it.promptTokens();
+                cached     += it.cachedTokens();
+                completion += it.completionTokens();
+                cost       += it.costUsd();
+            }
+            // A result produced after iteration i is part of every later prompt
+            List<ToolUsage> carried = tools.stream()
+                    .map(t -> new ToolUsage(t.tool(), t.iteration(), t.resultChars(), t.estimatedTokens(),
+                            t.estimatedTokens() * Math.max(0, iterations.size() - t.iteration() - 1)))
+                    .toList();
+            return new TurnReport(turnId, user, startedAt, outcome, prompt, cached, completion, cost,
+                    List.copyOf(iterations), carried);
+        }
+    }
+
+    // ── Types ─────────────────────────────────────────────────────────────────
+
+    public record IterationUsage(int iteration, String model, long promptTokens, long cachedTokens,
+                                 long completionTokens, long latencyMs, double costUsd) {}
+
+    public record ToolUsage(String tool, int iteration, int resultChars, long estimatedTokens, long carriedTokens) {}
+
+    public record TurnReport(String turnId, String user, long startedAt, String outcome,
+                             long promptTokens, long cachedTokens, long completionTokens, double costUsd,
+                             List<IterationUsage> iterations, List<ToolUsage> tools) {}
+
+    public record Rollup(long turns, long calls, long promptTokens, long cachedTokens, long completionTokens,
+                         double cachedRatio, double avgLatencyMs, double costUsd) {}
+
+    public record ToolRollup(long calls, long resultChars, long estimatedTokens, long carriedTokens) {}
+
+    private record Price(double prompt, double cached, double completion) {}
+
+    private static final class Totals {
+        final LongAdder turns      = new LongAdder();
+        final LongAdder calls      = new LongAdder();
+        final LongAdder prompt     = new LongAdder();
+        final LongAdder cached     = new LongAdder();
+        final LongAdder completion = new LongAdder();
+        final LongAdder latencyMs  = new LongAdder();
+        final LongAdder microUsd   = new LongAdder();
+
+        Rollup snapshot() {
+            long n = calls.sum(), in = prompt.sum();
+            return new Rollup(turns.sum(), n, in, cached.sum(), completion.sum(),
+                    in == 0 ? 0 : (double) cached.sum() / in,
+                    n == 0 ? 0 : (double) latencyMs.sum() / n,
+                    microUsd.sum() / 1_000_000.0);
+        }
+    }
+
+    private static final class ToolTotals {
+        final LongAdder calls         = new LongAdder();
+        final LongAdder chars         = new LongAdder();
+        final LongAdder carriedTokens = new LongAdder();
+
+        ToolRollup snapshot() {
+            long c = chars.sum();
+            return new ToolRollup(calls.sum(), c, c / CHARS_PER_TOKEN, carriedTokens.sum());
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.carebridge.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.HexFormat;
+
+/**
+ * Derives a stable per-user key from the FHIR bearer token for fairness and accounting.
+ *
+ * If the token is a JWT, the email / sub claim is used (the signature is not
+ * verified – the FHIR server does that; this key is never used for access
+ * decisions). Otherwise a short SHA-256 prefix of the token is used so the
+ * raw token never ends up in metrics or logs.
+ */
+public final class UserIdentity {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private UserIdentity() {}
+
+    public static String fromToken(String fhirToken) {
+        if (fhirToken == null || fhirToken.isBlank()) return "anonymous";
+        String[] parts = fhirToken.split("\\.");
+        if (parts.length == 3) {
+            try {
+                JsonNode claims = MAPPER.readTree(Base64.getUrlDecoder().decode(parts[1]));
+                for (String claim : new String[] { "email", "preferred_username", "sub", "user_id" }) {
+                    String v = claims.path(claim).asText("");
+                    if (!v.isBlank()) return v;
+                }
+            } catch (Exception ignored) { /* not a JWT after all */ }
+        }
+        String hash = tokenHash(fhirToken);
+        return hash.isEmpty() ? "anonymous" : "token-" + hash;
+    }
+
+    /**
+     * Short SHA-256 prefix of the token: identifies the credential actually
+     * presented, where the claims above are only what it says about itself.
+     */
+    public static String tokenHash(String fhirToken) {
+        if (fhirToken == null || fhirToken.isBlank()) return "";
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(fhirToken.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 6);
+        } catch (Exception e) {
+            return "";
+        }
+    }
+}
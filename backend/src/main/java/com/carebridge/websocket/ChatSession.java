@@ -0,0 +1,78 @@
+package com.carebridge.websocket;
+
+import com.carebridge.service.ChatTurn;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Server-side state of one WebSocket chat session.
+ * Holds the FHIR token and the conversation history so the client only
+ * sends the new user message on each turn. The history keeps at most
+ * maxHistory messages; older ones are dropped a whole turn at a time.
+ */
+class ChatSession {
+
+    private final int maxHistory;
+    private volatile String fhirToken;
+    private final List<JsonNode> history = new ArrayList<>();
+    private final AtomicBoolean  busy    = new AtomicBoolean(false);
+    private volatile long        lastSeen = System.currentTimeMillis();
+    private volatile ChatTurn    turn;
+
+    ChatSession(int maxHistory) {
+        this.maxHistory = Math.max(1, maxHistory);
+    }
+
+    String  getFhirToken()              { return fhirToken; }
+    boolean isAuthenticated()           { return fhirToken != null && !fhirToken.isBlank(); }
+
+    /**
+     * Sets the token and seeds the history, once per session.
+     *
+     * @return false if the session was already authenticated (nothing changes)
+     */
+    synchronized boolean authenticate(String token, Iterable<JsonNode> seed) {
+        if (isAuthenticated()) return false;
+        fhirToken = token;
+        if (isAuthenticated()) seed.forEach(this::append);
+        return true;
+    }
+
+    /** Snapshot of the history for one turn; the agent loop must not see later appends. */
+    synchronized List<JsonNode> historySnapshot() { return new ArrayList<>(history); }
+
+    synchronized void append(JsonNode message) {
+        history.add(message);
+        if (history.size() <= maxHistory) return;
+        // Drop from the front, then up to the next user message so the history starts with a turn
+        history.subList(0, history.size() - maxHistory).clear();
+        while (history.size() > 1 && !"user".equals(history.get(0).path("role").asText())) history.remove(0);
+    }
+
+    /** Takes back a message (by identity), e.g. the user message of a turn that produced no reply. */
+    synchronized void remove(JsonNode message) {
+        for (int i = history.size() - 1; i >= 0; i--) {
+            if (history.get(i) == message) {
+                history.remove(i);
+                return;
+            }
+        }
+    }
+
+    /** Claims the session for a turn; false if a turn is already running. */
+    boolean tryBeginTurn() { return busy.compareAndSet(false, true); }
+    void    endTurn()      { turn = null; busy.set(false); }
+
+    /** The running turn, so a stop frame or a closed connection can cancel it. */
+    void setTurn(ChatTurn turn) { this.turn = turn; }
+    void cancelTurn(String reason) {
+        ChatTurn t = turn;
+        if (t != null) t.cancel(reason);
+    }
+
+    void touch()          { lastSeen = System.currentTimeMillis(); }
+    long getLastSeen()    { return lastSeen; }
+}
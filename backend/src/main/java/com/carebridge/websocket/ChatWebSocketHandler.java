@@ -0,0 +1,161 @@
+package com.carebridge.websocket;
+
+import com.carebridge.service.ChatTurn;
+import com.carebridge.service.OpenAIService;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.*;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * /api/ws/chat  →  persistent chat channel, one authenticated connection per chat session.
+ *
+ * Upstream (client → server), JSON text frames:
+ *   {"type":"auth","fhirToken":"...","messages":[...]}   ← first frame, once; messages optionally seed history
+ *   {"type":"message","content":"..."}                    ← one user turn
+ *   {"type":"cancel"}                                     ← stop the running turn (answered with DONE)
+ *
+ * Downstream (server → client), binary frames: 1-byte {@link FrameType} + UTF-8 payload.
+ * The server sends a WebSocket ping every 20 s and drops connections silent for 60 s.
+ * Closing the connection cancels the running turn (OpenAI stream + FHIR calls).
+ * A turn that fails or is cancelled takes its user message back out of the
+ * history, so the next turn does not see a question without an answer.
+ */
+@Component
+public class ChatWebSocketHandler extends AbstractWebSocketHandler {
+
+    private static final String STATE_ATTR          = "chatSession";
+    private static final long   IDLE_TIMEOUT_MS     = 60_000;
+    private static final int    SEND_TIME_LIMIT_MS  = 10_000;
+    private static final int    SEND_BUFFER_LIMIT   = 512 * 1024;
+
+    @Value("${carebridge.ws.max-history:100}")
+    private int maxHistory;
+
+    @Autowired private OpenAIService openAIService;
+    @Autowired private ObjectMapper  mapper;
+
+    /** Open connections, wrapped so agent-loop threads and the heartbeat can send concurrently */
+    private final Map<String, WebSocketSession> sessions = new ConcurrentHashMap<>();
+
+    // Virtual threads (Java 21) – one per turn
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) {
+        session.getAttributes().put(STATE_ATTR, new ChatSession(maxHistory));
+        sessions.put(session.getId(),
+                new ConcurrentWebSocketSessionDecorator(session, SEND_TIME_LIMIT_MS, SEND_BUFFER_LIMIT));
+    }
+
+    @Override
+    protected void handleTextMessage(WebSocketSession raw, TextMessage message) throws Exception {
+        WebSocketSession session = sessions.getOrDefault(raw.getId(), raw);
+        ChatSession chat = (ChatSession) raw.getAttributes().get(STATE_ATTR);
+        chat.touch();
+
+        JsonNode frame;
+        try { frame = mapper.readTree(message.getPayload()); }
+        catch (Exception e) {
+            WebSocketChatSink.send(session, FrameType.ERROR, "Malformed frame.");
+            return;
+        }
+
+        switch (frame.path("type").asText()) {
+            case "auth" -> {
+                if (!chat.authenticate(frame.path("fhirToken").asText(null), frame.path("messages"))) {
+                    WebSocketChatSink.send(session, FrameType.ERROR, "Already authenticated.");
+                    return;
+                }
+                if (!chat.isAuthenticated()) {
+                    WebSocketChatSink.send(session, FrameType.ERROR, "Missing FHIR token.");
+                    return;
+                }
+                WebSocketChatSink.send(session, FrameType.READY, "");
+            }
+            case "message" -> {
+                if (!chat.isAuthenticated()) {
+                    WebSocketChatSink.send(session, FrameType.ERROR, "Not authenticated.");
+                    return;
+                }
+                if (!chat.tryBeginTurn()) {
+                    WebSocketChatSink.send(session, FrameType.ERROR, "A response is already in progress.");
+                    return;
+                }
+                ObjectNode userMsg = mapper.createObjectNode();
+                userMsg.put("role", "user");
+                userMsg.put("content", frame.path("content").asText(""));
+                chat.append(userMsg);
+                ChatTurn turn = new ChatTurn();
+                chat.setTurn(turn);
+                executor.submit(() -> runTurn(session, chat, turn, userMsg));
+            }
+            case "cancel" -> chat.cancelTurn("stop");
+            default -> WebSocketChatSink.send(session, FrameType.ERROR, "Unknown frame type.");
+        }
+    }
+
+    private void runTurn(WebSocketSession session, ChatSession chat, ChatTurn turn, JsonNode userMsg) {
+        WebSocketChatSink sink = new WebSocketChatSink(session, mapper);
+        try {
+            String reply = openAIService.runAgentLoop(chat.historySnapshot(), chat.getFhirToken(), sink, turn);
+            if (reply != null) {
+                ObjectNode assistantMsg = mapper.createObjectNode();
+                assistantMsg.put("role", "assistant");
+                assistantMsg.put("content", reply);
+                chat.append(assistantMsg);
+            } else {
+                chat.remove(userMsg);
+            }
+        } catch (CancellationException e) {
+            chat.remove(userMsg);
+            if ("stop".equals(turn.cancelReason()) && session.isOpen()) {
+                try { sink.done(); } catch (Exception ignored) {}
+            }
+        } catch (Exception e) {
+            chat.remove(userMsg);
+            sink.error(e);
+        } finally {
+            chat.endTurn();
+        }
+    }
+
+    @Override
+    protected void handlePongMessage(WebSocketSession session, PongMessage message) {
+        ((ChatSession) session.getAttributes().get(STATE_ATTR)).touch();
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+        sessions.remove(session.getId());
+        ((ChatSession) session.getAttributes().get(STATE_ATTR)).cancelTurn("disconnect");
+    }
+
+    /** Heartbeat: ping every open connection, close the ones that stopped answering. */
+    @Scheduled(fixedDelay = 20_000)
+    public void heartbeat() {
+        long now = System.currentTimeMillis();
+        for (WebSocketSession session : sessions.values()) {
+            ChatSession chat = (ChatSession) session.getAttributes().get(STATE_ATTR);
+            try {
+                if (now - chat.getLastSeen() > IDLE_TIMEOUT_MS) {
+                    session.close(CloseStatus.SESSION_NOT_RELIABLE);
+                } else {
+                    session.sendMessage(new PingMessage());
+                }
+            } catch (Exception ignored) { /* closed concurrently */ }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.carebridge.websocket;
+
+/**
+ * Opcode carried in the first byte of every downstream binary frame.
+ * The rest of the frame is the UTF-8 payload (raw text, not JSON, except for
+ * the occasional STATUS frame), which keeps per-chunk overhead at one byte
+ * instead of an SSE event + JSON envelope.
+ */
+public enum FrameType {
+    READY((byte) 0x01),   // auth accepted, payload empty
+    CHUNK((byte) 0x02),   // text delta
+    DONE((byte) 0x03),    // turn finished, payload empty
+    ERROR((byte) 0x04),   // payload = error message
+    STATUS((byte) 0x05);  // tool progress, payload = JSON object
+
+    private final byte code;
+
+    FrameType(byte code) { this.code = code; }
+
+    public byte code() { return code; }
+}
@@ -0,0 +1,57 @@
+package com.carebridge.websocket;
+
+import com.carebridge.service.ChatEventSink;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * {@link ChatEventSink} that writes binary frames (see {@link FrameType}) to a WebSocket.
+ * Unlike the SSE sink, done() does not close anything: the connection outlives the turn.
+ */
+class WebSocketChatSink implements ChatEventSink {
+
+    private final WebSocketSession session;
+    private final ObjectMapper     mapper;
+
+    WebSocketChatSink(WebSocketSession session, ObjectMapper mapper) {
+        this.session = session;
+        this.mapper  = mapper;
+    }
+
+    @Override
+    public void chunk(String text) throws IOException {
+        send(session, FrameType.CHUNK, text);
+    }
+
+    @Override
+    public void status(Map<String, ?> data) {
+        try {
+            send(session, FrameType.STATUS, mapper.writeValueAsString(data));
+        } catch (Exception ignored) {}
+    }
+
+    @Override
+    public void done() throws IOException {
+        send(session, FrameType.DONE, "");
+    }
+
+    @Override
+    public void error(Throwable e) {
+        try {
+            send(session, FrameType.ERROR, e.getMessage() != null ? e.getMessage() : "Unknown error");
+        } catch (Exception ignored) {}
+    }
+
+    static void send(WebSocketSession session, FrameType type, String payload) throws IOException {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(1 + bytes.length);
+        frame.put(type.code()).put(bytes).flip();
+        session.sendMessage(new BinaryMessage(frame));
+    }
+}
@@ -0,0 +1,109 @@
+package com.carebridge.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Latency of {@link AuditLog#record} on the request path, i.e. what auditing
+ * adds to every tool call, with the log disabled (baseline), with
+ * fsync=interval (the default) and with fsync=batch.
+ *
+ * Not a unit test (surefire does not pick it up); run it by hand:
+ *
+ *   mvn -q test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ *   java -cp target/test-classes:target/classes:$(cat target/cp.txt) \
+ *        com.carebridge.service.AuditLogBenchmark [threads] [callsPerThread] [pauseMicros]
+ *
+ * Each thread pauses pauseMicros between calls, standing in for the rest of
+ * a tool call (0 floods the ring and measures the drop path instead). Each
+ * configuration is warmed up once, then measured; the output is p50 / p99 /
+ * p99.9 / max of single record() calls in microseconds and the events
+ * dropped during the measured run.
+ */
+public class AuditLogBenchmark {
+
+    private static final String BODY = "{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"total\":42,\"entry\":[]}";
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int calls   = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        long pause  = args.length > 2 ? Long.parseLong(args[2]) : 100;
+
+        System.out.printf("%d threads x %d record() calls, %d us apart%n", threads, calls, pause);
+        System.out.printf("%-10s %9s %9s %9s %9s %9s%n", "config", "p50 us", "p99 us", "p99.9 us", "max us", "dropped");
+        for (String config : new String[] { "disabled", "interval", "batch" }) {
+            Path dir = Files.createTempDirectory("audit-bench");
+            AuditLog audit = auditLog(config, dir);
+            run(audit, threads, calls / 10, pause); // warm-up
+            double droppedBefore = dropped(audit);
+            long[] nanos = run(audit, threads, calls, pause);
+            ReflectionTestUtils.invokeMethod(audit, "stop");
+            Arrays.sort(nanos);
+            double dropped = dropped(audit) - droppedBefore;
+            System.out.printf("%-10s %9.2f %9.2f %9.2f %9.2f %9.0f%n", config,
+                    percentile(nanos, 0.50), percentile(nanos, 0.99), percentile(nanos, 0.999),
+                    nanos[nanos.length - 1] / 1e3, dropped);
+        }
+    }
+
+    private static AuditLog auditLog(String config, Path dir) {
+        AuditLog audit = new AuditLog();
+        ReflectionTestUtils.setField(audit, "enabled", !config.equals("disabled"));
+        ReflectionTestUtils.setField(audit, "directory", dir.toString());
+        ReflectionTestUtils.setField(audit, "ringSize", 16_384);
+        ReflectionTestUtils.setField(audit, "maxBatch", 1_024);
+        ReflectionTestUtils.setField(audit, "flushIntervalMs", 5L);
+        ReflectionTestUtils.setField(audit, "fsyncPolicy", config.equals("disabled") ? "interval" : config);
+        ReflectionTestUtils.setField(audit, "fsyncIntervalMs", 1_000L);
+        ReflectionTestUtils.setField(audit, "maxFileMb", 64);
+        ReflectionTestUtils.setField(audit, "maxFiles", 30);
+        ReflectionTestUtils.setField(audit, "mapper", new ObjectMapper());
+        ReflectionTestUtils.setField(audit, "registry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(audit, "tokens", new TokenVerifier());
+        ReflectionTestUtils.invokeMethod(audit, "start");
+        return audit;
+    }
+
+    private static double dropped(AuditLog audit) {
+        var registry = (SimpleMeterRegistry) ReflectionTestUtils.getField(audit, "registry");
+        var counter  = registry.find("carebridge.audit.dropped").counter();
+        return counter == null ? 0 : counter.count();
+    }
+
+    /** Runs calls record() calls on each of threads virtual threads; returns every call's latency. */
+    private static long[] run(AuditLog audit, int threads, int calls, long pauseMicros) throws InterruptedException {
+        long[] nanos = new long[threads * calls];
+        CountDownLatch done = new CountDownLatch(threads);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int t = 0; t < threads; t++) {
+                int offset = t * calls;
+                String token = "token-" + t;
+                executor.submit(() -> {
+                    for (int i = 0; i < calls; i++) {
+                        long start = System.nanoTime();
+                        audit.record(token, "search_patient_condition", Integer.toString(i % 500),
+                                "/baseR4/Condition?subject=" + (i % 500), BODY, (i & 1) == 0);
+                        nanos[offset + i] = System.nanoTime() - start;
+                        if (pauseMicros > 0) LockSupport.parkNanos(pauseMicros * 1_000);
+                    }
+                    done.countDown();
+                });
+            }
+            done.await();
+        }
+        return nanos;
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1)] / 1e3;
+    }
+}
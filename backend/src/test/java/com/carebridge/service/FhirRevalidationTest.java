@@ -0,0 +1,197 @@
+package com.carebridge.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import okhttp3.OkHttpClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Conditional revalidation of expired cache entries against a local FHIR stub:
+ * a 304 extends the entry without a body, a 200 replaces it, and only
+ * requests that actually carried a validator are counted.
+ */
+class FhirRevalidationTest {
+
+    private static final String TOOL      = "search_fhir_patient";
+    private static final String REFRESHED = "search_patient_condition";
+    private static final String V1   = "{\"resourceType\":\"Bundle\",\"total\":1,\"entry\":[{\"resource\":{\"id\":\"1\"}}]}";
+    private static final String V2   = "{\"resourceType\":\"Bundle\",\"total\":2,\"entry\":[]}";
+
+    private record Reply(int status, String etag, String body) {}
+
+    private final Deque<Reply>  replies  = new ArrayDeque<>();
+    private final List<Headers> requests = new ArrayList<>();
+    private final ObjectMapper  mapper   = new ObjectMapper();
+    private final MeterRegistry registry = new SimpleMeterRegistry();
+
+    private HttpServer       server;
+    private FhirCacheService cache;
+    private FhirService      fhir;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            synchronized (requests) { requests.add(exchange.getRequestHeaders()); }
+            Reply reply = replies.poll();
+            if (reply.etag() != null) exchange.getResponseHeaders().add("ETag", reply.etag());
+            byte[] body = reply.body() == null ? new byte[0] : reply.body().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(reply.status(), body.length == 0 ? -1 : body.length);
+            try (OutputStream out = exchange.getResponseBody()) { out.write(body); }
+        });
+        server.start();
+
+        cache = newCache(new FhirDiskCache());
+
+        fhir = new FhirService();
+        ReflectionTestUtils.setField(fhir, "fhirBase", "http://127.0.0.1:" + server.getAddress().getPort());
+        ReflectionTestUtils.setField(fhir, "httpClient", new OkHttpClient());
+        ReflectionTestUtils.setField(fhir, "cache", cache);
+        ReflectionTestUtils.setField(fhir, "objectMapper", mapper);
+        ReflectionTestUtils.setField(fhir, "audit", mock(AuditLog.class));
+        ReflectionTestUtils.setField(fhir, "replica", mock(ClinicalReplica.class));
+        ReflectionTestUtils.setField(fhir, "subsumption", mock(QuerySubsumption.class));
+        ReflectionTestUtils.setField(fhir, "tokens", mock(TokenVerifier.class));
+    }
+
+    /**
+     * Patient searches are expired as soon as they are stored (and stay revalidatable for a minute);
+     * condition searches are refreshed ahead from their second hit on.
+     */
+    private FhirCacheService newCache(FhirDiskCache diskCache) {
+        FhirCacheService cache = new FhirCacheService();
+        ReflectionTestUtils.setField(cache, "diskCache", diskCache);
+        ReflectionTestUtils.setField(cache, "registry", registry);
+        ReflectionTestUtils.setField(cache, "env", new MockEnvironment()
+                .withProperty("carebridge.cache.policy." + TOOL + ".ttl-ms", "-1")
+                .withProperty("carebridge.cache.policy." + REFRESHED + ".refresh-ahead", "0"));
+        ReflectionTestUtils.setField(cache, "defaultTtlMs", 300_000L);
+        ReflectionTestUtils.setField(cache, "defaultRefreshAhead", 1.0);
+        ReflectionTestUtils.setField(cache, "refreshAheadMinHits", 2);
+        ReflectionTestUtils.setField(cache, "revalidateWindowMs", 60_000L);
+        ReflectionTestUtils.invokeMethod(cache, "initMetrics");
+        return cache;
+    }
+
+    private static FhirDiskCache diskCache(Path dir) {
+        FhirDiskCache disk = new FhirDiskCache();
+        ReflectionTestUtils.setField(disk, "enabled", true);
+        ReflectionTestUtils.setField(disk, "directory", dir.toString());
+        ReflectionTestUtils.setField(disk, "base64Key", Base64.getEncoder().encodeToString(new byte[32]));
+        ReflectionTestUtils.setField(disk, "segmentSizeMb", 1);
+        ReflectionTestUtils.invokeMethod(disk, "init");
+        return disk;
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    void notModifiedExtendsTheEntryAndCountsTheSavedBytes() throws Exception {
+        replies.add(new Reply(200, "\"v1\"", V1));
+        replies.add(new Reply(304, "\"v1\"", null));
+
+        assertThat(search()).isEqualTo(V1);
+        assertThat(search()).isEqualTo(V1);
+
+        assertThat(requests.get(0).getFirst("If-None-Match")).isNull();
+        assertThat(requests.get(1).getFirst("If-None-Match")).isEqualTo("\"v1\"");
+        assertThat(revalidations("not_modified")).isEqualTo(1);
+        assertThat(revalidations("modified")).isZero();
+        assertThat(registry.get("carebridge.fhir.revalidation.bytes.saved").counter().count())
+                .isEqualTo(V1.getBytes(StandardCharsets.UTF_8).length);
+        assertThat(registry.get("carebridge.fhir.revalidation.hit.ratio").gauge().value()).isEqualTo(1.0);
+    }
+
+    @Test
+    void diskEntryKeepsItsValidatorsAcrossARestart(@TempDir Path dir) throws Exception {
+        replies.add(new Reply(200, "\"v1\"", V1));
+        replies.add(new Reply(304, "\"v1\"", null));
+        ReflectionTestUtils.setField(fhir, "cache", newCache(diskCache(dir)));
+        assertThat(search()).isEqualTo(V1);
+
+        // Restart: empty heap tier, disk index rebuilt from the segment files
+        ReflectionTestUtils.setField(fhir, "cache", newCache(diskCache(dir)));
+        assertThat(search()).isEqualTo(V1);
+
+        assertThat(requests.get(1).getFirst("If-None-Match")).isEqualTo("\"v1\"");
+        assertThat(revalidations("not_modified")).isEqualTo(1);
+    }
+
+    @Test
+    void modifiedReplacesTheEntryAndItsValidator() throws Exception {
+        replies.add(new Reply(200, "\"v1\"", V1));
+        replies.add(new Reply(200, "\"v2\"", V2));
+        replies.add(new Reply(304, "\"v2\"", null));
+
+        assertThat(search()).isEqualTo(V1);
+        assertThat(search()).isEqualTo(V2);
+        assertThat(search()).isEqualTo(V2);
+
+        assertThat(requests.get(1).getFirst("If-None-Match")).isEqualTo("\"v1\"");
+        assertThat(requests.get(2).getFirst("If-None-Match")).isEqualTo("\"v2\"");
+        assertThat(revalidations("modified")).isEqualTo(1);
+        assertThat(revalidations("not_modified")).isEqualTo(1);
+        assertThat(registry.get("carebridge.fhir.revalidation.bytes.saved").counter().count())
+                .isEqualTo(V2.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    @Test
+    void refreshWithoutValidatorsIsNotCountedAsRevalidation() throws Exception {
+        replies.add(new Reply(200, null, V1));
+        replies.add(new Reply(200, null, V2));
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(fhir.executeTool(REFRESHED, mapper.readTree("{\"SUBJECT\":\"1\"}"), "token")).isEqualTo(V1);
+        }
+        // The third hit triggered a background refresh; wait until it has replaced the entry
+        String key = REFRESHED + "::http://127.0.0.1:" + server.getAddress().getPort() + "/baseR4/Condition?subject=1";
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (!V2.equals(cache.get(key)) && System.currentTimeMillis() < deadline) Thread.sleep(10);
+
+        assertThat(cache.get(key)).isEqualTo(V2);
+        assertThat(requestCount()).isEqualTo(2);
+        assertThat(requests.get(1).getFirst("If-None-Match")).isNull();
+        assertThat(requests.get(1).getFirst("If-Modified-Since")).isNull();
+        assertThat(revalidations("modified")).isZero();
+        assertThat(revalidations("not_modified")).isZero();
+        assertThat(registry.get("carebridge.fhir.revalidation.hit.ratio").gauge().value()).isZero();
+    }
+
+    private String search() throws Exception {
+        return fhir.executeTool(TOOL, mapper.readTree("{\"FAMILY\":\"Smith\"}"), "token");
+    }
+
+    private int requestCount() {
+        synchronized (requests) { return requests.size(); }
+    }
+
+    private double revalidations(String outcome) {
+        var counter = registry.find("carebridge.fhir.revalidations").tag("outcome", outcome).counter();
+        return counter == null ? 0 : counter.count();
+    }
+}
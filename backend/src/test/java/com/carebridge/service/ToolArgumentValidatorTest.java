@@ -0,0 +1,72 @@
+package com.carebridge.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Date prefixes and number coercion: a written-out month must not be read as
+ * a search prefix, and an oversized number is rejected rather than thrown.
+ * Cohort queries over encounters take no CODE.
+ */
+class ToolArgumentValidatorTest {
+
+    private static final String ENCOUNTERS   = "search_patient_encounter";
+    private static final String OBSERVATIONS = "search_patient_observations";
+    private static final String COHORT       = "cohort_query";
+
+    private ToolArgumentValidator validator;
+
+    @BeforeEach
+    void setUp() {
+        validator = new ToolArgumentValidator();
+        ReflectionTestUtils.setField(validator, "mapper", new ObjectMapper());
+        ReflectionTestUtils.setField(validator, "ranges", mock(ObservationRangeTable.class));
+        ReflectionTestUtils.setField(validator, "registry", new SimpleMeterRegistry());
+        ReflectionTestUtils.invokeMethod(validator, "init");
+    }
+
+    @Test
+    void writtenOutAprilDatesAreRepaired() {
+        var v = validator.validate(ENCOUNTERS, "{\"DATE\":\"April 5 2020\",\"DATE2\":\"lt Apr 30 2020\"}");
+
+        assertThat(v.error()).isNull();
+        assertThat(v.args().path("DATE").asText()).isEqualTo("2020-04-05");
+        assertThat(v.args().path("DATE2").asText()).isEqualTo("lt2020-04-30");
+        assertThat(v.repairs()).contains("date");
+    }
+
+    @Test
+    void letterPrefixesBeforeDigitsOrSpacesAreKept() {
+        var v = validator.validate(ENCOUNTERS, "{\"DATE\":\"ap2020-04-05\",\"DATE2\":\"GE 2020/4/30\"}");
+
+        assertThat(v.error()).isNull();
+        assertThat(v.args().path("DATE").asText()).isEqualTo("ap2020-04-05");
+        assertThat(v.args().path("DATE2").asText()).isEqualTo("ge2020-04-30");
+    }
+
+    @Test
+    void numericStringsAreCoercedAndOversizedOnesRejected() {
+        var ok = validator.validate(OBSERVATIONS, "{\"CODE\":\"718-7\",\"page\":\"3000000000\"}");
+        assertThat(ok.error()).isNull();
+        assertThat(ok.args().path("page").asLong()).isEqualTo(3_000_000_000L);
+
+        var tooLong = validator.validate(OBSERVATIONS, "{\"CODE\":\"718-7\",\"page\":\"123456789012345678901234567890\"}");
+        assertThat(tooLong.args()).isNull();
+        assertThat(tooLong.error()).contains("page").contains("number out of range");
+    }
+
+    @Test
+    void cohortOverEncountersRejectsACode() {
+        var v = validator.validate(COHORT, "{\"PATIENTS\":\"1,2\",\"RESOURCE\":\"encounter\",\"CODE\":\"250.00\"}");
+        assertThat(v.args()).isNull();
+        assertThat(v.error()).contains("CODE").contains("RESOURCE=encounter");
+
+        assertThat(validator.validate(COHORT, "{\"PATIENTS\":\"1,2\",\"RESOURCE\":\"encounter\"}").error()).isNull();
+    }
+}
@@ -9,6 +9,7 @@ export default function ChatPanel({ userName, fhirToken, onClose }) {
   const [history,      setHistory]      = useState([])
   const [streamText,   setStreamText]   = useState('')
   const [isStreaming,  setIsStreaming]   = useState(false)
+  const [toolStatus,   setToolStatus]   = useState('')
   const [inputText,    setInputText]    = useState('')
   const [sendDisabled, setSendDisabled] = useState(false)
 
@@ -39,6 +40,7 @@ export default function ChatPanel({ userName, fhirToken, onClose }) {
 
     setIsStreaming(true)
     setStreamText('')
+    setToolStatus('')
 
     let accumulated = ''
 
@@ -70,7 +72,8 @@ export default function ChatPanel({ userName, fhirToken, onClose }) {
         setIsStreaming(false)
         setSendDisabled(false)
         inputRef.current?.focus()
-      }
+      },
+      (status) => setToolStatus(status.message || '')
     )
   }, [inputText, sendDisabled, history, fhirToken])
 
@@ -148,7 +151,7 @@ export default function ChatPanel({ userName, fhirToken, onClose }) {
           <MessageBubble role="assistant" content={streamText} isStreaming />
         )}
 
-        {isStreaming && !streamText && <TypingIndicator />}
+        {isStreaming && !streamText && <TypingIndicator status={toolStatus} />}
 
         <div ref={messagesEndRef} />
       </div>
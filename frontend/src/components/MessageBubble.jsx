@@ -43,8 +43,8 @@ export default function MessageBubble({ role, content, time, isStreaming }) {
   )
 }
 
-/** Typing indicator (three animated dots) */
-export function TypingIndicator() {
+/** Typing indicator (three animated dots), with the running tool's progress if any */
+export function TypingIndicator({ status }) {
   return (
     <div className="msg-row bot">
       <div className="msg-avatar-wrap">
@@ -55,6 +55,7 @@ export function TypingIndicator() {
           <span className="dot" />
           <span className="dot" />
           <span className="dot" />
+          {status && <span className="typing-status">{status}</span>}
         </div>
       </div>
     </div>
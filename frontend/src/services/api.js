@@ -34,16 +34,23 @@ export async function login(email, password) {
 
 // ── Chat (SSE Streaming) ──────────────────────────────────────────────────────
 
+const MAX_RESUME_ATTEMPTS = 5
+
 /**
  * Sends the conversation to the backend and streams back text chunks.
  *
+ * If the connection drops mid-answer, the stream is resumed from the last
+ * received event (X-Turn-Id + Last-Event-ID) instead of re-sending the
+ * conversation, so the backend does not run the agent loop again.
+ *
  * @param {Array}    messages   - Conversation history [{role, content}, ...]
  * @param {string}   fhirToken  - FHIR Bearer token
  * @param {Function} onChunk    - Called with each text chunk string
  * @param {Function} onDone     - Called when the stream is complete
  * @param {Function} onError    - Called with an error message string
+ * @param {Function} [onStatus] - Called with tool progress ({tool, message, completed, total})
  */
-export async function streamChat(messages, fhirToken, onChunk, onDone, onError) {
+export async function streamChat(messages, fhirToken, onChunk, onDone, onError, onStatus = () => {}) {
   let response
   try {
     response = await fetch(`${API_BASE}/chat`, {
@@ -57,64 +64,127 @@ export async function streamChat(messages, fhirToken, onChunk, onDone, onError)
   }
 
   if (!response.ok) {
+    onError(await errorMessage(response))
+    return
+  }
+
+  const turnId = response.headers.get('X-Turn-Id')
+  const state  = { lastEventId: 0, onStatus }
+  let   lost   = 'Connection lost.'
+
+  for (let attempt = 0; ; attempt++) {
+    if (response) {
+      const outcome = await readEvents(response, state, onChunk)
+      if (outcome.type === 'done')  { onDone(); return }
+      if (outcome.type === 'error') { onError(outcome.message); return }
+      if (outcome.message) lost = outcome.message
+    }
+
+    // Stream dropped before "done": re-attach to the same turn
+    if (!turnId || attempt >= MAX_RESUME_ATTEMPTS) {
+      onError(lost)
+      return
+    }
+    await new Promise(resolve => setTimeout(resolve, Math.min(500 * 2 ** attempt, 4000)))
+
     try {
-      const data = await response.json()
-      onError(data.message || `Server error (${response.status})`)
-    } catch {
-      onError(`Server error (${response.status})`)
+      response = await fetch(`${API_BASE}/chat/${encodeURIComponent(turnId)}/stream`, {
+        headers: {
+          'Last-Event-ID': String(state.lastEventId),
+          'Authorization': `Bearer ${fhirToken}`,
+        },
+      })
+    } catch (err) {
+      response = null // still offline, try again
+      continue
+    }
+    if (!response.ok) {
+      // 404 / 410: the turn expired or the missed events are gone
+      onError('The response was interrupted and could not be resumed.')
+      return
     }
-    return
   }
+}
 
-  // Parse the SSE stream
+/**
+ * Reads SSE events until a terminal event or the end of the connection.
+ * Events already seen (replay overlap) are skipped by sequence id.
+ *
+ * @returns {{type: 'done'|'error'|'dropped', message?: string}}
+ */
+async function readEvents(response, state, onChunk) {
   const reader  = response.body.getReader()
   const decoder = new TextDecoder()
   let   buffer  = ''
+  let   event   = { name: 'message', id: null, data: '' }
 
   try {
     while (true) {
       const { done, value } = await reader.read()
-      if (done) { onDone(); break }
+      if (done) return { type: 'dropped' }
 
       buffer += decoder.decode(value, { stream: true })
       const lines = buffer.split('\n')
       buffer = lines.pop() // keep incomplete line for next iteration
 
-      for (const line of lines) {
-        if (!line.trim()) continue
-
-        // Parse event name
-        if (line.startsWith('event:')) continue // handled via data below
-
-        if (line.startsWith('data:')) {
-          const raw = line.slice(5).trim()
-          if (!raw || raw === '{}') continue
-
-          try {
-            const parsed = JSON.parse(raw)
-            if (parsed.text !== undefined) {
-              onChunk(parsed.text)
-            }
-            if (parsed.message) {
-              onError(parsed.message)
-              return
-            }
-          } catch {
-            // ignore malformed JSON
-          }
-        }
+      for (const rawLine of lines) {
+        const line = rawLine.replace(/\r$/, '')
 
-        // Handle "event: done" which Spring SSE sends as "event:done\ndata:{}"
-        if (line === 'event:done' || line === 'event: done') {
-          onDone()
-          return
-        }
-        if (line === 'event:error' || line === 'event: error') {
-          // error data will follow on next line
+        // A blank line ends the event
+        if (line === '') {
+          const outcome = dispatchEvent(event, state, onChunk)
+          event = { name: 'message', id: null, data: '' }
+          if (outcome) return outcome
+          continue
         }
+
+        const colon = line.indexOf(':')
+        if (colon === 0) continue // comment / keep-alive
+        const field = colon < 0 ? line : line.slice(0, colon)
+        let   val   = colon < 0 ? '' : line.slice(colon + 1)
+        if (val.startsWith(' ')) val = val.slice(1)
+
+        if (field === 'event')     event.name = val
+        else if (field === 'id')   event.id   = val
+        else if (field === 'data') event.data = event.data ? `${event.data}\n${val}` : val
       }
     }
   } catch (err) {
-    onError(err.message || 'Stream reading error')
+    return { type: 'dropped', message: err.message }
+  }
+}
+
+function dispatchEvent(event, state, onChunk) {
+  if (event.id !== null) {
+    const seq = Number(event.id)
+    if (seq <= state.lastEventId) return null
+    state.lastEventId = seq
+  }
+
+  let payload = {}
+  try { payload = JSON.parse(event.data || '{}') } catch { /* ignore malformed JSON */ }
+
+  switch (event.name) {
+    case 'chunk':
+      if (payload.text !== undefined) onChunk(payload.text)
+      return null
+    case 'status':
+      state.onStatus(payload)
+      return null
+    case 'done':
+      return { type: 'done' }
+    case 'error':
+      return { type: 'error', message: payload.message || 'Unknown error' }
+    default:
+      return null
+  }
+}
+
+async function errorMessage(response) {
+  try {
+    const data = await response.json()
+    return data.message || `Server error (${response.status})`
+  } catch {
+    return `Server error (${response.status})`
   }
 }